@@ -0,0 +1,42 @@
+package db.liquibase;
+
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* Fixtures shared by the benchmarks: uniquely named in-memory H2 databases holding a SchemaGenerator schema of N tables of
+ * five columns, one secondary index and one foreign key each, and a view per ten tables */
+
+final class BenchmarkSchemas {
+    static final String SCHEMA = "BENCH";
+    static final OutputStream NULL_OUTPUT = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+    private static final AtomicInteger _databases = new AtomicInteger();
+
+    private BenchmarkSchemas() {
+    }
+
+    /* The database lives until its last connection is closed */
+    static String newDatabaseUrl(String prefix) {
+        return "jdbc:h2:mem:" + prefix + _databases.incrementAndGet();
+    }
+
+    static void populate(Connection connection, int tables) throws SQLException {
+        new SchemaGenerator(tables, 5, 1, 1, tables / 10).generate(connection, SCHEMA);
+    }
+
+    static void createSchema(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("CREATE SCHEMA IF NOT EXISTS " + SCHEMA);
+        }
+    }
+}
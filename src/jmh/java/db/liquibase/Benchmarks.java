@@ -0,0 +1,16 @@
+package db.liquibase;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/* Entry point of target/benchmarks.jar: runs the JMH benchmarks selected by the usual JMH command line, always with the
+ * GC profiler attached so allocation rates are reported next to throughput */
+
+public class Benchmarks {
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().parent(new CommandLineOptions(args)).addProfiler(GCProfiler.class).build()).run();
+    }
+}
@@ -0,0 +1,65 @@
+package db.liquibase;
+
+import liquibase.CatalogAndSchema;
+import liquibase.changelog.ChangeSet;
+import liquibase.database.Database;
+import liquibase.database.DatabaseFactory;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.diff.output.DiffOutputControl;
+import liquibase.diff.output.changelog.DiffToChangeLog;
+import liquibase.serializer.core.json.JsonChangeLogSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/* Changelog generation, snapshot through JSON serialization, against an embedded H2 schema of the given size */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MINUTES)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LiftBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int tables;
+
+    private Connection _connection;
+    private Database _database;
+
+    @Setup
+    public void createSource() throws Exception {
+        org.apache.log4j.Logger.getRootLogger().setLevel(org.apache.log4j.Level.OFF);
+        _connection = DriverManager.getConnection(BenchmarkSchemas.newDatabaseUrl("lift"), "sa", "");
+        BenchmarkSchemas.populate(_connection, tables);
+        _database = DatabaseFactory.getInstance().findCorrectDatabaseImplementation(new JdbcConnection(_connection));
+    }
+
+    @TearDown
+    public void dropSource() throws Exception {
+        _connection.close();
+    }
+
+    @Benchmark
+    public int generateChangeLog() throws Exception {
+        DiffToChangeLog writer = new DiffToChangeLog(new DiffOutputControl(false, true, false, null));
+        List<ChangeSet> changeSets = SnapshotCache.snapshotAndDiff(_database, new CatalogAndSchema(null, BenchmarkSchemas.SCHEMA), null, writer);
+        new JsonChangeLogSerializer().write(changeSets, BenchmarkSchemas.NULL_OUTPUT);
+        return changeSets.size();
+    }
+}
@@ -0,0 +1,249 @@
+package db.liquibase;
+
+import db.jdbc.DriverRegistry;
+import org.apache.commons.cli.*;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.System.exit;
+
+/* Runs the tools against generated schemas of growing size and records wall time and peak heap for each, so super-linear
+ * behaviour shows up before a customer database does. Every tool runs in its own JVM, with the size's directory as working
+ * directory and its metrics report written next to its log. Sources are H2 file databases, which LiquiBaseConnector lifts;
+ * LiquiBaseCreateDb and LiquiBaseCloneDb manage databases through T-SQL, so they only run when a SQL Server is given, which
+ * then also hosts the generated sources. Results are appended to scaling.csv in the work directory */
+
+public class ScalingSuite {
+    private static final String SIZES = "sizes";
+    private static final String COLUMNS = "columns";
+    private static final String INDEXES = "indexes";
+    private static final String FOREIGN_KEYS = "foreign_keys";
+    private static final String VIEW_PERCENT = "view_percent";
+    private static final String WORK_DIR = "work_dir";
+    private static final String HEAP = "heap";
+    private static final String SQLSERVER_URL = "sqlserver_connection";
+    private static final String SQLSERVER_USER = "sqlserver_user";
+    private static final String SQLSERVER_PSWD = "sqlserver_password";
+
+    private static final String H2_DRIVER = "org.h2.Driver";
+    private static final String SQLSERVER_DRIVER = "com.microsoft.sqlserver.jdbc.SQLServerDriver";
+    private static final String SCHEMA = "dbo";
+    private static final double SUPER_LINEAR_EXPONENT = 1.25;
+    private static final Logger _logger = LogManager.getLogger(ScalingSuite.class);
+    private static OptionsHelper optionsHelper;
+
+    public static void main(String[] args) throws Exception {
+        optionsHelper = new OptionsHelper(args);
+        File workDir = new File(optionsHelper.getOptionValue(WORK_DIR, "target/scaling")).getAbsoluteFile();
+        if (!workDir.isDirectory() && !workDir.mkdirs()) throw new IOException("Cannot create " + workDir);
+        File results = new File(workDir, "scaling.csv");
+        boolean header = !results.exists();
+
+        Map<String, List<long[]>> timings = new LinkedHashMap<>();
+        try (PrintWriter csv = new PrintWriter(new FileWriter(results, true))) {
+            if (header) csv.println("tool,tables,columns,indexes,foreignKeys,views,exitCode,errors,elapsedMs,peakHeapMb");
+            for (String size : optionsHelper.getOptionValue(SIZES, "100,1000,10000").split("\\s*,\\s*")) {
+                int tables = Integer.parseInt(size);
+                SchemaGenerator generator = new SchemaGenerator(tables, optionsHelper.getInt(COLUMNS, 8), optionsHelper.getInt(INDEXES, 2),
+                        optionsHelper.getInt(FOREIGN_KEYS, 1), tables * optionsHelper.getInt(VIEW_PERCENT, 10) / 100);
+                File dir = new File(workDir, size);
+                deleteRecursively(dir);
+                if (!new File(dir, "src/main/resources").mkdirs()) throw new IOException("Cannot create " + dir);
+
+                for (Map.Entry<String, List<String>> run : prepareRuns(generator, tables, dir).entrySet()) {
+                    long[] result = runTool(run.getValue(), dir, run.getKey());
+                    csv.printf("%s,%d,%d,%d,%d,%d,%d,%d,%d,%d%n", run.getKey(), tables, generator.getColumns(), generator.getIndexes(),
+                            generator.getForeignKeys(), generator.getViews(), result[0], result[3], result[1], result[2] / (1024 * 1024));
+                    csv.flush();
+                    _logger.info("{} on {} tables: exit code {}, {} errors logged, {} ms, peak heap {} MB", run.getKey(), tables, result[0], result[3],
+                            result[1], result[2] / (1024 * 1024));
+                    timings.computeIfAbsent(run.getKey(), k -> new ArrayList<>()).add(new long[]{tables, result[1], result[2]});
+                }
+            }
+        }
+        reportGrowth(timings);
+        _logger.info("Results appended to {}", results);
+    }
+
+    /* Generates the source for one size and returns the main class and arguments of every tool to run against it, keyed by tool name */
+    private static Map<String, List<String>> prepareRuns(SchemaGenerator generator, int tables, File dir) throws Exception {
+        Map<String, List<String>> runs = new LinkedHashMap<>();
+        String sqlServer = optionsHelper.getOptionValue(SQLSERVER_URL);
+        if (sqlServer == null) {
+            String url = "jdbc:h2:" + new File(dir, "source").getPath();
+            DriverRegistry.register(null, H2_DRIVER);
+            try (Connection connection = DriverRegistry.connect(url, "sa", "")) {
+                generator.generate(connection, SCHEMA);
+            }
+            runs.put("connector", command(LiquiBaseConnector.class, "-sc", url, "-su", "sa", "-sp", "", "-ss", SCHEMA, "-tdrv", H2_DRIVER, "-tdrvp", driverPath(H2_DRIVER), "-rd", "metrics-connector"));
+            return runs;
+        }
+
+        String user = optionsHelper.getOptionValue(SQLSERVER_USER);
+        String password = optionsHelper.getOptionValue(SQLSERVER_PSWD);
+        String source = "SCALE_" + tables;
+        DriverRegistry.register(null, SQLSERVER_DRIVER);
+        try (Connection connection = DriverRegistry.connect(sqlServer, user, password); Statement stmt = connection.createStatement()) {
+            stmt.executeUpdate("if db_id('" + source + "') is not null DROP DATABASE " + source + ";");
+            stmt.executeUpdate("create DATABASE " + source + ";");
+        }
+        try (Connection connection = DriverRegistry.connect(sqlServer + "; database=" + source + ";", user, password)) {
+            generator.generate(connection, SCHEMA);
+        }
+        runs.put("connector", command(LiquiBaseConnector.class, "-sc", sqlServer, "-su", user, "-sp", password, "-sd", source, "-ss", SCHEMA,
+                "-tdrv", SQLSERVER_DRIVER, "-tdrvp", driverPath(SQLSERVER_DRIVER), "-rd", "metrics-connector"));
+        runs.put("createdb", command(LiquiBaseCreateDb.class, "-tc", sqlServer, "-tu", user, "-tp", password, "-td", source + "_CREATE",
+                "-tdrv", SQLSERVER_DRIVER, "-tdrvp", driverPath(SQLSERVER_DRIVER), "-rd", "metrics-createdb"));
+        runs.put("clonedb", command(LiquiBaseCloneDb.class, "-sc", sqlServer, "-su", user, "-sp", password, "-sd", source, "-ss", SCHEMA,
+                "-tp", dir.getPath(), "-td", source + "_CLONE", "-rd", "metrics-clonedb"));
+        return runs;
+    }
+
+    private static String driverPath(String driverClass) throws ClassNotFoundException {
+        return Class.forName(driverClass).getProtectionDomain().getCodeSource().getLocation().toString();
+    }
+
+    private static List<String> command(Class<?> tool, String... args) {
+        List<String> command = new ArrayList<>();
+        command.add(tool.getName());
+        command.addAll(Arrays.asList(args));
+        return command;
+    }
+
+    /* Returns the exit code, the elapsed milliseconds, the peak heap in bytes and the number of errors logged of one tool run.
+     * The tools log most failures rather than exit with them, so the error count is the one to check */
+    private static long[] runTool(List<String> toolCommand, File dir, String tool) throws IOException, InterruptedException {
+        File peakHeap = new File(dir, tool + ".heap");
+        List<String> command = new ArrayList<>(Arrays.asList(new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-Xmx" + optionsHelper.getOptionValue(HEAP, "4g"), "-cp", absoluteClassPath(), Probe.class.getName(), peakHeap.getPath()));
+        command.addAll(toolCommand);
+        _logger.info("Running {} in {}", tool, dir);
+        long start = System.nanoTime();
+        File log = new File(dir, tool + ".log");
+        Process process = new ProcessBuilder(command).directory(dir).redirectErrorStream(true).redirectOutput(log).start();
+        int exitCode = process.waitFor();
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        long heap = peakHeap.isFile() ? Long.parseLong(new String(Files.readAllBytes(peakHeap.toPath()), StandardCharsets.UTF_8).trim()) : -1;
+        long errors = Files.readAllLines(log.toPath(), StandardCharsets.UTF_8).stream().filter(line -> line.startsWith("[ERROR]")).count();
+        return new long[]{exitCode, elapsed, heap, errors};
+    }
+
+    /* The tools run from the size's directory, so relative class path entries are resolved here first */
+    private static String absoluteClassPath() {
+        StringBuilder classPath = new StringBuilder();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if (classPath.length() > 0) classPath.append(File.pathSeparator);
+            classPath.append(new File(entry).getAbsolutePath());
+        }
+        return classPath.toString();
+    }
+
+    /* Fits time ~ tables^e between consecutive sizes; e well above 1 means the tool grows faster than the schema */
+    private static void reportGrowth(Map<String, List<long[]>> timings) {
+        timings.forEach((tool, points) -> {
+            for (int i = 1; i < points.size(); i++) {
+                long[] smaller = points.get(i - 1);
+                long[] larger = points.get(i);
+                if (smaller[1] <= 0 || larger[0] == smaller[0]) continue;
+                double sizeRatio = Math.log((double) larger[0] / smaller[0]);
+                double timeExponent = Math.log((double) larger[1] / smaller[1]) / sizeRatio;
+                double heapExponent = smaller[2] > 0 && larger[2] > 0 ? Math.log((double) larger[2] / smaller[2]) / sizeRatio : Double.NaN;
+                if (timeExponent > SUPER_LINEAR_EXPONENT) {
+                    _logger.warn("{} grows super-linearly from {} to {} tables: time exponent {}, heap exponent {}", tool, smaller[0], larger[0],
+                            String.format("%.2f", timeExponent), String.format("%.2f", heapExponent));
+                } else {
+                    _logger.info("{} from {} to {} tables: time exponent {}, heap exponent {}", tool, smaller[0], larger[0],
+                            String.format("%.2f", timeExponent), String.format("%.2f", heapExponent));
+                }
+            }
+        });
+    }
+
+    private static void deleteRecursively(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) deleteRecursively(child);
+        }
+        if (file.exists() && !file.delete()) throw new IOException("Cannot delete " + file);
+    }
+
+    /* Runs a tool's main in this JVM and, however the tool exits, writes the sum of the heap pools' peak usage to a file */
+    public static class Probe {
+
+        public static void main(String[] args) throws Exception {
+            File out = new File(args[0]);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                long peak = 0;
+                for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                    if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) peak += pool.getPeakUsage().getUsed();
+                }
+                try {
+                    Files.write(out.toPath(), String.valueOf(peak).getBytes(StandardCharsets.UTF_8));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }));
+            Class.forName(args[1]).getMethod("main", String[].class).invoke(null, (Object) Arrays.copyOfRange(args, 2, args.length));
+        }
+    }
+
+    static class OptionsHelper {
+        private final Options _opts;
+        private final CommandLineParser _parser;
+        private CommandLine _cmd;
+
+        OptionsHelper(String[] args) {
+            _opts = new Options();
+            _parser = new DefaultParser();
+
+            _opts.addOption(new Option("n", SIZES, true, "Comma separated table counts to run (default 100,1000,10000)"));
+            _opts.addOption(new Option("m", COLUMNS, true, "Columns per table (default 8)"));
+            _opts.addOption(new Option("k", INDEXES, true, "Secondary indexes per table (default 2)"));
+            _opts.addOption(new Option("f", FOREIGN_KEYS, true, "Foreign keys per table (default 1)"));
+            _opts.addOption(new Option("vp", VIEW_PERCENT, true, "Views per hundred tables (default 10)"));
+            _opts.addOption(new Option("wd", WORK_DIR, true, "Directory receiving the databases, logs and scaling.csv (default target/scaling)"));
+            _opts.addOption(new Option("xmx", HEAP, true, "Maximum heap of each tool run (default 4g)"));
+            _opts.addOption(new Option("ms", SQLSERVER_URL, true, "SQL Server connection URL; hosts the sources and enables the CreateDb and CloneDb runs"));
+            _opts.addOption(new Option("mu", SQLSERVER_USER, true, "SQL Server user name"));
+            _opts.addOption(new Option("mp", SQLSERVER_PSWD, true, "SQL Server password"));
+
+            try {
+                _cmd = _parser.parse(_opts, args);
+            } catch (ParseException e) {
+                _logger.error("Error parsing the command line options", e);
+                exit(-2);
+            }
+        }
+
+        String getOptionValue(String key, String defaultValue) {
+            return _cmd.getOptionValue(key, defaultValue);
+        }
+
+        String getOptionValue(String key) {
+            return _cmd.getOptionValue(key);
+        }
+
+        int getInt(String key, int defaultValue) {
+            String value = _cmd.getOptionValue(key);
+            return value == null ? defaultValue : Integer.parseInt(value);
+        }
+    }
+}
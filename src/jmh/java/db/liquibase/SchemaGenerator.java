@@ -0,0 +1,164 @@
+package db.liquibase;
+
+import db.jdbc.DriverRegistry;
+import org.apache.commons.cli.*;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Random;
+
+import static java.lang.System.exit;
+
+/* Builds a synthetic schema of a given shape: N tables of M columns, each with a primary key, K secondary indexes and F
+ * foreign keys to earlier tables, plus V views spread evenly over the tables. Parents are drawn from a fixed seed so a shape
+ * always yields the same schema; drawing them at random keeps reference chains short, as in real schemas, where chaining
+ * every table to its predecessor would only measure how deep Liquibase can recurse. The DDL is plain enough for H2 and
+ * SQL Server, so the same shapes can be lifted and cloned on either */
+
+public class SchemaGenerator {
+    private static final String URL = "connection";
+    private static final String USERNAME = "user";
+    private static final String PSWD = "password";
+    private static final String SCHEMA = "schema";
+    private static final String TABLES = "tables";
+    private static final String COLUMNS = "columns";
+    private static final String INDEXES = "indexes";
+    private static final String FOREIGN_KEYS = "foreign_keys";
+    private static final String VIEWS = "views";
+
+    private static final Logger _logger = LogManager.getLogger(SchemaGenerator.class);
+    private static final long SEED = 20200417L;
+
+    private final int _tables;
+    private final int _columns;
+    private final int _indexes;
+    private final int _foreignKeys;
+    private final int _views;
+
+    /* columns counts the ID key and the foreign key columns, so it is raised to at least 2 + foreignKeys */
+    SchemaGenerator(int tables, int columns, int indexes, int foreignKeys, int views) {
+        _tables = tables;
+        _foreignKeys = foreignKeys;
+        _columns = Math.max(columns, 2 + foreignKeys);
+        _indexes = indexes;
+        _views = Math.min(views, tables);
+    }
+
+    int getColumns() {
+        return _columns;
+    }
+
+    int getIndexes() {
+        return _indexes;
+    }
+
+    int getForeignKeys() {
+        return _foreignKeys;
+    }
+
+    int getViews() {
+        return _views;
+    }
+
+    public static void main(String[] args) {
+        OptionsHelper optionsHelper = new OptionsHelper(args);
+        String schema = optionsHelper.getOptionValue(SCHEMA, "dbo");
+        SchemaGenerator generator = new SchemaGenerator(optionsHelper.getInt(TABLES, 100), optionsHelper.getInt(COLUMNS, 8),
+                optionsHelper.getInt(INDEXES, 2), optionsHelper.getInt(FOREIGN_KEYS, 1), optionsHelper.getInt(VIEWS, 10));
+        try (Connection connection = DriverRegistry.connect(optionsHelper.getOptionValue(URL), optionsHelper.getOptionValue(USERNAME), optionsHelper.getOptionValue(PSWD))) {
+            generator.generate(connection, schema);
+        } catch (Exception e) {
+            _logger.error("Exception caught generating schema {}", schema, e);
+            exit(1);
+        }
+    }
+
+    void generate(Connection connection, String schema) throws SQLException {
+        long start = System.currentTimeMillis();
+        boolean sqlServer = connection.getMetaData().getDatabaseProductName().toLowerCase().contains("microsoft");
+        Random random = new Random(SEED);
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute(sqlServer ? "if schema_id('" + schema + "') is null exec('create schema " + schema + "')" : "CREATE SCHEMA IF NOT EXISTS " + schema);
+            for (int i = 0; i < _tables; i++) {
+                addTable(stmt, schema, i, random);
+                if ((i + 1) % 1000 == 0) {
+                    stmt.executeBatch();
+                    _logger.info("Created {} of {} tables in {}", i + 1, _tables, schema);
+                }
+            }
+            for (int v = 0; v < _views; v++) {
+                int table = (int) ((long) v * _tables / _views);
+                stmt.addBatch("CREATE VIEW " + schema + ".V" + v + " AS SELECT ID, C1 FROM " + schema + ".T" + table);
+            }
+            stmt.executeBatch();
+        }
+        _logger.info("Generated {} tables of {} columns, {} indexes and {} foreign keys per table and {} views in {} in {} ms",
+                _tables, _columns, _indexes, _foreignKeys, _views, schema, System.currentTimeMillis() - start);
+    }
+
+    private void addTable(Statement stmt, String schema, int i, Random random) throws SQLException {
+        String table = schema + ".T" + i;
+        int valueColumns = _columns - 1 - _foreignKeys;
+        StringBuilder ddl = new StringBuilder("CREATE TABLE ").append(table).append(" (ID INT NOT NULL PRIMARY KEY");
+        for (int f = 1; f <= _foreignKeys; f++) {
+            ddl.append(", PARENT").append(f).append(" INT");
+        }
+        for (int c = 1; c <= valueColumns; c++) {
+            ddl.append(", C").append(c).append(c % 3 == 0 ? " DECIMAL(18,2)" : c % 3 == 1 ? " VARCHAR(64)" : " DATETIME");
+        }
+        stmt.addBatch(ddl.append(')').toString());
+        for (int k = 1; k <= _indexes; k++) {
+            stmt.addBatch("CREATE INDEX IX_T" + i + "_" + k + " ON " + table + " (C" + ((k - 1) % valueColumns + 1) + ")");
+        }
+        for (int f = 1; f <= _foreignKeys && f <= i; f++) {
+            stmt.addBatch("ALTER TABLE " + table + " ADD CONSTRAINT FK_T" + i + "_" + f + " FOREIGN KEY (PARENT" + f + ") REFERENCES " + schema + ".T" + random.nextInt(i) + " (ID)");
+        }
+    }
+
+    static class OptionsHelper {
+        private final Options _opts;
+        private final CommandLineParser _parser;
+        private CommandLine _cmd;
+
+        OptionsHelper(String[] args) {
+            _opts = new Options();
+            _parser = new DefaultParser();
+
+            Option urlOption = new Option("c", URL, true, "Connection URL for the DB");
+            urlOption.setRequired(true);
+            _opts.addOption(urlOption);
+
+            _opts.addOption(new Option("u", USERNAME, true, "User name"));
+            _opts.addOption(new Option("p", PSWD, true, "Password"));
+            _opts.addOption(new Option("s", SCHEMA, true, "Schema receiving the objects (default dbo)"));
+            _opts.addOption(new Option("n", TABLES, true, "Number of tables (default 100)"));
+            _opts.addOption(new Option("m", COLUMNS, true, "Columns per table, including the key and foreign key columns (default 8)"));
+            _opts.addOption(new Option("k", INDEXES, true, "Secondary indexes per table (default 2)"));
+            _opts.addOption(new Option("f", FOREIGN_KEYS, true, "Foreign keys per table (default 1)"));
+            _opts.addOption(new Option("v", VIEWS, true, "Number of views (default 10)"));
+
+            try {
+                _cmd = _parser.parse(_opts, args);
+            } catch (ParseException e) {
+                _logger.error("Error parsing the command line options", e);
+                exit(-2);
+            }
+        }
+
+        String getOptionValue(String key) {
+            return _cmd.getOptionValue(key);
+        }
+
+        String getOptionValue(String key, String defaultValue) {
+            return _cmd.getOptionValue(key, defaultValue);
+        }
+
+        int getInt(String key, int defaultValue) {
+            String value = _cmd.getOptionValue(key);
+            return value == null ? defaultValue : Integer.parseInt(value);
+        }
+    }
+}
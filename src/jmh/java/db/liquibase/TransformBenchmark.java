@@ -0,0 +1,81 @@
+package db.liquibase;
+
+import liquibase.change.ColumnConfig;
+import liquibase.change.core.CreateTableChange;
+import liquibase.changelog.ChangeSet;
+import liquibase.serializer.core.json.JsonChangeLogSerializer;
+import org.apache.logging.log4j.core.config.Configurator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/* The rewrite rules the Connector applies to lifted changeSets, alone and followed by the JSON serialization, over createTable
+ * changeSets carrying remarks, catalog names and types. The rules change the changeSets, so each call gets fresh ones */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TransformBenchmark {
+
+    @Param({"1", "100", "10000", "100000"})
+    public int changeSets;
+
+    private final ChangeSetTransformer _transformer = ChangeSetTransformer.parse("dropRemarks,catalogSuffix=Clone,schema=dbo:app,type=VARCHAR:NVARCHAR");
+    private List<ChangeSet> _changeSets;
+
+    @Setup(Level.Trial)
+    public void quietLogging() {
+        org.apache.log4j.Logger.getRootLogger().setLevel(org.apache.log4j.Level.OFF);
+        Configurator.setLevel(ChangeSetTransformer.class.getName(), org.apache.logging.log4j.Level.WARN); // it logs a summary per call
+    }
+
+    @Setup(Level.Invocation)
+    public void generateChangeSets() {
+        List<ChangeSet> generated = new ArrayList<>(changeSets);
+        for (int i = 0; i < changeSets; i++) {
+            CreateTableChange change = new CreateTableChange();
+            change.setCatalogName("SOURCE");
+            change.setSchemaName("dbo");
+            change.setTableName("T" + i);
+            change.setRemarks("Table number " + i);
+            for (String column : new String[]{"ID", "NAME", "AMOUNT", "CREATED"}) {
+                ColumnConfig columnConfig = new ColumnConfig();
+                columnConfig.setName(column);
+                columnConfig.setType("ID".equals(column) ? "INT" : "VARCHAR(100)");
+                columnConfig.setRemarks("Column " + column);
+                change.addColumn(columnConfig);
+            }
+            ChangeSet changeSet = new ChangeSet("1-" + i, "bench", false, false, null, null, null, false, null, null);
+            changeSet.addChange(change);
+            generated.add(changeSet);
+        }
+        _changeSets = generated;
+    }
+
+    @Benchmark
+    public List<ChangeSet> transform() {
+        return _transformer.apply(_changeSets);
+    }
+
+    @Benchmark
+    public void transformAndSerialize() throws IOException {
+        new JsonChangeLogSerializer().write(_transformer.apply(_changeSets), BenchmarkSchemas.NULL_OUTPUT);
+    }
+}
@@ -0,0 +1,87 @@
+package db.liquibase;
+
+import liquibase.CatalogAndSchema;
+import liquibase.Contexts;
+import liquibase.LabelExpression;
+import liquibase.Liquibase;
+import liquibase.changelog.ChangeSet;
+import liquibase.database.Database;
+import liquibase.database.DatabaseFactory;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.diff.output.DiffOutputControl;
+import liquibase.diff.output.changelog.DiffToChangeLog;
+import liquibase.resource.FileSystemResourceAccessor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/* Applying a lifted changeLog to an empty embedded H2 database, through liquibase.update or ParallelChangeLogUpdater */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MINUTES)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class UpdateBenchmark {
+    private static final String CHANGELOG_PATH = "bench-changelog.json";
+
+    @Param({"10", "100", "1000"})
+    public int tables;
+
+    @Param({"liquibase", "parallel"})
+    public String applier;
+
+    private List<ChangeSet> _changeSets;
+    private String _targetUrl;
+    private Connection _target;
+
+    @Setup
+    public void liftChangeLog() throws Exception {
+        org.apache.log4j.Logger.getRootLogger().setLevel(org.apache.log4j.Level.OFF);
+        try (Connection source = DriverManager.getConnection(BenchmarkSchemas.newDatabaseUrl("source"), "sa", "")) {
+            BenchmarkSchemas.populate(source, tables);
+            Database database = DatabaseFactory.getInstance().findCorrectDatabaseImplementation(new JdbcConnection(source));
+            DiffToChangeLog writer = new DiffToChangeLog(new DiffOutputControl(false, true, false, null));
+            _changeSets = SnapshotCache.snapshotAndDiff(database, new CatalogAndSchema(null, BenchmarkSchemas.SCHEMA), null, writer);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void createTarget() throws Exception {
+        _targetUrl = BenchmarkSchemas.newDatabaseUrl("target");
+        _target = DriverManager.getConnection(_targetUrl, "sa", "");
+        BenchmarkSchemas.createSchema(_target);
+    }
+
+    @TearDown(Level.Invocation)
+    public void dropTarget() throws Exception {
+        _target.close();
+    }
+
+    @Benchmark
+    public boolean update() throws Exception {
+        Database database = DatabaseFactory.getInstance().findCorrectDatabaseImplementation(new JdbcConnection(_target));
+        if ("parallel".equals(applier)) {
+            return new ParallelChangeLogUpdater(database, () -> DriverManager.getConnection(_targetUrl, "sa", ""), Runtime.getRuntime().availableProcessors())
+                    .update(ChangeLogs.inMemory(CHANGELOG_PATH, _changeSets), new Contexts(), new LabelExpression());
+        }
+        new Liquibase(ChangeLogs.inMemory(CHANGELOG_PATH, _changeSets), new FileSystemResourceAccessor(), database).update(new Contexts(), new LabelExpression());
+        return true;
+    }
+}
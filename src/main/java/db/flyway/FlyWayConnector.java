@@ -1,13 +1,20 @@
 package db.flyway;
 
-import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
+import db.jdbc.ConnectionPool;
+import db.metrics.Metrics;
+import db.metrics.Trace;
+import db.service.ServiceClient;
 import org.apache.commons.cli.*;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.flywaydb.core.Flyway;
+import org.flywaydb.core.api.configuration.FluentConfiguration;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
-import static com.codahale.metrics.MetricRegistry.name;
 import static java.lang.System.exit;
 
 /* Quick connection test of the FlyWay connecting to a MSSQL DB*/
@@ -17,18 +24,27 @@ public class FlyWayConnector {
     private static final String CONNECTION_STRING_LBL = "connection";
     private static final String USERNAME_LBL = "user";
     private static final String PASSWORD_LBL = "password";
+    private static final String REPORT_DIR_LBL = "report_dir";
+    private static final String JMX_LBL = "jmx";
+    private static final String LOCATIONS_LBL = "locations";
+    private static final String SCHEMAS_LBL = "schemas";
+    private static final String TARGETS_FILE_LBL = "targets_file";
+    private static final String WORKERS_LBL = "workers";
+    private static final String MAX_CONNECTIONS_LBL = "max_connections";
+    private static final String TRACE_FILE_LBL = "trace_file";
+    private static final int DEFAULT_WORKERS = 4;
     private static final Logger logger = LogManager.getLogger(FlyWayConnector.class);
-    private static final MetricRegistry _metrics = new MetricRegistry();
-    private static final Timer flyWayTimer = _metrics.timer(name(FlyWayConnector.class, CONNECTION_STRING_LBL));
+    private static final Timer flyWayTimer = Metrics.phase("migrate");
 
     public static void main(String[] args) {
+        if (ServiceClient.isEnabled()) exit(ServiceClient.forward("migrate", args));
 
-        org.apache.log4j.Logger.getRootLogger().setLevel(org.apache.log4j.Level.OFF);
+        if (!ServiceClient.isInService()) org.apache.log4j.Logger.getRootLogger().setLevel(org.apache.log4j.Level.OFF);
 
         Options opts = new Options();
 
         Option urlOption = new Option("c", CONNECTION_STRING_LBL, true, "Connection URL for the DB");
-        urlOption.setRequired(true);
+        urlOption.setRequired(false);
         opts.addOption(urlOption);
 
         Option usrOption = new Option("u", USERNAME_LBL, true, "User name");
@@ -38,6 +54,38 @@ public class FlyWayConnector {
         Option passwordOption = new Option("p", PASSWORD_LBL, true, "Password");
         passwordOption.setRequired(true);
         opts.addOption(passwordOption);
+
+        Option reportDirOption = new Option("rd", REPORT_DIR_LBL, true, "Directory receiving per-metric CSV files and a JSON run report");
+        reportDirOption.setRequired(false);
+        opts.addOption(reportDirOption);
+
+        Option jmxOption = new Option("jmx", JMX_LBL, false, "Publish run metrics over JMX");
+        jmxOption.setRequired(false);
+        opts.addOption(jmxOption);
+
+        Option locationsOption = new Option("l", LOCATIONS_LBL, true, "Comma separated migration locations (default classpath:db/migration)");
+        locationsOption.setRequired(false);
+        opts.addOption(locationsOption);
+
+        Option schemasOption = new Option("s", SCHEMAS_LBL, true, "Comma separated schemas of the connection, each migrated as a separate target");
+        schemasOption.setRequired(false);
+        opts.addOption(schemasOption);
+
+        Option targetsOption = new Option("tf", TARGETS_FILE_LBL, true, "File listing one target per line: a connection URL optionally followed by comma separated schemas");
+        targetsOption.setRequired(false);
+        opts.addOption(targetsOption);
+
+        Option workersOption = new Option("j", WORKERS_LBL, true, "Number of targets migrated concurrently (default " + DEFAULT_WORKERS + ")");
+        workersOption.setRequired(false);
+        opts.addOption(workersOption);
+
+        Option maxConnectionsOption = new Option("mc", MAX_CONNECTIONS_LBL, true, "Maximum connections open to one server at a time across its targets");
+        maxConnectionsOption.setRequired(false);
+        opts.addOption(maxConnectionsOption);
+
+        Option traceOption = new Option("trace", TRACE_FILE_LBL, true, "Write a Chrome trace / Perfetto JSON timeline of the run to this file");
+        traceOption.setRequired(false);
+        opts.addOption(traceOption);
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = null;
 
@@ -52,19 +100,73 @@ public class FlyWayConnector {
         String userName = cmd.getOptionValue(USERNAME_LBL);
         String password = cmd.getOptionValue(PASSWORD_LBL);
 
-        if (connectString == null || userName == null || password == null){
+        if ((connectString == null && !cmd.hasOption(TARGETS_FILE_LBL)) || userName == null || password == null){
             logger.error("One or more of the requirement arguments are missing. Make sure URL, User Name and Password are supplied as args");
             exit(-2);
         }
 
+        if (cmd.hasOption(SCHEMAS_LBL) || cmd.hasOption(TARGETS_FILE_LBL)) {
+            exit(migrateTargets(cmd, connectString, userName, password));
+        }
+
         logger.info("Initiating connection to {} DB with userName {}, password {}", connectString, userName, password);
 
-        try (final Timer.Context ignore = flyWayTimer.time()){
-            Flyway flyway = Flyway.configure().dataSource(connectString, userName, password).load();
+        try (Metrics ignored = Metrics.start(FlyWayConnector.class.getSimpleName(), cmd.getOptionValue(REPORT_DIR_LBL), cmd.hasOption(JMX_LBL));
+             Trace ignoredTrace = Trace.start(cmd.getOptionValue(TRACE_FILE_LBL));
+             final Timer.Context ignore = flyWayTimer.time()){
+            Flyway flyway = configure(cmd).dataSource(ConnectionPool.get(connectString, userName, password)).callbacks(new MigrationTrace(connectString)).load();
             flyway.migrate();
         } catch (Exception e) {
             logger.error("Exception caught while executing FlyWay", e);
+        } finally {
+            ConnectionPool.closeAll();
+        }
+        logger.info("Time to complete connection and migration {} ms", Metrics.millis(flyWayTimer.getSnapshot().getMax()));
+    }
+
+    /* Multi-target mode: the schemas of --connection and the lines of --targets_file are migrated concurrently with one
+     * shared migration set. Returns the exit code, non-zero when any target failed */
+    private static int migrateTargets(CommandLine cmd, String connectString, String userName, String password) {
+        List<MultiTenantMigrator.Target> targets = new ArrayList<>();
+        if (connectString != null) {
+            if (cmd.hasOption(SCHEMAS_LBL)) {
+                for (String schema : cmd.getOptionValue(SCHEMAS_LBL).split("\\s*,\\s*")) targets.add(new MultiTenantMigrator.Target(connectString, schema));
+            } else {
+                targets.add(new MultiTenantMigrator.Target(connectString));
+            }
+        }
+        List<MultiTenantMigrator.Result> results = new ArrayList<>();
+        try (Metrics ignored = Metrics.start(FlyWayConnector.class.getSimpleName(), cmd.getOptionValue(REPORT_DIR_LBL), cmd.hasOption(JMX_LBL));
+             Trace ignoredTrace = Trace.start(cmd.getOptionValue(TRACE_FILE_LBL));
+             final Timer.Context ignore = flyWayTimer.time()) {
+            if (cmd.hasOption(TARGETS_FILE_LBL)) targets.addAll(MultiTenantMigrator.readTargets(new File(cmd.getOptionValue(TARGETS_FILE_LBL))));
+            MultiTenantMigrator migrator = new MultiTenantMigrator(configure(cmd), userName, password,
+                    getIntOption(cmd, WORKERS_LBL, DEFAULT_WORKERS), getIntOption(cmd, MAX_CONNECTIONS_LBL, 0));
+            results = migrator.migrate(targets);
+            MultiTenantMigrator.summarize(results, cmd.getOptionValue(REPORT_DIR_LBL));
+        } catch (Exception e) {
+            logger.error("Exception caught while executing FlyWay", e);
+            return -1;
+        } finally {
+            ConnectionPool.closeAll();
+        }
+        logger.info("Time to complete migrating {} targets {} ms", targets.size(), Metrics.millis(flyWayTimer.getSnapshot().getMax()));
+        return results.stream().anyMatch(MultiTenantMigrator.Result::isFailed) ? -1 : 0;
+    }
+
+    private static FluentConfiguration configure(CommandLine cmd) {
+        FluentConfiguration configuration = Flyway.configure();
+        if (cmd.hasOption(LOCATIONS_LBL)) configuration.locations(cmd.getOptionValue(LOCATIONS_LBL).split("\\s*,\\s*"));
+        return configuration;
+    }
+
+    private static int getIntOption(CommandLine cmd, String label, int defaultValue) {
+        String value = cmd.getOptionValue(label);
+        try {
+            return value == null ? defaultValue : Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid {} value [{}], using {}", label, value, defaultValue);
+            return defaultValue;
         }
-        logger.info("MeanRate for time to complete connection and migration {} s, over {} events", flyWayTimer.getMeanRate(), flyWayTimer.getCount());
     }
 }
@@ -0,0 +1,40 @@
+package db.flyway;
+
+import db.metrics.Trace;
+import org.flywaydb.core.api.MigrationInfo;
+import org.flywaydb.core.api.callback.Callback;
+import org.flywaydb.core.api.callback.Context;
+import org.flywaydb.core.api.callback.Event;
+
+/* Records every migration Flyway applies to one target as a span on the trace. A Flyway migrates on one thread, so one
+ * instance per Flyway needs no synchronization */
+
+class MigrationTrace implements Callback {
+    private final String _target;
+    private long _started;
+
+    MigrationTrace(String target) {
+        this._target = target;
+    }
+
+    @Override
+    public boolean supports(Event event, Context context) {
+        return Trace.isEnabled() && (event == Event.BEFORE_EACH_MIGRATE || event == Event.AFTER_EACH_MIGRATE || event == Event.AFTER_EACH_MIGRATE_ERROR);
+    }
+
+    @Override
+    public boolean canHandleInTransaction(Event event, Context context) {
+        return true;
+    }
+
+    @Override
+    public void handle(Event event, Context context) {
+        if (event == Event.BEFORE_EACH_MIGRATE) {
+            _started = Trace.begin();
+            return;
+        }
+        MigrationInfo info = context.getMigrationInfo();
+        String name = info.getVersion() == null ? info.getDescription() : info.getVersion().getVersion();
+        Trace.end(Trace.MIGRATION, _target + " " + name + (event == Event.AFTER_EACH_MIGRATE_ERROR ? " (failed)" : ""), _started);
+    }
+}
@@ -0,0 +1,244 @@
+package db.flyway;
+
+import com.codahale.metrics.Timer;
+import db.jdbc.ConcurrencyLimiter;
+import db.jdbc.ConnectionPool;
+import db.metrics.Metrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.flywaydb.core.Flyway;
+import org.flywaydb.core.api.Location;
+import org.flywaydb.core.api.MigrationInfo;
+import org.flywaydb.core.api.callback.Callback;
+import org.flywaydb.core.api.callback.Context;
+import org.flywaydb.core.api.callback.Event;
+import org.flywaydb.core.api.configuration.Configuration;
+import org.flywaydb.core.api.configuration.FluentConfiguration;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/* Migrates many targets, databases or schemas of one database, with the same migration set. Targets run on a fixed pool
+ * of workers and every target gets its own Flyway on top of one SharedMigrationResolver. A per-server connection limit
+ * keeps schema-per-tenant targets from flooding one server, and below it the server's adaptive limiter backs off when its
+ * migrations slow down or fail. A failed target does not stop the others */
+
+class MultiTenantMigrator {
+    private static final Logger _logger = LogManager.getLogger(MultiTenantMigrator.class);
+    private static final int CONNECTIONS_PER_TARGET = 2; // Flyway's main connection and, on most databases, a migration connection
+    private static final String SUMMARY_FILE = "flyway-targets.csv";
+
+    private final Configuration _configuration;
+    private final String _user;
+    private final String _password;
+    private final int _workers;
+    private final int _maxConnections;
+    private final SharedMigrationResolver _resolver;
+    private final Map<String, Semaphore> _limits = new ConcurrentHashMap<>();
+    private final Map<String, Integer> _migrating = new ConcurrentHashMap<>(); // targets in flight per URL, whose pool is closed after the last
+
+    /* maxConnections bounds the connections open to one server at a time, 0 leaves it to the number of workers */
+    MultiTenantMigrator(Configuration configuration, String user, String password, int workers, int maxConnections) {
+        this._configuration = configuration;
+        this._user = user;
+        this._password = password;
+        this._workers = workers;
+        this._maxConnections = maxConnections <= 0 ? 0 : Math.max(CONNECTIONS_PER_TARGET, maxConnections);
+        SharedMigrationResolver resolver = new SharedMigrationResolver(configuration);
+        this._resolver = resolver.isShareable() ? resolver : null;
+    }
+
+    List<Result> migrate(List<Target> targets) {
+        int concurrency = Math.max(1, Math.min(_workers, targets.size()));
+        ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+        Map<Target, Future<Result>> futures = new LinkedHashMap<>();
+        List<Result> results = new ArrayList<>();
+        _logger.info("Migrating {} targets with {} workers", targets.size(), concurrency);
+        try {
+            for (Target target : targets) {
+                futures.put(target, pool.submit(() -> migrate(target)));
+            }
+            for (Map.Entry<Target, Future<Result>> entry : futures.entrySet()) {
+                try {
+                    results.add(entry.getValue().get());
+                } catch (ExecutionException e) {
+                    Result result = new Result(entry.getKey());
+                    result._error = e.getCause();
+                    results.add(result);
+                }
+            }
+        } catch (InterruptedException e) {
+            _logger.error("Interrupted while migrating the targets", e);
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+        }
+        return results;
+    }
+
+    private Result migrate(Target target) throws InterruptedException {
+        Result result = new Result(target);
+        Semaphore limit = _maxConnections == 0 ? null : _limits.computeIfAbsent(server(target._url), server -> new Semaphore(_maxConnections));
+        try (ConcurrencyLimiter.Permit permit = ConcurrencyLimiter.get(target._url, _workers).acquire("migrate")) {
+            if (limit != null) limit.acquire(CONNECTIONS_PER_TARGET);
+            long start = System.nanoTime();
+            _migrating.merge(target._url, 1, Integer::sum);
+            try (Timer.Context ignored = Metrics.phase("migrate.target").time()) {
+                FluentConfiguration configuration = Flyway.configure(_configuration.getClassLoader()).configuration(_configuration)
+                        .dataSource(ConnectionPool.get(target._url, _user, _password))
+                        .callbacks(result, new MigrationTrace(target.toString()));
+                if (target._schemas.length > 0) configuration.schemas(target._schemas);
+                if (_resolver != null) configuration.locations(new Location[0]).resolvers(_resolver).skipDefaultResolvers(true);
+                configuration.load().migrate();
+                permit.succeeded();
+            } catch (Exception e) {
+                result._error = e;
+            } finally {
+                /* the last target on a URL closes its pool, so finished targets keep no idle connections open */
+                _migrating.compute(target._url, (url, count) -> {
+                    if (count > 1) return count - 1;
+                    ConnectionPool.evict(url);
+                    return null;
+                });
+                if (limit != null) limit.release(CONNECTIONS_PER_TARGET);
+                result._millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            }
+        }
+        if (result._error != null) {
+            Metrics.counter("migrate", "targetsFailed").inc();
+            _logger.error("Exception caught migrating {}", target, result._error);
+        } else {
+            _logger.info("Migrated {}: {} migrations applied in {} ms", target, result._applied.size(), result._millis);
+        }
+        return result;
+    }
+
+    /* The server part of a URL, before its properties, so databases of one server share a connection limit like they share
+     * a ConcurrencyLimiter */
+    private static String server(String url) {
+        int properties = url.indexOf(';');
+        return properties < 0 ? url : url.substring(0, properties);
+    }
+
+    /* Logs one line per target and, with a report directory, writes the same as CSV */
+    static void summarize(List<Result> results, String reportDir) {
+        int failed = 0;
+        for (Result result : results) {
+            if (result._error != null) failed++;
+            _logger.info("{} | {} | {} applied {} | {} ms{}", result._target, result._error == null ? "OK" : "FAILED", result._applied.size(),
+                    result._applied, result._millis, result._error == null ? "" : " | " + result.describeError());
+        }
+        if (failed == 0) {
+            _logger.info("Migrated all {} targets", results.size());
+        } else {
+            _logger.warn("Migrated {} of {} targets, {} failed", results.size() - failed, results.size(), failed);
+        }
+        if (reportDir == null) return;
+        File summary = new File(reportDir, SUMMARY_FILE);
+        try (PrintWriter out = new PrintWriter(new FileWriter(summary))) {
+            out.println("target,schemas,status,applied,versions,elapsedMs,failedMigration,error");
+            for (Result result : results) {
+                out.println(String.join(",", csv(result._target._url), csv(String.join(";", result._target._schemas)),
+                        result._error == null ? "OK" : "FAILED", String.valueOf(result._applied.size()), csv(String.join(";", result._applied)),
+                        String.valueOf(result._millis), csv(result._failedMigration), csv(result._error == null ? null : result.describeError())));
+            }
+            _logger.info("Wrote migration summary {}", summary);
+        } catch (IOException e) {
+            _logger.error("Exception caught writing the migration summary {}", summary, e);
+        }
+    }
+
+    private static String csv(String value) {
+        if (value == null) return "";
+        return value.contains(",") || value.contains("\"") || value.contains("\n") ? "\"" + value.replace("\"", "\"\"") + "\"" : value;
+    }
+
+    /* One line per target: a connection URL, optionally followed by whitespace and the comma separated schemas to migrate.
+     * Blank lines and lines starting with # are skipped */
+    static List<Target> readTargets(File file) throws IOException {
+        List<Target> targets = new ArrayList<>();
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) continue;
+            String[] parts = trimmed.split("\\s+", 2);
+            targets.add(new Target(parts[0], parts.length > 1 ? parts[1].split("\\s*,\\s*") : new String[0]));
+        }
+        return targets;
+    }
+
+    static final class Target {
+        private final String _url;
+        private final String[] _schemas;
+
+        Target(String url, String... schemas) {
+            this._url = url;
+            this._schemas = schemas;
+        }
+
+        @Override
+        public String toString() {
+            return _schemas.length == 0 ? _url : _url + " " + String.join(",", _schemas);
+        }
+    }
+
+    /* Outcome of one target, filled in by Flyway's callbacks on the worker migrating it */
+    static final class Result implements Callback {
+        private final Target _target;
+        private final List<String> _applied = new ArrayList<>();
+        private String _failedMigration;
+        private Throwable _error;
+        private long _millis;
+        private long _migrationStart;
+
+        Result(Target target) {
+            this._target = target;
+        }
+
+        boolean isFailed() {
+            return _error != null;
+        }
+
+        private String describeError() {
+            String message = _error.getMessage() == null ? _error.getClass().getSimpleName() : _error.getMessage();
+            return message.trim().split("\\R", 2)[0];
+        }
+
+        @Override
+        public boolean supports(Event event, Context context) {
+            return event == Event.BEFORE_EACH_MIGRATE || event == Event.AFTER_EACH_MIGRATE || event == Event.AFTER_EACH_MIGRATE_ERROR;
+        }
+
+        @Override
+        public boolean canHandleInTransaction(Event event, Context context) {
+            return true;
+        }
+
+        @Override
+        public void handle(Event event, Context context) {
+            MigrationInfo info = context.getMigrationInfo();
+            String name = info.getVersion() == null ? info.getDescription() : info.getVersion().getVersion();
+            if (event == Event.BEFORE_EACH_MIGRATE) {
+                _migrationStart = System.nanoTime();
+            } else if (event == Event.AFTER_EACH_MIGRATE) {
+                _applied.add(name + " (" + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - _migrationStart) + " ms)");
+            } else {
+                _failedMigration = name;
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package db.flyway;
+
+import com.codahale.metrics.Timer;
+import db.metrics.Metrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.flywaydb.core.api.callback.Event;
+import org.flywaydb.core.api.configuration.Configuration;
+import org.flywaydb.core.api.migration.JavaMigration;
+import org.flywaydb.core.api.resolver.Context;
+import org.flywaydb.core.api.resolver.MigrationResolver;
+import org.flywaydb.core.api.resolver.ResolvedMigration;
+import org.flywaydb.core.internal.database.DatabaseFactory;
+import org.flywaydb.core.internal.jdbc.DatabaseType;
+import org.flywaydb.core.internal.jdbc.JdbcConnectionFactory;
+import org.flywaydb.core.internal.parser.ParsingContext;
+import org.flywaydb.core.internal.resolver.CompositeMigrationResolver;
+import org.flywaydb.core.internal.resource.LoadableResource;
+import org.flywaydb.core.internal.scanner.LocationScannerCache;
+import org.flywaydb.core.internal.scanner.ResourceNameCache;
+import org.flywaydb.core.internal.scanner.Scanner;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/* Scans the migration locations once and resolves the migrations once per database type, then hands the same
+ * ResolvedMigrations to every target of that type. Scripts are read, checksummed and split into statements on the
+ * first target; the others only execute them. Used with skipDefaultResolvers and no locations of their own */
+
+class SharedMigrationResolver implements MigrationResolver {
+    private static final Logger _logger = LogManager.getLogger(SharedMigrationResolver.class);
+    private static final String FLYWAY_PLACEHOLDER = "flyway:";
+
+    private final Configuration _configuration;
+    private final Scanner<JavaMigration> _scanner;
+    private final Map<DatabaseType, List<ResolvedMigration>> _resolved = new EnumMap<>(DatabaseType.class);
+
+    SharedMigrationResolver(Configuration configuration) {
+        this._configuration = configuration;
+        try (Timer.Context ignored = Metrics.phase("migrate.scan").time()) {
+            this._scanner = new Scanner<>(JavaMigration.class, Arrays.asList(configuration.getLocations()), configuration.getClassLoader(),
+                    configuration.getEncoding(), new ResourceNameCache(), new LocationScannerCache());
+        }
+    }
+
+    /* Migrations can only be shared when they do not depend on the target: no SQL callbacks, which Flyway finds through the
+     * locations each target would then have to rescan, and no built-in flyway:* placeholders, which vary per target */
+    boolean isShareable() {
+        for (LoadableResource resource : _scanner.getResources("", _configuration.getSqlMigrationSuffixes())) {
+            String name = resource.getFilename();
+            for (Event event : Event.values()) {
+                if (name.startsWith(event.getId())) {
+                    _logger.info("Migration set holds the SQL callback {}, each target resolves its own migrations", name);
+                    return false;
+                }
+            }
+            if (_configuration.isPlaceholderReplacement() && usesFlywayPlaceholder(resource, _configuration.getPlaceholderPrefix())) {
+                _logger.info("Migration {} uses per-target flyway placeholders, each target resolves its own migrations", name);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Collection<ResolvedMigration> resolveMigrations(Context context) {
+        DatabaseType type;
+        try (Connection connection = context.getConfiguration().getDataSource().getConnection()) {
+            type = DatabaseType.fromJdbcConnection(connection);
+        } catch (SQLException e) {
+            throw new IllegalStateException("Cannot determine the database type of a migration target", e);
+        }
+        return resolve(type, context);
+    }
+
+    private synchronized List<ResolvedMigration> resolve(DatabaseType type, Context context) {
+        List<ResolvedMigration> migrations = _resolved.get(type);
+        if (migrations != null) return migrations;
+        try (Timer.Context ignored = Metrics.phase("migrate.resolve").time()) {
+            Configuration configuration = context.getConfiguration();
+            JdbcConnectionFactory connectionFactory = new JdbcConnectionFactory(configuration.getDataSource(), configuration.getConnectRetries());
+            closeQuietly(connectionFactory.openConnection()); // the factory holds on to the connection it probed
+            ParsingContext parsingContext = new ParsingContext();
+            migrations = new CompositeMigrationResolver(_scanner, _scanner, _configuration,
+                    DatabaseFactory.createSqlScriptExecutorFactory(connectionFactory),
+                    DatabaseFactory.createSqlScriptFactory(connectionFactory, _configuration, parsingContext),
+                    parsingContext).resolveMigrations(context);
+            for (ResolvedMigration migration : migrations) {
+                migration.getExecutor().canExecuteInTransaction(); // parses SQL scripts now, before targets share them
+            }
+        }
+        _logger.info("Resolved {} migrations for {} targets", migrations.size(), type);
+        _resolved.put(type, migrations);
+        return migrations;
+    }
+
+    private static boolean usesFlywayPlaceholder(LoadableResource resource, String placeholderPrefix) {
+        StringBuilder content = new StringBuilder();
+        char[] buffer = new char[8192];
+        try (Reader reader = resource.read()) {
+            for (int read = reader.read(buffer); read >= 0; read = reader.read(buffer)) content.append(buffer, 0, read);
+        } catch (IOException e) {
+            return true;
+        }
+        return content.indexOf(placeholderPrefix + FLYWAY_PLACEHOLDER) >= 0;
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            _logger.warn("Exception caught closing the probe connection", e);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package db.jdbc;
+
+import com.codahale.metrics.Gauge;
+import db.metrics.Metrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/* Adaptive bound on the work in flight against one database server, shared by every parallel path of a run. Workers take
+ * a permit around each unit of work they send, a batch of changeSets, a key range, a schema lift or a migration, and block
+ * while the limit is used up. The limit follows AIMD: it grows by one for every limit's worth of successful work done while
+ * it was fully used, and is cut by BACKOFF_RATIO, at most once per limit's worth of work, when work fails or when the
+ * recent latency of a kind of work runs LATENCY_TOLERANCE times above its unloaded latency. The worker counts callers
+ * configure are the ceiling, so a healthy server sees the same concurrency as before. Permits must not be taken while
+ * holding one, or workers may wait on each other. Limits and work in flight are published as gauges per server, through
+ * the Reporter of the run the calling thread works for: in the clone service every job has its own metrics while the
+ * limiters are shared by all of them */
+
+public final class ConcurrencyLimiter {
+    private static final Logger _logger = LogManager.getLogger(ConcurrencyLimiter.class);
+    private static final Map<String, ConcurrencyLimiter> _limiters = new ConcurrentHashMap<>();
+    private static final Reporter DEFAULT_REPORTER = new Metrics.LimiterReporter();
+    private static final InheritableThreadLocal<Reporter> _reporter = new InheritableThreadLocal<>();
+    private static final double BACKOFF_RATIO = 0.7;
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final double SHORT_WEIGHT = 0.2; // about the last five samples
+    private static final double BASELINE_DRIFT = 0.002; // lets the unloaded latency follow a workload that got slower for good
+    private static final int WARMUP_SAMPLES = 20;
+
+    private final String _name;
+    private final Map<String, Latency> _latencies = new HashMap<>();
+    private int _ceiling;
+    private double _limit;
+    private int _inFlight;
+    private int _samplesSinceBackoff;
+
+    private ConcurrencyLimiter(String server) {
+        _name = server.replaceAll("[^A-Za-z0-9_.-]+", "_");
+    }
+
+    /* Makes the limiters report to the given Reporter for the calling thread and the threads it starts from now on; null
+     * goes back to the registry the limiters were loaded with */
+    public static void reportTo(Reporter reporter) {
+        _reporter.set(reporter);
+    }
+
+    private static Reporter reporter() {
+        Reporter reporter = _reporter.get();
+        return reporter != null ? reporter : DEFAULT_REPORTER;
+    }
+
+    /* Returns the limiter of the server the URL points at, raising its ceiling to at least the given one. URLs naming the
+     * same host and port share one limiter, whatever database, credentials or properties they carry */
+    public static ConcurrencyLimiter get(String url, int ceiling) {
+        ConcurrencyLimiter limiter = _limiters.computeIfAbsent(server(url), ConcurrencyLimiter::new);
+        limiter.raiseCeiling(Math.max(1, ceiling));
+        reporter().gauge((Gauge<Integer>) limiter::getLimit, "limiter", limiter._name, "limit");
+        reporter().gauge((Gauge<Integer>) limiter::getInFlight, "limiter", limiter._name, "inFlight");
+        return limiter;
+    }
+
+    public static ConcurrencyLimiter get(Connection connection, int ceiling) throws SQLException {
+        return get(connection.getMetaData().getURL(), ceiling);
+    }
+
+    /* The server part of a URL: the subprotocol, the host in lower case, the SQL Server instance and the port, the default
+     * one when the URL leaves it out. The driver may also take the host from properties, as in
+     * jdbc:sqlserver://;serverName=host. URLs without a host, such as in-memory ones, are kept up to their properties */
+    static String server(String url) {
+        int authority = url.indexOf("://");
+        if (authority < 0) {
+            int properties = url.indexOf(';');
+            return properties < 0 ? url : url.substring(0, properties);
+        }
+        String protocol = url.substring(0, authority).toLowerCase(Locale.ROOT);
+        String rest = url.substring(authority + 3);
+        int end = 0;
+        while (end < rest.length() && ";/?".indexOf(rest.charAt(end)) < 0) end++;
+        String host = rest.substring(rest.substring(0, end).lastIndexOf('@') + 1, end);
+        String port = null;
+        String instance = null;
+        int colon = host.lastIndexOf(':');
+        if (colon >= 0 && host.indexOf(']', colon) < 0) { // not inside an IPv6 literal
+            port = host.substring(colon + 1);
+            host = host.substring(0, colon);
+        }
+        int backslash = host.indexOf('\\');
+        if (backslash >= 0) {
+            instance = host.substring(backslash + 1);
+            host = host.substring(0, backslash);
+        }
+        for (String property : rest.substring(end).split(";")) {
+            int equals = property.indexOf('=');
+            if (equals < 0) continue;
+            String name = property.substring(0, equals).trim();
+            String value = property.substring(equals + 1).trim();
+            if (name.equalsIgnoreCase("serverName") && host.isEmpty()) host = value;
+            else if (name.equalsIgnoreCase("portNumber") && port == null) port = value;
+            else if (name.equalsIgnoreCase("instanceName") && instance == null) instance = value;
+        }
+        if (port == null && instance == null && protocol.equals("jdbc:sqlserver")) port = "1433";
+        return protocol + "://" + host.toLowerCase(Locale.ROOT) + (instance != null ? "\\" + instance.toLowerCase(Locale.ROOT) : "")
+                + (port != null ? ":" + port : "");
+    }
+
+    private synchronized void raiseCeiling(int ceiling) {
+        if (ceiling <= _ceiling) return;
+        _limit += ceiling - _ceiling;
+        _ceiling = ceiling;
+        notifyAll();
+    }
+
+    public synchronized int getLimit() {
+        return (int) _limit;
+    }
+
+    public synchronized int getInFlight() {
+        return _inFlight;
+    }
+
+    /* Blocks until the work fits under the limit. kind groups work of comparable latency, e.g. "apply.createIndex" or "copy.range" */
+    public Permit acquire(String kind) throws InterruptedException {
+        long started = System.nanoTime();
+        boolean waited = false;
+        boolean saturated;
+        synchronized (this) {
+            while (_inFlight >= (int) _limit) {
+                waited = true;
+                wait();
+            }
+            _inFlight++;
+            saturated = waited || _inFlight >= (int) _limit;
+        }
+        if (waited) reporter().phase("limiter.wait", System.nanoTime() - started);
+        return new Permit(kind, saturated);
+    }
+
+    private synchronized void release(String kind, long nanos, boolean succeeded, boolean saturated) {
+        _inFlight--;
+        _samplesSinceBackoff++;
+        if (!succeeded) {
+            backoff("failed " + kind);
+        } else if (_latencies.computeIfAbsent(kind, k -> new Latency()).sample(nanos)) {
+            backoff("slow " + kind);
+        } else if (saturated && _limit < _ceiling) {
+            _limit = Math.min(_ceiling, _limit + 1 / _limit);
+        }
+        notifyAll();
+    }
+
+    private void backoff(String reason) {
+        if (_samplesSinceBackoff < (int) _limit) return; // the work that saw the overload is still draining
+        double limit = Math.max(1, _limit * BACKOFF_RATIO);
+        if ((int) limit < (int) _limit) {
+            _logger.debug("Concurrency limit of {} cut from {} to {} after {} work", _name, (int) _limit, (int) limit, reason);
+            reporter().count("limiter", _name, "backoffs");
+        }
+        _limit = limit;
+        _samplesSinceBackoff = 0;
+    }
+
+    @Override
+    public String toString() {
+        return _name + " limit " + getLimit() + " of " + _ceiling;
+    }
+
+    /* Receives what the limiters measure */
+    public interface Reporter {
+        /* Registers the gauge unless one is already registered under the same name */
+        void gauge(Gauge<?> gauge, String... names);
+
+        void phase(String phase, long nanos);
+
+        void count(String... names);
+    }
+
+    /* Held around one unit of work. Work that does not call succeeded() before the permit is closed counts as failed */
+    public final class Permit implements AutoCloseable {
+        private final String _kind;
+        private final boolean _saturated;
+        private final long _started = System.nanoTime();
+        private boolean _succeeded;
+
+        private Permit(String kind, boolean saturated) {
+            _kind = kind;
+            _saturated = saturated;
+        }
+
+        public void succeeded() {
+            _succeeded = true;
+        }
+
+        @Override
+        public void close() {
+            release(_kind, System.nanoTime() - _started, _succeeded, _saturated);
+        }
+    }
+
+    /* Recent latency of one kind of work, an exponentially weighted average, against its unloaded latency, the lowest latency
+     * seen, which drifts up slowly so one lucky sample does not hold it down forever */
+    private static final class Latency {
+        private double _short;
+        private double _baseline;
+        private int _samples;
+
+        /* Returns true when the sample confirms that the work has slowed down well beyond its usual latency */
+        private boolean sample(long nanos) {
+            if (_samples++ == 0) {
+                _short = nanos;
+                _baseline = nanos;
+                return false;
+            }
+            _short += SHORT_WEIGHT * (nanos - _short);
+            _baseline = nanos < _baseline ? nanos : _baseline + BASELINE_DRIFT * (nanos - _baseline);
+            return _samples > WARMUP_SAMPLES && _short > LATENCY_TOLERANCE * _baseline;
+        }
+    }
+}
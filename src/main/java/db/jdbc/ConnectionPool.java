@@ -0,0 +1,278 @@
+package db.jdbc;
+
+import com.codahale.metrics.Timer;
+import db.metrics.Metrics;
+import db.metrics.Trace;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/* Small pool of physical connections to one URL and user, shared by every step of a run. Closing a borrowed connection
+ * hands it back: open transactions are rolled back and autoCommit, catalog and read-only state are restored before the
+ * next borrower sees it. Session state JDBC cannot reset, SET options such as IDENTITY_INSERT and temp tables, is not
+ * handed on: a connection that ran a statement changing it is closed instead of pooled. The pool never blocks; it opens a
+ * new connection when none is idle and keeps at most MAX_IDLE of them around afterwards. A connection idle for longer than
+ * VALIDATE_AFTER_NANOS is checked with isValid before it is handed out again, since the server or a firewall may have
+ * dropped it in the meantime. It is both a ConnectionSource for our workers and a DataSource for Flyway. While a Trace
+ * records, statements and metadata it hands out record their calls */
+
+public class ConnectionPool implements ConnectionSource, DataSource {
+    private static final Logger _logger = LogManager.getLogger(ConnectionPool.class);
+    private static final int MAX_IDLE = Math.max(8, Runtime.getRuntime().availableProcessors() * 2);
+    private static final long VALIDATE_AFTER_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+    private static final Map<String, ConnectionPool> _pools = new ConcurrentHashMap<>();
+    // a SET at the start of a statement, a #temp table, or a CREATE [LOCAL|GLOBAL] TEMP[ORARY] table
+    private static final Pattern SESSION_STATE = Pattern.compile("(^|;)\\s*SET\\s|\\b(TABLE|INTO)\\s+#|\\bCREATE\\s+((LOCAL|GLOBAL)\\s+)?TEMP(ORARY)?\\s",
+            Pattern.CASE_INSENSITIVE);
+
+    private final String _url;
+    private final String _user;
+    private final String _password;
+    private final Deque<PooledConnection> _idle = new ArrayDeque<>();
+    private int _opened;
+    private boolean _closed;
+
+    private ConnectionPool(String url, String user, String password) {
+        _url = url;
+        _user = user;
+        _password = password;
+    }
+
+    /* Returns the pool shared by all callers asking for the same URL and user */
+    public static ConnectionPool get(String url, String user, String password) {
+        return _pools.computeIfAbsent(url + "\u0000" + user, key -> new ConnectionPool(url, user, password));
+    }
+
+    /* Closes the idle connections to url and forgets its pools, so none of ours keeps the database in use while it is
+     * dropped. Connections still borrowed are closed when they are handed back */
+    public static void evict(String url) {
+        _pools.values().removeIf(pool -> {
+            if (!pool._url.equals(url)) return false;
+            pool.close();
+            return true;
+        });
+    }
+
+    public static void closeAll() {
+        _pools.values().forEach(ConnectionPool::close);
+        _pools.clear();
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        PooledConnection pooled;
+        synchronized (this) {
+            if (_closed) throw new SQLException("Connection pool for " + _url + " is closed");
+            pooled = _idle.pollFirst();
+        }
+        while (pooled != null && !isUsable(pooled)) {
+            closeQuietly(pooled.physical);
+            synchronized (this) {
+                pooled = _idle.pollFirst();
+            }
+        }
+        if (pooled == null) {
+            try (Timer.Context ignored = Metrics.phase("connect").time()) {
+                pooled = new PooledConnection(DriverRegistry.connect(_url, _user, _password));
+            }
+            int opened;
+            synchronized (this) {
+                opened = ++_opened;
+            }
+            _logger.debug("Opened connection {} to {}", opened, _url);
+        }
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, new Handle(pooled));
+    }
+
+    @Override
+    public Connection getConnection(String user, String password) throws SQLException {
+        return get(_url, user, password).getConnection();
+    }
+
+    public synchronized void close() {
+        _closed = true;
+        _idle.forEach(pooled -> closeQuietly(pooled.physical));
+        _logger.debug("Closed pool for {} after opening {} connections", _url, _opened);
+        _idle.clear();
+    }
+
+    private void release(PooledConnection pooled) {
+        if (pooled.sessionChanged) {
+            _logger.debug("Closing a connection to {} whose session state was changed", _url);
+            closeQuietly(pooled.physical);
+            return;
+        }
+        try {
+            if (pooled.physical.isClosed()) return;
+            if (!pooled.physical.getAutoCommit()) {
+                pooled.physical.rollback();
+                pooled.physical.setAutoCommit(true);
+            }
+            if (pooled.catalog != null && !pooled.catalog.equals(pooled.physical.getCatalog())) pooled.physical.setCatalog(pooled.catalog);
+            if (pooled.physical.isReadOnly()) pooled.physical.setReadOnly(false);
+        } catch (SQLException e) {
+            _logger.warn("Discarding a connection to {} that could not be reset", _url, e);
+            closeQuietly(pooled.physical);
+            return;
+        }
+        synchronized (this) {
+            if (!_closed && _idle.size() < MAX_IDLE) {
+                pooled.idleSince = System.nanoTime();
+                _idle.addFirst(pooled);
+                return;
+            }
+        }
+        closeQuietly(pooled.physical);
+    }
+
+    private boolean isUsable(PooledConnection pooled) {
+        try {
+            if (pooled.physical.isClosed()) return false;
+            if (System.nanoTime() - pooled.idleSince < VALIDATE_AFTER_NANOS) return true;
+            if (pooled.physical.isValid(VALIDATION_TIMEOUT_SECONDS)) return true;
+            _logger.debug("Discarding an idle connection to {} that is no longer valid", _url);
+            return false;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            _logger.warn("Exception caught closing a pooled connection", e);
+        }
+    }
+
+    private static final class PooledConnection {
+        final Connection physical;
+        final String catalog;
+        volatile boolean sessionChanged;
+        long idleSince = System.nanoTime();
+
+        PooledConnection(Connection physical) throws SQLException {
+            this.physical = physical;
+            this.catalog = physical.getCatalog();
+        }
+
+        void watch(Object sql) {
+            if (sql instanceof String && SESSION_STATE.matcher((String) sql).find()) sessionChanged = true;
+        }
+    }
+
+    /* Plain statements get their SQL only when it runs, so they are watched for statements changing the session state */
+    private static final class WatchedStatement implements InvocationHandler {
+        private final Object _statement;
+        private final PooledConnection _pooled;
+
+        private WatchedStatement(Object statement, PooledConnection pooled) {
+            _statement = statement;
+            _pooled = pooled;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (args != null && args.length > 0 && (method.getName().startsWith("execute") || "addBatch".equals(method.getName()))) _pooled.watch(args[0]);
+            try {
+                return method.invoke(_statement, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    /* Proxy handed to borrowers; close() returns the physical connection once and any later call fails like on a closed connection */
+    private final class Handle implements InvocationHandler {
+        private volatile PooledConnection _pooled;
+
+        Handle(PooledConnection pooled) {
+            _pooled = pooled;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    synchronized (this) {
+                        if (_pooled != null) release(_pooled);
+                        _pooled = null;
+                    }
+                    return null;
+                case "isClosed":
+                    return _pooled == null;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    PooledConnection pooled = _pooled;
+                    if (pooled == null) throw new SQLException("Connection is closed", "08003");
+                    Object result;
+                    try {
+                        result = method.invoke(pooled.physical, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                    if (result instanceof Statement) {
+                        if (args != null && args.length > 0) pooled.watch(args[0]);
+                        if ("createStatement".equals(method.getName())) {
+                            result = Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(), new Class<?>[]{Statement.class}, new WatchedStatement(result, pooled));
+                        }
+                    }
+                    return Trace.isEnabled() ? JdbcTracing.wrap(method, args, result) : result;
+            }
+        }
+    }
+
+    @Override
+    public PrintWriter getLogWriter() {
+        return null;
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) {
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) {
+    }
+
+    @Override
+    public int getLoginTimeout() {
+        return 0;
+    }
+
+    @Override
+    public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) return iface.cast(this);
+        throw new SQLException("Not a wrapper for " + iface.getName());
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) {
+        return iface.isInstance(this);
+    }
+}
@@ -0,0 +1,11 @@
+package db.jdbc;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/* Hands out JDBC connections to code that needs more than one of them, e.g. parallel workers */
+
+@FunctionalInterface
+public interface ConnectionSource {
+    Connection getConnection() throws SQLException;
+}
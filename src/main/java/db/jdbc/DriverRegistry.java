@@ -0,0 +1,85 @@
+package db.jdbc;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/* Loads each JDBC driver once per jar and class and registers a single DriverShim for it. The class loader stays open for
+ * the life of the process since drivers load further classes lazily. Connections are opened straight through the driver
+ * that first accepted a URL of the same subprotocol instead of walking every registered driver on each
+ * DriverManager.getConnection */
+
+public final class DriverRegistry {
+    private static final Logger _logger = LogManager.getLogger(DriverRegistry.class);
+    private static final ConcurrentMap<String, URLClassLoader> _loaders = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Driver> _drivers = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Driver> _driversBySubprotocol = new ConcurrentHashMap<>();
+
+    private DriverRegistry() {
+    }
+
+    /* Registers driverClass loaded from the jar at driverPath, or from the classpath when driverPath is null. Registering
+     * the same jar and class again returns the driver loaded the first time */
+    public static synchronized Driver register(String driverPath, String driverClass) throws SQLException {
+        String key = driverPath + "!" + driverClass;
+        Driver driver = _drivers.get(key);
+        if (driver != null) return driver;
+        try {
+            ClassLoader loader = driverPath == null ? DriverRegistry.class.getClassLoader() : loaderFor(driverPath);
+            driver = (Driver) Class.forName(driverClass, true, loader).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | MalformedURLException e) {
+            throw new SQLException("Cannot load driver " + driverClass + " from " + driverPath, e);
+        }
+        DriverManager.registerDriver(DriverShim.getInstance(driver));
+        _drivers.put(key, driver);
+        _logger.info("Driver {} was initialized OK", driverClass);
+        return driver;
+    }
+
+    public static Connection connect(String url, String user, String password) throws SQLException {
+        Properties info = new Properties();
+        if (user != null) info.put("user", user);
+        if (password != null) info.put("password", password);
+        Connection connection = driverFor(url).connect(url, info);
+        if (connection == null) throw new SQLException("No suitable driver found for " + url, "08001");
+        return connection;
+    }
+
+    /* Drivers accept URLs by their subprotocol, so one lookup serves every database, user and property of it. The key
+     * never holds the credentials some URLs carry */
+    private static Driver driverFor(String url) throws SQLException {
+        String subprotocol = subprotocol(url);
+        Driver driver = _driversBySubprotocol.get(subprotocol);
+        if (driver == null) {
+            driver = DriverManager.getDriver(url);
+            _driversBySubprotocol.put(subprotocol, driver);
+        }
+        return driver;
+    }
+
+    /* "jdbc:sqlserver" for jdbc:sqlserver://host;databaseName=x */
+    static String subprotocol(String url) {
+        int colon = url.indexOf(':', url.indexOf(':') + 1);
+        return (colon < 0 ? url : url.substring(0, colon)).toLowerCase(Locale.ROOT);
+    }
+
+    private static URLClassLoader loaderFor(String driverPath) throws MalformedURLException {
+        URLClassLoader loader = _loaders.get(driverPath);
+        if (loader == null) {
+            loader = new URLClassLoader(new URL[]{new URL(driverPath)});
+            _loaders.put(driverPath, loader);
+        }
+        return loader;
+    }
+}
@@ -1,4 +1,4 @@
-package db.liquibase;
+package db.jdbc;
 
 
 import java.sql.*;
@@ -0,0 +1,100 @@
+package db.jdbc;
+
+import db.metrics.Trace;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+/* While a Trace records, pooled connections hand out statements and metadata that record a span per execute call and per
+ * metadata query. The span is named by the SQL, or by the metadata call and the names it was asked about */
+
+final class JdbcTracing {
+
+    private JdbcTracing() {
+    }
+
+    /* Wraps what a Connection method returned when it is a statement or the metadata, and returns anything else as is */
+    static Object wrap(Method method, Object[] args, Object result) {
+        if (result instanceof Statement) {
+            String sql = args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : null;
+            return Proxy.newProxyInstance(JdbcTracing.class.getClassLoader(), new Class<?>[]{method.getReturnType()}, new TracedStatement(result, sql));
+        }
+        if (result instanceof DatabaseMetaData) {
+            return Proxy.newProxyInstance(JdbcTracing.class.getClassLoader(), new Class<?>[]{DatabaseMetaData.class}, new TracedMetaData((DatabaseMetaData) result));
+        }
+        return result;
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static final class TracedStatement implements InvocationHandler {
+        private final Object _statement;
+        private final String _preparedSql;
+        private String _batchSql;
+        private int _batched;
+
+        private TracedStatement(Object statement, String preparedSql) {
+            _statement = statement;
+            _preparedSql = preparedSql;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("addBatch".equals(name)) {
+                if (_batched++ == 0 && args != null && args.length > 0) _batchSql = (String) args[0];
+            } else if ("clearBatch".equals(name)) {
+                _batched = 0;
+            } else if (name.startsWith("execute")) {
+                String sql = args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : _preparedSql;
+                if ("executeBatch".equals(name) || "executeLargeBatch".equals(name)) {
+                    sql = "batch of " + _batched + ": " + (_batchSql != null ? _batchSql : _preparedSql);
+                    _batched = 0;
+                }
+                long start = Trace.begin();
+                try {
+                    return JdbcTracing.invoke(_statement, method, args);
+                } finally {
+                    Trace.end(Trace.JDBC, sql, start);
+                }
+            }
+            return JdbcTracing.invoke(_statement, method, args);
+        }
+    }
+
+    private static final class TracedMetaData implements InvocationHandler {
+        private final DatabaseMetaData _metaData;
+
+        private TracedMetaData(DatabaseMetaData metaData) {
+            _metaData = metaData;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getReturnType() != ResultSet.class) return JdbcTracing.invoke(_metaData, method, args);
+            long start = Trace.begin();
+            try {
+                return JdbcTracing.invoke(_metaData, method, args);
+            } finally {
+                StringBuilder name = new StringBuilder("metaData.").append(method.getName());
+                if (args != null) {
+                    for (Object arg : args) {
+                        if (arg instanceof String) name.append(' ').append(arg);
+                    }
+                }
+                Trace.end(Trace.JDBC, name.toString(), start);
+            }
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package db.liquibase;
+
+import com.codahale.metrics.Timer;
+import db.metrics.Metrics;
+import liquibase.CatalogAndSchema;
+import liquibase.database.AbstractJdbcDatabase;
+import liquibase.database.Database;
+import liquibase.database.core.H2Database;
+import liquibase.database.core.MSSQLDatabase;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.exception.DatabaseException;
+import liquibase.executor.jvm.ColumnMapRowMapper;
+import liquibase.snapshot.CachedRow;
+import liquibase.snapshot.DatabaseSnapshot;
+import liquibase.snapshot.InvalidExampleException;
+import liquibase.snapshot.JdbcDatabaseSnapshot;
+import liquibase.snapshot.SnapshotControl;
+import liquibase.snapshot.SnapshotGeneratorFactory;
+import liquibase.structure.DatabaseObject;
+import liquibase.structure.core.Schema;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/* JdbcDatabaseSnapshot whose metadata reads the foreign keys, indexes and primary keys of a whole schema with one catalog
+ * query each, the first time any table of the schema asks for them, and then answers every table from memory. Liquibase
+ * itself only does so on Oracle and DB2 and otherwise asks the driver once per table, which is quadratic on H2. The rows
+ * have the shape DatabaseMetaData returns, so Liquibase's own snapshot generators build the same model. Tables, columns,
+ * defaults and unique constraints are already read per schema by Liquibase and are left to it */
+
+class BulkCatalogSnapshot extends JdbcDatabaseSnapshot {
+    private static final Logger _logger = LogManager.getLogger(BulkCatalogSnapshot.class);
+
+    private static final String H2_FOREIGN_KEYS =
+            "SELECT PKTABLE_CATALOG PKTABLE_CAT, PKTABLE_SCHEMA PKTABLE_SCHEM, PKTABLE_NAME, PKCOLUMN_NAME, FKTABLE_CATALOG FKTABLE_CAT, " +
+            "FKTABLE_SCHEMA FKTABLE_SCHEM, FKTABLE_NAME, FKCOLUMN_NAME, ORDINAL_POSITION KEY_SEQ, UPDATE_RULE, DELETE_RULE, FK_NAME, PK_NAME, DEFERRABILITY " +
+            "FROM INFORMATION_SCHEMA.CROSS_REFERENCES WHERE FKTABLE_SCHEMA = ? " +
+            "ORDER BY FKTABLE_NAME, PKTABLE_CAT, PKTABLE_SCHEM, PKTABLE_NAME, FK_NAME, KEY_SEQ";
+    private static final String H2_INDEXES =
+            "SELECT TABLE_CATALOG TABLE_CAT, TABLE_SCHEMA TABLE_SCHEM, TABLE_NAME, NON_UNIQUE, TABLE_CATALOG INDEX_QUALIFIER, INDEX_NAME, " +
+            "INDEX_TYPE TYPE, ORDINAL_POSITION, COLUMN_NAME, ASC_OR_DESC, CARDINALITY, PAGES, FILTER_CONDITION, SORT_TYPE " +
+            "FROM INFORMATION_SCHEMA.INDEXES WHERE TABLE_SCHEMA = ? " +
+            "ORDER BY TABLE_NAME, NON_UNIQUE, TYPE, TABLE_SCHEM, INDEX_NAME, ORDINAL_POSITION";
+    private static final String H2_PRIMARY_KEYS =
+            "SELECT TABLE_CATALOG TABLE_CAT, TABLE_SCHEMA TABLE_SCHEM, TABLE_NAME, COLUMN_NAME, ORDINAL_POSITION KEY_SEQ, " +
+            "IFNULL(CONSTRAINT_NAME, INDEX_NAME) PK_NAME FROM INFORMATION_SCHEMA.INDEXES WHERE TABLE_SCHEMA = ? AND PRIMARY_KEY = TRUE " +
+            "ORDER BY TABLE_NAME, COLUMN_NAME";
+    // Liquibase's own per-table query, filtered on the schema only
+    private static final String MSSQL_FOREIGN_KEYS =
+            "SELECT convert(sysname, db_name()) AS PKTABLE_CAT, convert(sysname, schema_name(o1.schema_id)) AS PKTABLE_SCHEM, " +
+            "convert(sysname, o1.name) AS PKTABLE_NAME, convert(sysname, c1.name) AS PKCOLUMN_NAME, convert(sysname, db_name()) AS FKTABLE_CAT, " +
+            "convert(sysname, schema_name(o2.schema_id)) AS FKTABLE_SCHEM, convert(sysname, o2.name) AS FKTABLE_NAME, convert(sysname, c2.name) AS FKCOLUMN_NAME, " +
+            "isnull(convert(smallint, k.constraint_column_id), convert(smallint, 0)) AS KEY_SEQ, " +
+            "convert(smallint, CASE ObjectProperty(f.object_id, 'CnstIsUpdateCascade') WHEN 1 THEN 0 ELSE 1 END) AS UPDATE_RULE, " +
+            "convert(smallint, CASE ObjectProperty(f.object_id, 'CnstIsDeleteCascade') WHEN 1 THEN 0 ELSE 1 END) AS DELETE_RULE, " +
+            "convert(sysname, object_name(f.object_id)) AS FK_NAME, convert(sysname, i.name) AS PK_NAME, convert(smallint, 7) AS DEFERRABILITY " +
+            "FROM sys.foreign_keys f " +
+            "JOIN sys.foreign_key_columns k ON k.constraint_object_id = f.object_id " +
+            "JOIN sys.indexes i ON i.object_id = f.referenced_object_id AND i.index_id = f.key_index_id " +
+            "JOIN sys.objects o1 ON o1.object_id = f.referenced_object_id " +
+            "JOIN sys.objects o2 ON o2.object_id = f.parent_object_id " +
+            "JOIN sys.columns c1 ON c1.object_id = f.referenced_object_id AND c1.column_id = k.referenced_column_id " +
+            "JOIN sys.columns c2 ON c2.object_id = f.parent_object_id AND c2.column_id = k.parent_column_id " +
+            "WHERE o2.schema_id = SCHEMA_ID(?) ORDER BY 7, 9, 8";
+
+    private BulkMetaData _metaData; // no initializer: the super constructor already snapshots through getMetaDataFromCache
+
+    private BulkCatalogSnapshot(DatabaseObject[] examples, Database database, SnapshotControl snapshotControl) throws DatabaseException, InvalidExampleException {
+        super(examples, database, snapshotControl);
+    }
+
+    static DatabaseSnapshot create(CatalogAndSchema[] schemas, Database database, SnapshotControl snapshotControl) throws DatabaseException, InvalidExampleException {
+        if (!supports(database)) return SnapshotGeneratorFactory.getInstance().createSnapshot(schemas, database, snapshotControl);
+        DatabaseObject[] examples = new DatabaseObject[schemas.length];
+        for (int i = 0; i < schemas.length; i++) {
+            CatalogAndSchema schema = schemas[i].customize(database);
+            examples[i] = new Schema(schema.getCatalogName(), schema.getSchemaName());
+        }
+        return new BulkCatalogSnapshot(examples, database, snapshotControl);
+    }
+
+    static DatabaseSnapshot create(DatabaseObject[] examples, Database database, SnapshotControl snapshotControl) throws DatabaseException, InvalidExampleException {
+        if (!supports(database)) return SnapshotGeneratorFactory.getInstance().createSnapshot(examples, database, snapshotControl);
+        return new BulkCatalogSnapshot(examples, database, snapshotControl);
+    }
+
+    private static boolean supports(Database database) {
+        return database != null && database.getConnection() instanceof JdbcConnection
+                && (database instanceof H2Database || database instanceof MSSQLDatabase);
+    }
+
+    @Override
+    public CachingDatabaseMetaData getMetaDataFromCache() throws SQLException {
+        if (_metaData == null) {
+            Connection connection = ((JdbcConnection) getDatabase().getConnection()).getUnderlyingConnection();
+            _metaData = new BulkMetaData(getDatabase(), connection);
+        }
+        return _metaData;
+    }
+
+    private class BulkMetaData extends CachingDatabaseMetaData {
+        private final Database _database;
+        private final Connection _connection;
+        private final Map<String, Map<String, List<CachedRow>>> _loaded = new HashMap<>();
+
+        private BulkMetaData(Database database, Connection connection) throws SQLException {
+            super(database, connection.getMetaData());
+            this._database = database;
+            this._connection = connection;
+        }
+
+        @Override
+        public List<CachedRow> getForeignKeys(String catalogName, String schemaName, String tableName, String fkName) throws DatabaseException {
+            String sql = _database instanceof H2Database ? H2_FOREIGN_KEYS : MSSQL_FOREIGN_KEYS;
+            return select(load("foreignKeys", sql, "FKTABLE_NAME", catalogName, schemaName), tableName, "FK_NAME", fkName);
+        }
+
+        @Override
+        public List<CachedRow> getIndexInfo(String catalogName, String schemaName, String tableName, String indexName) throws DatabaseException, SQLException {
+            if (!(_database instanceof H2Database)) return super.getIndexInfo(catalogName, schemaName, tableName, indexName); // bulk already
+            return select(load("indexes", H2_INDEXES, "TABLE_NAME", catalogName, schemaName), tableName, "INDEX_NAME", indexName);
+        }
+
+        @Override
+        public List<CachedRow> getPrimaryKeys(String catalogName, String schemaName, String tableName) throws DatabaseException {
+            if (!(_database instanceof H2Database)) return super.getPrimaryKeys(catalogName, schemaName, tableName); // bulk already
+            return select(load("primaryKeys", H2_PRIMARY_KEYS, "TABLE_NAME", catalogName, schemaName), tableName, null, null);
+        }
+
+        /* Rows of the schema grouped by table, read on the first request */
+        private Map<String, List<CachedRow>> load(String what, String sql, String tableColumn, String catalogName, String schemaName) throws DatabaseException {
+            CatalogAndSchema catalogAndSchema = new CatalogAndSchema(catalogName, schemaName).customize(_database);
+            String schema = ((AbstractJdbcDatabase) _database).getJdbcSchemaName(catalogAndSchema);
+            String cacheKey = what + ":" + schema;
+            Map<String, List<CachedRow>> byTable = _loaded.get(cacheKey);
+            if (byTable != null) return byTable;
+            byTable = new LinkedHashMap<>();
+            ColumnMapRowMapper mapper = new TrimmingRowMapper();
+            int rows = 0;
+            try (Timer.Context ignored = Metrics.phase("snapshot.bulk").time();
+                 PreparedStatement statement = _connection.prepareStatement(sql)) {
+                statement.setString(1, schema);
+                statement.setFetchSize(_database.getFetchSize());
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        @SuppressWarnings("unchecked")
+                        CachedRow row = new CachedRow((Map) mapper.mapRow(resultSet, rows++));
+                        byTable.computeIfAbsent(key(row.getString(tableColumn)), table -> new ArrayList<>()).add(row);
+                    }
+                }
+            } catch (SQLException e) {
+                throw new DatabaseException(e);
+            }
+            Metrics.counter("snapshot", "bulkQueries").inc();
+            _logger.debug("Read {} rows of {} of schema {} in one query", rows, what, schema);
+            _loaded.put(cacheKey, byTable);
+            return byTable;
+        }
+
+        private List<CachedRow> select(Map<String, List<CachedRow>> byTable, String tableName, String nameColumn, String name) {
+            List<CachedRow> selected = new ArrayList<>();
+            if (tableName == null) {
+                byTable.values().forEach(selected::addAll);
+            } else {
+                List<CachedRow> rows = byTable.get(key(tableName));
+                if (rows != null) selected.addAll(rows);
+            }
+            if (name != null) selected.removeIf(row -> !key(name).equals(key(row.getString(nameColumn))));
+            return selected;
+        }
+
+        /* Same case folding as Liquibase's own result set cache */
+        private String key(String name) {
+            if (name == null || CatalogAndSchema.CatalogAndSchemaCase.ORIGINAL_CASE.equals(_database.getSchemaAndCatalogCase())) return name;
+            return _database.isCaseSensitive() ? name : name.toLowerCase();
+        }
+    }
+
+    /* Trims string values the way Liquibase does when it extracts driver result sets */
+    private static class TrimmingRowMapper extends ColumnMapRowMapper {
+        @Override
+        protected Object getColumnValue(ResultSet rs, int index) throws SQLException {
+            Object value = super.getColumnValue(rs, index);
+            return value instanceof String ? ((String) value).trim() : value;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package db.liquibase;
+
+import liquibase.change.Change;
+import liquibase.change.ChangeFactory;
+import liquibase.changelog.ChangeSet;
+import liquibase.changelog.DatabaseChangeLog;
+import liquibase.exception.UnexpectedLiquibaseException;
+import liquibase.parser.core.ParsedNodeException;
+import liquibase.resource.FileSystemResourceAccessor;
+import liquibase.resource.ResourceAccessor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/* Helpers for changeLogs that are assembled in memory rather than parsed from a file */
+
+final class ChangeLogs {
+    private static final ResourceAccessor RESOURCE_ACCESSOR = new FileSystemResourceAccessor();
+    private static final Set<String> DEFERRABLE_CHANGES = new HashSet<>(Arrays.asList("createIndex", "addForeignKeyConstraint", "addUniqueConstraint"));
+
+    private ChangeLogs() {
+    }
+
+    /* Gathers changeSets under a changeLog with the given physical path. ChangeSets that already belong to a changeLog are
+     * added as they are. Those coming out of DiffToChangeLog belong to none, which Liquibase.update requires and ChangeSet
+     * cannot be told afterwards, so they are re-created under this one, taking its path when they have none */
+    static DatabaseChangeLog inMemory(String physicalPath, List<ChangeSet> changeSets) {
+        DatabaseChangeLog changeLog = new DatabaseChangeLog(physicalPath);
+        for (ChangeSet changeSet : changeSets) {
+            changeLog.addChangeSet(changeSet.getChangeLog() != null ? changeSet
+                    : copy(changeSet, changeSet.getFilePath() != null ? changeSet.getFilePath() : physicalPath, changeLog, changeSet.getChanges()));
+        }
+        return changeLog;
+    }
+
+    /* Like inMemory, but over copies of the changeSets and of their changes, for a changeLog applied while others built from
+     * the same changeSets are: adding a change to a changeSet points the change back at it */
+    static DatabaseChangeLog inMemoryCopy(String physicalPath, List<ChangeSet> changeSets) {
+        DatabaseChangeLog changeLog = new DatabaseChangeLog(physicalPath);
+        for (ChangeSet changeSet : changeSets) {
+            changeLog.addChangeSet(copy(changeSet, changeSet.getFilePath() != null ? changeSet.getFilePath() : physicalPath, changeLog,
+                    copy(changeSet.getChanges()), copy(changeSet.getRollback().getChanges())));
+        }
+        return changeLog;
+    }
+
+    /* Re-creates changeSet with other changes, keeping its contexts, labels, dbms, preconditions, comments and rollback */
+    static ChangeSet copy(ChangeSet changeSet, String filePath, DatabaseChangeLog changeLog, List<Change> changes) {
+        return copy(changeSet, filePath, changeLog, changes, changeSet.getRollback().getChanges());
+    }
+
+    private static ChangeSet copy(ChangeSet changeSet, String filePath, DatabaseChangeLog changeLog, List<Change> changes, List<Change> rollbackChanges) {
+        ChangeSet copy = new ChangeSet(changeSet.getId(), changeSet.getAuthor(), changeSet.isAlwaysRun(), changeSet.isRunOnChange(), filePath,
+                changeSet.getContexts() == null || changeSet.getContexts().isEmpty() ? null : changeSet.getContexts().toString(),
+                changeSet.getDbmsSet() == null || changeSet.getDbmsSet().isEmpty() ? null : String.join(",", changeSet.getDbmsSet()),
+                changeSet.isRunInTransaction(), changeSet.getObjectQuotingStrategy(), changeLog);
+        copy.setLabels(changeSet.getLabels());
+        copy.setComments(changeSet.getComments());
+        copy.setFailOnError(changeSet.getFailOnError());
+        copy.setPreconditions(changeSet.getPreconditions());
+        copy.setIgnore(changeSet.isIgnore());
+        changes.forEach(copy::addChange);
+        rollbackChanges.forEach(copy::addRollbackChange);
+        return copy;
+    }
+
+    /* Round trips every change through the form the changeLog parser and serializers share */
+    private static List<Change> copy(List<Change> changes) {
+        List<Change> copies = new ArrayList<>(changes.size());
+        for (Change change : changes) {
+            try {
+                Change copy = ChangeFactory.getInstance().create(ChangeFactory.getInstance().getChangeMetaData(change).getName());
+                copy.load(change.serialize(), RESOURCE_ACCESSOR);
+                copies.add(copy);
+            } catch (ParsedNodeException e) {
+                throw new UnexpectedLiquibaseException("Cannot copy " + change.getDescription(), e);
+            }
+        }
+        return copies;
+    }
+
+    /* Splits a changeLog into the changeSets a data load needs (tables, primary keys, sequences, views...) and the secondary
+     * indexes and constraints that can be built once the data is in. Both parts keep the original changeLog path and
+     * parameters, and hold the original changeSets */
+    static DatabaseChangeLog[] deferIndexesAndConstraints(DatabaseChangeLog changeLog) {
+        List<ChangeSet> immediate = new ArrayList<>();
+        List<ChangeSet> deferred = new ArrayList<>();
+        for (ChangeSet changeSet : changeLog.getChangeSets()) {
+            (isDeferrable(changeSet) ? deferred : immediate).add(changeSet);
+        }
+        return new DatabaseChangeLog[]{part(changeLog, immediate), part(changeLog, deferred)};
+    }
+
+    private static DatabaseChangeLog part(DatabaseChangeLog changeLog, List<ChangeSet> changeSets) {
+        DatabaseChangeLog part = inMemory(changeLog.getPhysicalFilePath(), changeSets);
+        part.setChangeLogParameters(changeLog.getChangeLogParameters());
+        return part;
+    }
+
+    private static boolean isDeferrable(ChangeSet changeSet) {
+        if (changeSet.getChanges().isEmpty() || changeSet.getPreconditions() != null) return false;
+        for (Change change : changeSet.getChanges()) {
+            if (!DEFERRABLE_CHANGES.contains(ChangeFactory.getInstance().getChangeMetaData(change).getName())) return false;
+        }
+        return true;
+    }
+}
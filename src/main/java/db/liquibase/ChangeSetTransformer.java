@@ -0,0 +1,223 @@
+package db.liquibase;
+
+import com.codahale.metrics.Timer;
+import db.metrics.Metrics;
+import liquibase.change.Change;
+import liquibase.change.ChangeFactory;
+import liquibase.changelog.ChangeSet;
+import liquibase.serializer.LiquibaseSerializable;
+import liquibase.util.ObjectUtil;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/* Rewrites lifted changeSets before they are serialized, so the written changeLog, JSON or XML, needs no second parse.
+ * Rules are given as a comma separated spec and all of them are applied in one walk over the changes and their columns:
+ *
+ *     dropRemarks              drops table and column remarks
+ *     catalogSuffix=Clone      appends Clone to every catalog name
+ *     catalog=SRC:DST          renames catalog SRC to DST
+ *     schema=dbo:app           renames schema dbo to app
+ *     type=NVARCHAR:VARCHAR    maps a column type by its name, keeping its size, e.g. NVARCHAR(50) becomes VARCHAR(50);
+ *                              a target with its own size replaces the whole type, e.g. type=MONEY:DECIMAL(19,4)
+ *     drop=createView          drops changes of that Liquibase change type, and changeSets left without changes
+ *
+ * Renames and the suffix apply to the catalog and schema of an object and of the objects it references. Rules on one
+ * field run in the order given. An instance may be shared by concurrent lifts */
+
+class ChangeSetTransformer {
+    static final String DROP_REMARKS = "dropRemarks";
+    static final String CATALOG_SUFFIX = "catalogSuffix";
+    static final String CATALOG = "catalog";
+    static final String SCHEMA = "schema";
+    static final String TYPE = "type";
+    static final String DROP = "drop";
+    private static final Set<String> TYPE_FIELDS = new HashSet<>(Arrays.asList("type", "newDataType", "columnDataType"));
+    private static final Logger _logger = LogManager.getLogger(ChangeSetTransformer.class);
+
+    private final List<FieldRule> _fieldRules = new ArrayList<>();
+    private final Set<String> _droppedChanges = new HashSet<>();
+    private final Set<String> _ruleNames = new LinkedHashSet<>();
+
+    private ChangeSetTransformer() {
+    }
+
+    /* Builds the transformer a spec describes; a null or empty spec transforms nothing */
+    static ChangeSetTransformer parse(String spec) {
+        ChangeSetTransformer transformer = new ChangeSetTransformer();
+        if (spec == null) return transformer;
+        for (String rule : split(spec)) {
+            int eq = rule.indexOf('=');
+            String name = (eq < 0 ? rule : rule.substring(0, eq)).trim();
+            String argument = eq < 0 ? null : rule.substring(eq + 1).trim();
+            if (name.isEmpty()) continue;
+            if (DROP_REMARKS.equals(name)) {
+                transformer.addFieldRule(DROP_REMARKS, field -> "remarks".equals(field), value -> null);
+            } else if (CATALOG_SUFFIX.equals(name)) {
+                String suffix = required(rule, argument);
+                transformer.addFieldRule(CATALOG_SUFFIX, ChangeSetTransformer::isCatalogField, value -> value + suffix);
+            } else if (CATALOG.equals(name) || SCHEMA.equals(name)) {
+                String[] mapping = mapping(rule, argument);
+                transformer.addFieldRule(name + ":" + mapping[0], CATALOG.equals(name) ? ChangeSetTransformer::isCatalogField : ChangeSetTransformer::isSchemaField,
+                        value -> value.equalsIgnoreCase(mapping[0]) ? mapping[1] : value);
+            } else if (TYPE.equals(name)) {
+                String[] mapping = mapping(rule, argument);
+                transformer.addFieldRule(TYPE + ":" + mapping[0], TYPE_FIELDS::contains, value -> mapType(value, mapping[0], mapping[1]));
+            } else if (DROP.equals(name)) {
+                transformer._droppedChanges.add(required(rule, argument));
+                transformer._ruleNames.add(DROP);
+            } else {
+                throw new IllegalArgumentException("Unknown transform rule [" + rule + "]");
+            }
+        }
+        return transformer;
+    }
+
+    boolean isEmpty() {
+        return _fieldRules.isEmpty() && _droppedChanges.isEmpty();
+    }
+
+    /* Applies the rules to the changeSets and returns them. Fields are rewritten in place; a changeSet losing changes is
+     * re-created with the ones left, or left out when none are. Every change is visited once, whatever the number of rules */
+    List<ChangeSet> apply(List<ChangeSet> changeSets) {
+        if (isEmpty()) return changeSets;
+        Map<String, long[]> counts = new LinkedHashMap<>();
+        _ruleNames.forEach(rule -> counts.put(rule, new long[1]));
+        List<ChangeSet> transformed = new ArrayList<>(changeSets.size());
+        try (Timer.Context ignored = Metrics.phase("transform").time()) {
+            for (ChangeSet changeSet : changeSets) {
+                List<Change> kept = new ArrayList<>(changeSet.getChanges().size());
+                for (Change change : changeSet.getChanges()) {
+                    if (!_droppedChanges.isEmpty() && _droppedChanges.contains(ChangeFactory.getInstance().getChangeMetaData(change).getName())) {
+                        counts.get(DROP)[0]++;
+                        continue;
+                    }
+                    transform(change, counts);
+                    kept.add(change);
+                }
+                if (kept.size() == changeSet.getChanges().size()) {
+                    transformed.add(changeSet);
+                } else if (!kept.isEmpty()) {
+                    transformed.add(ChangeLogs.copy(changeSet, changeSet.getFilePath(), changeSet.getChangeLog(), kept));
+                }
+            }
+        }
+        StringBuilder summary = new StringBuilder();
+        counts.forEach((rule, count) -> {
+            Metrics.counter("transform", rule).inc(count[0]);
+            summary.append(summary.length() == 0 ? "" : ", ").append(rule).append(' ').append(count[0]);
+        });
+        _logger.info("Transformed {} changeSets: {}", transformed.size(), summary);
+        return transformed;
+    }
+
+    private void addFieldRule(String name, FieldMatcher matcher, ValueRewrite rewrite) {
+        _fieldRules.add(new FieldRule(name, matcher, rewrite));
+        _ruleNames.add(name);
+    }
+
+    /* Rewrites the fields of a change, or of a column or constraint nested in it, and descends into nested ones */
+    private void transform(LiquibaseSerializable object, Map<String, long[]> counts) {
+        for (String field : object.getSerializableFields()) {
+            Object value = object.getSerializableFieldValue(field);
+            if (value == null) continue;
+            if (value instanceof LiquibaseSerializable) {
+                transform((LiquibaseSerializable) value, counts);
+            } else if (value instanceof Collection) {
+                for (Object element : (Collection<?>) value) {
+                    if (element instanceof LiquibaseSerializable) transform((LiquibaseSerializable) element, counts);
+                }
+            } else if (value instanceof String) {
+                String rewritten = (String) value;
+                for (FieldRule rule : _fieldRules) {
+                    if (rewritten == null || !rule._matcher.matches(field)) continue;
+                    String next = rule._rewrite.rewrite(rewritten);
+                    if (!rewritten.equals(next)) {
+                        rewritten = next;
+                        counts.get(rule._name)[0]++;
+                    }
+                }
+                if (rewritten != value) ObjectUtil.setProperty(object, field, rewritten);
+            }
+        }
+    }
+
+    private static boolean isCatalogField(String field) {
+        return "catalogName".equals(field) || field.endsWith("CatalogName");
+    }
+
+    private static boolean isSchemaField(String field) {
+        return "schemaName".equals(field) || field.endsWith("SchemaName");
+    }
+
+    /* Replaces the name of type, matched without case or brackets, keeping its size unless the target has one */
+    static String mapType(String type, String from, String to) {
+        String trimmed = type.trim();
+        int end = 0;
+        while (end < trimmed.length() && trimmed.charAt(end) != '(' && !Character.isWhitespace(trimmed.charAt(end))) end++;
+        String name = trimmed.substring(0, end).replace("[", "").replace("]", "");
+        if (!name.toUpperCase(Locale.ROOT).equals(from.toUpperCase(Locale.ROOT))) return type;
+        return to.indexOf('(') >= 0 ? to : to + trimmed.substring(end);
+    }
+
+    /* Splits the spec at commas outside parentheses, so a type target may carry a precision and scale */
+    private static List<String> split(String spec) {
+        List<String> rules = new ArrayList<>();
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i < spec.length(); i++) {
+            char c = spec.charAt(i);
+            if (c == '(') depth++;
+            else if (c == ')') depth = Math.max(0, depth - 1);
+            else if (c == ',' && depth == 0) {
+                rules.add(spec.substring(start, i));
+                start = i + 1;
+            }
+        }
+        rules.add(spec.substring(start));
+        return rules;
+    }
+
+    private static String required(String rule, String argument) {
+        if (argument == null || argument.isEmpty()) throw new IllegalArgumentException("Transform rule [" + rule + "] needs a value");
+        return argument;
+    }
+
+    private static String[] mapping(String rule, String argument) {
+        String[] mapping = required(rule, argument).split(":", 2);
+        if (mapping.length != 2 || mapping[0].trim().isEmpty() || mapping[1].trim().isEmpty()) {
+            throw new IllegalArgumentException("Transform rule [" + rule + "] needs a from:to value");
+        }
+        return new String[]{mapping[0].trim(), mapping[1].trim()};
+    }
+
+    private interface FieldMatcher {
+        boolean matches(String field);
+    }
+
+    private interface ValueRewrite {
+        String rewrite(String value);
+    }
+
+    private static final class FieldRule {
+        private final String _name;
+        private final FieldMatcher _matcher;
+        private final ValueRewrite _rewrite;
+
+        private FieldRule(String name, FieldMatcher matcher, ValueRewrite rewrite) {
+            _name = name;
+            _matcher = matcher;
+            _rewrite = rewrite;
+        }
+    }
+}
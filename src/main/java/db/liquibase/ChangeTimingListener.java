@@ -0,0 +1,46 @@
+package db.liquibase;
+
+import db.metrics.Metrics;
+import db.metrics.Trace;
+import liquibase.change.Change;
+import liquibase.change.ChangeFactory;
+import liquibase.changelog.ChangeSet;
+import liquibase.changelog.DatabaseChangeLog;
+import liquibase.changelog.visitor.AbstractChangeExecListener;
+import liquibase.database.Database;
+
+import java.util.concurrent.TimeUnit;
+
+/* Records how long each change Liquibase applies takes, as an apply.<changeType> phase in the shared registry, and each
+ * changeSet as a span on the trace */
+
+class ChangeTimingListener extends AbstractChangeExecListener {
+    private long _started;
+    private long _changeSetStarted;
+
+    @Override
+    public void willRun(ChangeSet changeSet, DatabaseChangeLog changeLog, Database database, ChangeSet.RunStatus runStatus) {
+        _changeSetStarted = Trace.begin();
+    }
+
+    @Override
+    public void willRun(Change change, ChangeSet changeSet, DatabaseChangeLog changeLog, Database database) {
+        _started = System.nanoTime();
+    }
+
+    @Override
+    public void ran(Change change, ChangeSet changeSet, DatabaseChangeLog changeLog, Database database) {
+        Metrics.phase("apply." + ChangeFactory.getInstance().getChangeMetaData(change).getName()).update(System.nanoTime() - _started, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void ran(ChangeSet changeSet, DatabaseChangeLog changeLog, Database database, ChangeSet.ExecType execType) {
+        Metrics.counter("apply", "changeSets").inc();
+        Trace.end(Trace.CHANGESET, changeSet.getId(), _changeSetStarted);
+    }
+
+    @Override
+    public void runFailed(ChangeSet changeSet, DatabaseChangeLog changeLog, Database database, Exception exception) {
+        Trace.end(Trace.CHANGESET, changeSet.getId() + " (failed)", _changeSetStarted);
+    }
+}
@@ -0,0 +1,149 @@
+package db.liquibase;
+
+import com.codahale.metrics.Timer;
+import db.metrics.Metrics;
+import liquibase.changelog.ChangeSet;
+import liquibase.parser.core.xml.XMLChangeLogSAXParser;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.util.DefaultPrettyPrinter;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/* Writes a changeLog as numbered chunk files of at most chunkSize changeSets each, plus a master changeLog that includes
+ * them in order. Chunks follow the changeLog order, so a chunk only depends on the ones before it, and each is a complete
+ * changeLog that can be applied or shipped on its own. Only one chunk is ever held in serialized form. The chunks go into
+ * a directory named after the master, next to it, e.g. LiquiBaseChangeLog_dbo/LiquiBaseChangeLog_dbo-0001.json */
+
+class ChunkedChangeLogWriter implements Closeable {
+    private static final Logger _logger = LogManager.getLogger(ChunkedChangeLogWriter.class);
+
+    /* Serializes one chunk, for instance with a Liquibase ChangeLogSerializer followed by a rewrite of its output */
+    interface ChunkSerializer {
+        void write(List<ChangeSet> changeSets, OutputStream out) throws IOException;
+    }
+
+    private final File _master;
+    private final File _directory;
+    private final String _baseName;
+    private final String _extension;
+    private final int _chunkSize;
+    private final ChunkSerializer _serializer;
+    private final List<ChangeSet> _pending = new ArrayList<>();
+    private final List<File> _chunks = new ArrayList<>();
+    private int _changeSets;
+
+    ChunkedChangeLogWriter(File master, int chunkSize, ChunkSerializer serializer) throws IOException {
+        String name = master.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot < 0) throw new IllegalArgumentException("Master changeLog " + master + " has no extension to pick its format by");
+        this._master = master;
+        this._baseName = name.substring(0, dot);
+        this._extension = name.substring(dot + 1).toLowerCase();
+        if (!"json".equals(_extension) && !"xml".equals(_extension)) throw new IllegalArgumentException("Chunked changeLogs are written as json or xml, not " + _extension);
+        this._directory = new File(master.getAbsoluteFile().getParentFile(), _baseName);
+        this._chunkSize = Math.max(1, chunkSize);
+        this._serializer = serializer;
+        Files.createDirectories(_directory.toPath());
+        File[] stale = _directory.listFiles((dir, file) -> file.startsWith(_baseName + "-") && file.endsWith("." + _extension));
+        if (stale != null) {
+            for (File file : stale) Files.delete(file.toPath()); // left by a previous, larger run
+        }
+    }
+
+    void add(ChangeSet changeSet) throws IOException {
+        _pending.add(changeSet);
+        _changeSets++;
+        if (_pending.size() >= _chunkSize) flush();
+    }
+
+    void addAll(List<ChangeSet> changeSets) throws IOException {
+        for (ChangeSet changeSet : changeSets) add(changeSet);
+    }
+
+    List<File> getChunks() {
+        return _chunks;
+    }
+
+    File getDirectory() {
+        return _directory;
+    }
+
+    private void flush() throws IOException {
+        if (_pending.isEmpty()) return;
+        File chunk = new File(_directory, String.format("%s-%04d.%s", _baseName, _chunks.size() + 1, _extension));
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(chunk));
+             Timer.Context ignored = Metrics.phase("changelog.chunk").time()) {
+            _serializer.write(_pending, out);
+        }
+        _chunks.add(chunk);
+        _pending.clear();
+        Metrics.counter("changelog", "chunks").inc();
+    }
+
+    /* Writes the last chunk and then the master, through a temp file so a reader never sees a master without its chunks */
+    @Override
+    public void close() throws IOException {
+        flush();
+        File tmp = new File(_master.getAbsoluteFile().getParentFile(), _master.getName() + ".tmp");
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp))) {
+            if ("json".equals(_extension)) {
+                writeJsonMaster(out);
+            } else {
+                writeXmlMaster(out);
+            }
+        }
+        Files.move(tmp.toPath(), _master.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        _logger.info("Wrote {} changeSets as {} chunks of at most {} under {}", _changeSets, _chunks.size(), _chunkSize, _master);
+    }
+
+    private void writeJsonMaster(OutputStream out) throws IOException {
+        try (JsonGenerator jg = new JsonFactory().createJsonGenerator(out, JsonEncoding.UTF8)) {
+            jg.setPrettyPrinter(new DefaultPrettyPrinter());
+            jg.writeStartObject();
+            jg.writeArrayFieldStart("databaseChangeLog");
+            for (File chunk : _chunks) {
+                jg.writeStartObject();
+                jg.writeObjectFieldStart("include");
+                jg.writeStringField("file", includePath(chunk));
+                jg.writeBooleanField("relativeToChangelogFile", true);
+                jg.writeEndObject();
+                jg.writeEndObject();
+            }
+            jg.writeEndArray();
+            jg.writeEndObject();
+        }
+    }
+
+    private void writeXmlMaster(OutputStream out) {
+        String version = XMLChangeLogSAXParser.getSchemaVersion();
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        writer.println("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>");
+        writer.println("<databaseChangeLog xmlns=\"http://www.liquibase.org/xml/ns/dbchangelog\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"");
+        writer.println("        xsi:schemaLocation=\"http://www.liquibase.org/xml/ns/dbchangelog http://www.liquibase.org/xml/ns/dbchangelog/dbchangelog-" + version + ".xsd\">");
+        for (File chunk : _chunks) {
+            writer.println("    <include file=\"" + includePath(chunk).replace("&", "&amp;").replace("\"", "&quot;").replace("<", "&lt;") + "\" relativeToChangelogFile=\"true\"/>");
+        }
+        writer.println("</databaseChangeLog>");
+        writer.flush();
+    }
+
+    private String includePath(File chunk) {
+        return _baseName + "/" + chunk.getName();
+    }
+}
@@ -0,0 +1,382 @@
+package db.liquibase;
+
+import com.codahale.metrics.Timer;
+import db.metrics.Metrics;
+import liquibase.change.CheckSum;
+import liquibase.changelog.ChangeLogParameters;
+import liquibase.changelog.ChangeSet;
+import liquibase.changelog.DatabaseChangeLog;
+import liquibase.parser.ChangeLogParser;
+import liquibase.parser.ChangeLogParserFactory;
+import liquibase.parser.core.ParsedNode;
+import liquibase.parser.core.ParsedNodeException;
+import liquibase.parser.core.yaml.YamlChangeLogParser;
+import liquibase.resource.ResourceAccessor;
+import liquibase.util.LiquibaseUtil;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.constructor.SafeConstructor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/* On-disk cache of parsed JSON/YAML changeLogs. An entry holds the value tree the Liquibase parser builds from the file,
+ * in a compact binary form where every distinct string is written once, together with the checksum of each changeSet.
+ * Entries are keyed by a digest of the file content and the Liquibase version, so an edited file or an upgrade simply
+ * misses and writes a new entry. A hit skips the text parse and the MD5 checksums: changeSets come back memoized */
+
+class CompiledChangeLogCache {
+    private static final Logger _logger = LogManager.getLogger(CompiledChangeLogCache.class);
+    private static final int MAGIC = 0x4c42434c; // "LBCL"
+    private static final int FORMAT = 1;
+    private static final String ROOT = "databaseChangeLog";
+    // changes and entries reading other files, which count towards the checksums but not towards the key
+    private static final Set<String> FILE_REFERENCES = new HashSet<>(Arrays.asList("include", "includeAll", "sqlFile", "loadData", "loadUpdateData", "path"));
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte STRING_REF = 2;
+    private static final byte INT = 3;
+    private static final byte LONG = 4;
+    private static final byte BIG_INTEGER = 5;
+    private static final byte DOUBLE = 6;
+    private static final byte TRUE = 7;
+    private static final byte FALSE = 8;
+    private static final byte MAP = 9;
+    private static final byte LIST = 10;
+
+    private final File _dir;
+
+    CompiledChangeLogCache(File dir) {
+        this._dir = dir;
+        if (!_dir.isDirectory() && !_dir.mkdirs()) {
+            _logger.warn("Cannot create changeLog cache directory {}", _dir.getAbsolutePath());
+        }
+    }
+
+    /* Returns the changeLog at path, from the cache when the file is unchanged. Formats other than JSON/YAML, files using
+     * properties or ${} parameters whose values depend on the run, files including others or reading SQL and CSV files
+     * the key does not cover, and values the entry format has no tag for, such as unquoted YAML timestamps, go through the
+     * regular parser uncached */
+    DatabaseChangeLog parse(String path, ChangeLogParameters parameters, ResourceAccessor accessor) throws Exception {
+        try (Timer.Context ignored = Metrics.phase("changelog.parse").time()) {
+            ChangeLogParser parser = ChangeLogParserFactory.getInstance().getParser(path, accessor);
+            File file = new File(path);
+            if (!(parser instanceof YamlChangeLogParser) || !file.isFile()) return parser.parse(path, parameters, accessor);
+
+            byte[] content = Files.readAllBytes(file.toPath());
+            String key = file.getName() + "_" + digest(content).substring(0, 16);
+            Entry cached = load(key);
+            if (cached != null) {
+                _logger.info("ChangeLog cache hit for {}, {} checksums precomputed", path, cached._checkSums.size());
+                return build(path, cached, parameters, accessor);
+            }
+
+            List<Object> root = readTree(content);
+            if (root == null) {
+                _logger.info("ChangeLog {} uses properties, parameters or other files, parsing it without the cache", path);
+                return parser.parse(path, parameters, accessor);
+            }
+            byte[] tree;
+            try {
+                tree = encode(root); // before load, which may rewrite values in place
+            } catch (IOException e) {
+                _logger.info("ChangeLog {} holds values the cache cannot store, parsing it without the cache: {}", path, e.getMessage());
+                return parser.parse(path, parameters, accessor);
+            }
+            DatabaseChangeLog changeLog = build(path, new Entry(root, new HashMap<>()), parameters, accessor);
+            Map<String, String> checkSums = new LinkedHashMap<>();
+            try (Timer.Context ignoredChecksums = Metrics.phase("changelog.checksum").time()) {
+                for (ChangeSet changeSet : changeLog.getChangeSets()) {
+                    checkSums.put(checkSumKey(changeSet), changeSet.generateCheckSum().toString());
+                }
+            }
+            store(key, tree, checkSums);
+            _logger.info("ChangeLog cache miss for {}, compiled {} changeSets", path, checkSums.size());
+            return changeLog;
+        }
+    }
+
+    /* Mirrors YamlChangeLogParser for a file without property entries */
+    private static DatabaseChangeLog build(String path, Entry entry, ChangeLogParameters parameters, ResourceAccessor accessor) throws Exception {
+        CompiledChangeLog changeLog = new CompiledChangeLog(path, entry._checkSums);
+        changeLog.setChangeLogParameters(parameters);
+        changeLog.load(new ParsedNode(null, ROOT).setValue(entry._root), accessor);
+        return changeLog;
+    }
+
+    /* Reads the file the way YamlChangeLogParser does, or returns null when the content is not safe to cache */
+    @SuppressWarnings("unchecked")
+    private static List<Object> readTree(byte[] content) {
+        if (new String(content, StandardCharsets.UTF_8).contains("${")) return null;
+        Object parsed;
+        try {
+            parsed = new Yaml(new SafeConstructor()).load(new ByteArrayInputStream(content));
+        } catch (RuntimeException e) {
+            return null; // let the regular parser report the syntax error
+        }
+        if (!(parsed instanceof Map) || !(((Map<String, Object>) parsed).get(ROOT) instanceof List)) return null;
+        List<Object> root = (List<Object>) ((Map<String, Object>) parsed).get(ROOT);
+        for (Object entry : root) {
+            if (entry instanceof Map && ((Map<String, Object>) entry).containsKey("property")) return null;
+        }
+        return referencesFiles(root) ? null : root;
+    }
+
+    private static boolean referencesFiles(Object value) {
+        if (value instanceof Map) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (FILE_REFERENCES.contains(entry.getKey()) || referencesFiles(entry.getValue())) return true;
+            }
+        } else if (value instanceof List) {
+            for (Object item : (List<?>) value) {
+                if (referencesFiles(item)) return true;
+            }
+        }
+        return false;
+    }
+
+    private Entry load(String key) {
+        File file = new File(_dir, key + ".lbc");
+        if (!file.isFile()) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT || !LiquibaseUtil.getBuildVersion().equals(in.readUTF())) {
+                _logger.info("ChangeLog cache entry {} was written by another version, ignoring it", file);
+                return null;
+            }
+            int count = in.readInt();
+            Map<String, CheckSum> checkSums = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                checkSums.put(in.readUTF(), CheckSum.parse(in.readUTF()));
+            }
+            Object root = new Decoder(in).read();
+            if (!(root instanceof List)) throw new IOException("Unexpected root " + root);
+            @SuppressWarnings("unchecked") List<Object> list = (List<Object>) root;
+            return new Entry(list, checkSums);
+        } catch (IOException | RuntimeException e) {
+            _logger.warn("Cannot read changeLog cache entry {}, ignoring it", file, e);
+            return null;
+        }
+    }
+
+    /* Written next to its final name and moved in place, so an interrupted run never leaves a torn entry behind */
+    private void store(String key, byte[] tree, Map<String, String> checkSums) {
+        File entry = new File(_dir, key + ".lbc");
+        File tmp = new File(_dir, key + ".lbc.tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT);
+                out.writeUTF(LiquibaseUtil.getBuildVersion());
+                out.writeInt(checkSums.size());
+                for (Map.Entry<String, String> checkSum : checkSums.entrySet()) {
+                    out.writeUTF(checkSum.getKey());
+                    out.writeUTF(checkSum.getValue());
+                }
+                out.write(tree);
+            }
+            Files.move(tmp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            String prefix = key.substring(0, key.lastIndexOf('_') + 1);
+            File[] stale = _dir.listFiles((dir, name) -> name.startsWith(prefix) && name.endsWith(".lbc") && !name.equals(entry.getName()));
+            if (stale != null) {
+                for (File file : stale) Files.deleteIfExists(file.toPath()); // entries of earlier versions of the same file
+            }
+        } catch (IOException e) {
+            _logger.warn("Cannot write changeLog cache entry {}", key, e);
+        }
+    }
+
+    private static String checkSumKey(ChangeSet changeSet) {
+        return changeSet.getId() + "::" + changeSet.getAuthor();
+    }
+
+    private static byte[] encode(Object root) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            new Encoder(out).write(root);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static String digest(byte[] content) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(content);
+            md.update(LiquibaseUtil.getBuildVersion().getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : md.digest()) hex.append(String.format("%02x", b));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class Entry {
+        private final List<Object> _root;
+        private final Map<String, CheckSum> _checkSums;
+
+        private Entry(List<Object> root, Map<String, CheckSum> checkSums) {
+            this._root = root;
+            this._checkSums = checkSums;
+        }
+    }
+
+    /* Value tree writer; the first occurrence of a string is written out and later ones refer to it by index */
+    private static final class Encoder {
+        private final DataOutputStream _out;
+        private final Map<String, Integer> _strings = new HashMap<>();
+
+        private Encoder(DataOutputStream out) {
+            this._out = out;
+        }
+
+        void write(Object value) throws IOException {
+            if (value == null) {
+                _out.writeByte(NULL);
+            } else if (value instanceof String) {
+                Integer index = _strings.get(value);
+                if (index != null) {
+                    _out.writeByte(STRING_REF);
+                    _out.writeInt(index);
+                } else {
+                    _strings.put((String) value, _strings.size());
+                    byte[] utf8 = ((String) value).getBytes(StandardCharsets.UTF_8);
+                    _out.writeByte(STRING);
+                    _out.writeInt(utf8.length);
+                    _out.write(utf8);
+                }
+            } else if (value instanceof Integer) {
+                _out.writeByte(INT);
+                _out.writeInt((Integer) value);
+            } else if (value instanceof Long) {
+                _out.writeByte(LONG);
+                _out.writeLong((Long) value);
+            } else if (value instanceof BigInteger) {
+                _out.writeByte(BIG_INTEGER);
+                _out.writeUTF(value.toString());
+            } else if (value instanceof Double) {
+                _out.writeByte(DOUBLE);
+                _out.writeDouble((Double) value);
+            } else if (value instanceof Boolean) {
+                _out.writeByte((Boolean) value ? TRUE : FALSE);
+            } else if (value instanceof Map) {
+                Map<?, ?> map = (Map<?, ?>) value;
+                _out.writeByte(MAP);
+                _out.writeInt(map.size());
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    write(entry.getKey());
+                    write(entry.getValue());
+                }
+            } else if (value instanceof List) {
+                List<?> list = (List<?>) value;
+                _out.writeByte(LIST);
+                _out.writeInt(list.size());
+                for (Object item : list) write(item);
+            } else {
+                throw new IOException("Cannot compile a changeLog value of type " + value.getClass().getName());
+            }
+        }
+    }
+
+    /* Rebuilds the LinkedHashMap/ArrayList tree SnakeYAML produced, which is what ParsedNode.setValue expects */
+    private static final class Decoder {
+        private final DataInputStream _in;
+        private final List<String> _strings = new ArrayList<>();
+
+        private Decoder(DataInputStream in) {
+            this._in = in;
+        }
+
+        Object read() throws IOException {
+            byte tag = _in.readByte();
+            switch (tag) {
+                case NULL:
+                    return null;
+                case STRING:
+                    byte[] utf8 = new byte[_in.readInt()];
+                    _in.readFully(utf8);
+                    String value = new String(utf8, StandardCharsets.UTF_8);
+                    _strings.add(value);
+                    return value;
+                case STRING_REF:
+                    return _strings.get(_in.readInt());
+                case INT:
+                    return _in.readInt();
+                case LONG:
+                    return _in.readLong();
+                case BIG_INTEGER:
+                    return new BigInteger(_in.readUTF());
+                case DOUBLE:
+                    return _in.readDouble();
+                case TRUE:
+                    return Boolean.TRUE;
+                case FALSE:
+                    return Boolean.FALSE;
+                case MAP:
+                    int size = _in.readInt();
+                    Map<Object, Object> map = new LinkedHashMap<>(size * 2);
+                    for (int i = 0; i < size; i++) map.put(read(), read());
+                    return map;
+                case LIST:
+                    int length = _in.readInt();
+                    List<Object> list = new ArrayList<>(length);
+                    for (int i = 0; i < length; i++) list.add(read());
+                    return list;
+                default:
+                    throw new IOException("Unknown value tag " + tag);
+            }
+        }
+    }
+
+    /* Creates changeSets that start out with their cached checksum, which ChangeSet.generateCheckSum then returns as is */
+    private static final class CompiledChangeLog extends DatabaseChangeLog {
+        private final Map<String, CheckSum> _checkSums;
+
+        private CompiledChangeLog(String physicalFilePath, Map<String, CheckSum> checkSums) {
+            super(physicalFilePath);
+            this._checkSums = checkSums;
+        }
+
+        @Override
+        protected ChangeSet createChangeSet(ParsedNode node, ResourceAccessor resourceAccessor) throws ParsedNodeException {
+            CompiledChangeSet changeSet = new CompiledChangeSet(this);
+            changeSet.setChangeLogParameters(getChangeLogParameters());
+            changeSet.load(node, resourceAccessor);
+            changeSet.memoize(_checkSums.get(checkSumKey(changeSet)));
+            return changeSet;
+        }
+    }
+
+    private static final class CompiledChangeSet extends ChangeSet {
+        private CompiledChangeSet(DatabaseChangeLog changeLog) {
+            super(changeLog);
+        }
+
+        void memoize(CheckSum checkSum) {
+            if (checkSum != null) this.checkSum = checkSum;
+        }
+    }
+}
@@ -0,0 +1,444 @@
+package db.liquibase;
+
+import com.microsoft.sqlserver.jdbc.SQLServerBulkCopy;
+import com.microsoft.sqlserver.jdbc.SQLServerBulkCopyOptions;
+import com.microsoft.sqlserver.jdbc.SQLServerConnection;
+import db.jdbc.ConcurrencyLimiter;
+import db.jdbc.ConnectionSource;
+import db.metrics.Metrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* Copies table data of one schema from a source into an already created target. Rows are streamed off the source with a
+ * large fetch size and written with the SQL Server bulk copy API when the target connection is a mssql-jdbc one, or with
+ * batched inserts otherwise, checking constraints either way. Tables are copied in parallel, parents before the tables
+ * referencing them, and tables with a single integer primary key are split into key ranges that are copied concurrently,
+ * as many at a time as the limiter of the target allows. While the target's foreign keys are in place, a table referencing
+ * itself is copied whole in key order, and tables in a foreign key cycle one after the other, since their rows may
+ * reference rows of the same copy. With a checkpoint every finished table or key range is recorded, and a retry skips
+ * those and clears what a failed one left behind before copying it again. This assumes the source data did not change
+ * in between. */
+
+class DataCopier {
+    private static final Logger _logger = LogManager.getLogger(DataCopier.class);
+    private static final int FETCH_SIZE = 10_000;
+    private static final int BATCH_SIZE = 5_000;
+    private static final long RANGE_ROWS = 1_000_000;
+    private static final Set<Integer> SPLITTABLE_TYPES = new HashSet<>(Arrays.asList(Types.TINYINT, Types.SMALLINT, Types.INTEGER, Types.BIGINT));
+
+    private final ConnectionSource _source;
+    private final ConnectionSource _target;
+    private final String _sourceCatalog;
+    private final String _schema;
+    private final int _threads;
+    private final Set<String> _excludedTables;
+    private final boolean _constraintsDeferred;
+    private final ProvisionCheckpoint _checkpoint;
+
+    /* constraintsDeferred tells that the target's foreign keys are only created after the copy. checkpoint may be null, in
+     * which case the copy always starts from empty target tables */
+    DataCopier(ConnectionSource source, ConnectionSource target, String sourceCatalog, String schema, int threads, Set<String> excludedTables,
+               boolean constraintsDeferred, ProvisionCheckpoint checkpoint) {
+        this._source = source;
+        this._target = target;
+        this._sourceCatalog = sourceCatalog;
+        this._schema = schema;
+        this._threads = Math.max(1, threads);
+        this._excludedTables = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        this._excludedTables.addAll(excludedTables);
+        this._constraintsDeferred = constraintsDeferred;
+        this._checkpoint = checkpoint;
+    }
+
+    /* Returns true when every table was copied completely */
+    boolean copy() {
+        List<List<TableCopy>> levels;
+        try (Connection connection = _source.getConnection()) {
+            levels = orderByDependencies(describeTables(connection));
+        } catch (SQLException e) {
+            _logger.error("Exception caught when reading the source tables", e);
+            return false;
+        }
+        ConcurrencyLimiter limiter;
+        try (Connection connection = _target.getConnection()) {
+            limiter = ConcurrencyLimiter.get(connection, _threads);
+        } catch (SQLException e) {
+            _logger.error("Exception caught when connecting to the target", e);
+            return false;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(_threads);
+        AtomicBoolean succeeded = new AtomicBoolean(true);
+        long started = System.nanoTime();
+        try {
+            for (List<TableCopy> level : levels) {
+                List<Future<?>> futures = new ArrayList<>();
+                for (TableCopy table : level) {
+                    for (long[] range : table._ranges) {
+                        futures.add(pool.submit(() -> copyRange(table, range, limiter, succeeded)));
+                    }
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            _logger.error("Interrupted while copying data", e);
+            succeeded.set(false);
+        } catch (ExecutionException e) {
+            _logger.error("Exception caught when copying data", e.getCause());
+            succeeded.set(false);
+        } finally {
+            pool.shutdownNow();
+        }
+        _logger.info("Data copy of schema {} finished in {} ms, {}", _schema, (System.nanoTime() - started) / 1_000_000, succeeded.get() ? "all tables copied" : "some tables failed");
+        return succeeded.get();
+    }
+
+    private List<TableCopy> describeTables(Connection connection) throws SQLException {
+        DatabaseMetaData metaData = connection.getMetaData();
+        String quote = metaData.getIdentifierQuoteString().trim();
+        Map<String, TableCopy> tables = new LinkedHashMap<>();
+        try (ResultSet rs = metaData.getTables(_sourceCatalog, _schema, "%", new String[]{"TABLE"})) {
+            while (rs.next()) {
+                String name = rs.getString("TABLE_NAME");
+                if (!_excludedTables.contains(name)) tables.put(name, new TableCopy(name, quote));
+            }
+        }
+        for (TableCopy table : tables.values()) {
+            try (ResultSet rs = metaData.getColumns(_sourceCatalog, _schema, table._name, "%")) {
+                while (rs.next()) {
+                    table._columns.add(rs.getString("COLUMN_NAME"));
+                    table._types.add(rs.getInt("DATA_TYPE"));
+                }
+            }
+            try (ResultSet rs = metaData.getImportedKeys(_sourceCatalog, _schema, table._name)) {
+                while (rs.next()) {
+                    String parent = rs.getString("PKTABLE_NAME");
+                    if (parent.equals(table._name)) {
+                        table._ordered = !_constraintsDeferred;
+                    } else if (tables.containsKey(parent)) {
+                        table._parents.add(parent);
+                    }
+                }
+            }
+            List<String> keyColumns = table._keyColumns;
+            try (ResultSet rs = metaData.getPrimaryKeys(_sourceCatalog, _schema, table._name)) {
+                while (rs.next()) keyColumns.add(rs.getString("COLUMN_NAME"));
+            }
+            if (!table._ordered && keyColumns.size() == 1 && SPLITTABLE_TYPES.contains(table._types.get(table._columns.indexOf(keyColumns.get(0))))) {
+                table._keyColumn = keyColumns.get(0);
+                splitIntoRanges(connection, table);
+            } else {
+                table._ranges.add(null);
+            }
+            table._pendingRanges.set(table._ranges.size());
+        }
+        return new ArrayList<>(tables.values());
+    }
+
+    private void splitIntoRanges(Connection connection, TableCopy table) throws SQLException {
+        String key = table.quote(table._keyColumn);
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT MIN(" + key + "), MAX(" + key + "), COUNT(*) FROM " + sourceName(table))) {
+            rs.next();
+            long rows = rs.getLong(3);
+            if (rows <= RANGE_ROWS) {
+                table._ranges.add(null);
+                return;
+            }
+            long min = rs.getLong(1);
+            long max = rs.getLong(2);
+            long step = Math.max(1, (max - min + 1) / ((rows + RANGE_ROWS - 1) / RANGE_ROWS));
+            for (long low = min; low <= max; low += step) {
+                table._ranges.add(new long[]{low, Math.min(max, low + step - 1)});
+                if (low + step < low) break; // overflow near Long.MAX_VALUE
+            }
+            _logger.info("Table {} has {} rows, copying it in {} key ranges", table._name, rows, table._ranges.size());
+        }
+    }
+
+    /* Kahn's algorithm over the foreign keys: each level only references tables of earlier levels. Tables left in a cycle go
+     * last, together when the foreign keys come later. Otherwise the cycle is broken at the table with the fewest parents
+     * still to copy, which gets a level of its own */
+    private List<List<TableCopy>> orderByDependencies(List<TableCopy> tables) {
+        List<List<TableCopy>> levels = new ArrayList<>();
+        Set<String> done = new HashSet<>();
+        List<TableCopy> remaining = new ArrayList<>(tables);
+        while (!remaining.isEmpty()) {
+            List<TableCopy> level = new ArrayList<>();
+            for (TableCopy table : remaining) {
+                if (done.containsAll(table._parents)) level.add(table);
+            }
+            if (level.isEmpty() && _constraintsDeferred) {
+                _logger.info("Foreign key cycle between {} tables, copying them together", remaining.size());
+                level.addAll(remaining);
+            } else if (level.isEmpty()) {
+                TableCopy table = Collections.min(remaining, Comparator.comparingInt((TableCopy copy) -> pendingParents(copy, done)));
+                _logger.warn("Foreign key cycle through table {}, copying it alone and in key order; rows referencing rows not copied yet need --defer_constraints",
+                        table._name);
+                table._ordered = true;
+                table._ranges.clear();
+                table._ranges.add(null);
+                table._pendingRanges.set(1);
+                level.add(table);
+            }
+            level.forEach(table -> done.add(table._name));
+            remaining.removeAll(level);
+            levels.add(level);
+        }
+        return levels;
+    }
+
+    private static int pendingParents(TableCopy table, Set<String> done) {
+        int pending = 0;
+        for (String parent : table._parents) {
+            if (!done.contains(parent)) pending++;
+        }
+        return pending;
+    }
+
+    private void copyRange(TableCopy table, long[] range, ConcurrencyLimiter limiter, AtomicBoolean succeeded) {
+        String chunk = table._name + (range == null ? "" : ":" + range[0] + "-" + range[1]);
+        if (_checkpoint != null && _checkpoint.isChunkDone(chunk)) {
+            _logger.debug("Chunk {} was copied by an earlier run", chunk);
+            Metrics.counter("copy", "chunksSkipped").inc();
+            if (table._pendingRanges.decrementAndGet() == 0 && table._started.get() != 0) report(table);
+            return;
+        }
+        table._started.compareAndSet(0, System.nanoTime());
+        String select = "SELECT " + table.columnList() + " FROM " + sourceName(table)
+                + (range == null ? "" : " WHERE " + table.quote(table._keyColumn) + " BETWEEN ? AND ?")
+                + (table._ordered && !table._keyColumns.isEmpty() ? " ORDER BY " + table.quote(table._keyColumns) : "");
+        try (ConcurrencyLimiter.Permit permit = limiter.acquire(range == null ? "copy.table" : "copy.range"); // ranges are of comparable size, whole tables are not
+             Connection source = _source.getConnection(); Connection target = _target.getConnection()) {
+            source.setAutoCommit(false); // lets drivers stream the result set through a cursor instead of materializing it
+            try (PreparedStatement stmt = source.prepareStatement(select, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                stmt.setFetchSize(FETCH_SIZE);
+                if (range != null) {
+                    stmt.setLong(1, range[0]);
+                    stmt.setLong(2, range[1]);
+                }
+                if (_checkpoint != null) clearChunk(target, table, range);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    if (supportsBulkCopy(target)) {
+                        bulkCopy(target, table, countingResultSet(rs, table));
+                    } else {
+                        batchInsert(target, table, rs);
+                    }
+                }
+            }
+            source.commit();
+            permit.succeeded();
+            if (_checkpoint != null) _checkpoint.chunkDone(chunk);
+        } catch (Exception e) {
+            table._failed.set(true);
+            succeeded.set(false);
+            _logger.error("Exception caught when copying table {}", table._name, e);
+        }
+        if (table._pendingRanges.decrementAndGet() == 0) report(table);
+    }
+
+    /* Removes the rows an interrupted copy of the chunk may have committed already; on a fresh target this deletes nothing */
+    private void clearChunk(Connection target, TableCopy table, long[] range) throws SQLException {
+        String delete = "DELETE FROM " + targetName(table) + (range == null ? "" : " WHERE " + table.quote(table._keyColumn) + " BETWEEN ? AND ?");
+        boolean autoCommit = target.getAutoCommit();
+        target.setAutoCommit(true);
+        try (PreparedStatement stmt = target.prepareStatement(delete)) {
+            if (range != null) {
+                stmt.setLong(1, range[0]);
+                stmt.setLong(2, range[1]);
+            }
+            int rows = stmt.executeUpdate();
+            if (rows > 0) _logger.info("Cleared {} rows left in {} by an interrupted copy", rows, table._name);
+        } finally {
+            target.setAutoCommit(autoCommit);
+        }
+    }
+
+    private void bulkCopy(Connection target, TableCopy table, ResultSet rs) throws SQLException {
+        try (SQLServerBulkCopy bulkCopy = new SQLServerBulkCopy(target.unwrap(SQLServerConnection.class))) {
+            SQLServerBulkCopyOptions options = new SQLServerBulkCopyOptions();
+            options.setBatchSize(BATCH_SIZE);
+            options.setKeepIdentity(true);
+            options.setKeepNulls(true);
+            options.setCheckConstraints(true); // otherwise SQL Server leaves the foreign and check constraints untrusted
+            options.setTableLock(table._ranges.size() == 1);
+            bulkCopy.setBulkCopyOptions(options);
+            bulkCopy.setDestinationTableName(targetName(table));
+            for (String column : table._columns) {
+                bulkCopy.addColumnMapping(column, column);
+            }
+            bulkCopy.writeToServer(rs);
+        }
+    }
+
+    private void batchInsert(Connection target, TableCopy table, ResultSet rs) throws SQLException {
+        target.setAutoCommit(false);
+        enableIdentityInsert(target, table);
+        String placeholders = String.join(", ", Collections.nCopies(table._columns.size(), "?"));
+        try (PreparedStatement insert = target.prepareStatement("INSERT INTO " + targetName(table) + " (" + table.columnList() + ") VALUES (" + placeholders + ")")) {
+            int pending = 0;
+            while (rs.next()) {
+                for (int i = 1; i <= table._columns.size(); i++) {
+                    Object value = rs.getObject(i);
+                    if (value == null) {
+                        insert.setNull(i, table._types.get(i - 1));
+                    } else {
+                        insert.setObject(i, value);
+                        table._bytes.addAndGet(sizeOf(value));
+                    }
+                }
+                insert.addBatch();
+                table._rows.incrementAndGet();
+                if (++pending == BATCH_SIZE) {
+                    insert.executeBatch();
+                    target.commit();
+                    pending = 0;
+                }
+            }
+            if (pending > 0) {
+                insert.executeBatch();
+                target.commit();
+            }
+        }
+    }
+
+    /* Explicit key values only go into SQL Server identity columns with IDENTITY_INSERT on; tables without one reject the statement */
+    private void enableIdentityInsert(Connection target, TableCopy table) {
+        try {
+            if (!target.getMetaData().getDatabaseProductName().contains("SQL Server")) return;
+            try (Statement stmt = target.createStatement()) {
+                stmt.execute("SET IDENTITY_INSERT " + targetName(table) + " ON");
+            }
+        } catch (SQLException e) {
+            _logger.debug("Table {} has no identity column", table._name);
+        }
+    }
+
+    private static boolean supportsBulkCopy(Connection connection) {
+        try {
+            return connection.isWrapperFor(SQLServerConnection.class);
+        } catch (SQLException | LinkageError e) {
+            return false;
+        }
+    }
+
+    /* Bulk copy pulls rows on its own, so rows and bytes are counted by watching the calls it makes on the result set */
+    private static ResultSet countingResultSet(ResultSet rs, TableCopy table) {
+        return (ResultSet) Proxy.newProxyInstance(DataCopier.class.getClassLoader(), new Class<?>[]{ResultSet.class}, (proxy, method, args) -> {
+            Object result;
+            try {
+                result = method.invoke(rs, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+            if ("next".equals(method.getName()) && Boolean.TRUE.equals(result)) {
+                table._rows.incrementAndGet();
+            } else if (method.getName().startsWith("get") && args != null && args.length == 1 && result != null) {
+                table._bytes.addAndGet(sizeOf(result));
+            }
+            return result;
+        });
+    }
+
+    private static long sizeOf(Object value) {
+        if (value instanceof byte[]) return ((byte[]) value).length;
+        if (value instanceof String) return ((String) value).length();
+        if (value instanceof Number || value instanceof java.util.Date) return 8;
+        if (value instanceof Boolean) return 1;
+        return String.valueOf(value).length();
+    }
+
+    private static void report(TableCopy table) {
+        double seconds = Math.max(1, System.nanoTime() - table._started.get()) / 1e9;
+        long rows = table._rows.get();
+        double megabytes = table._bytes.get() / (1024.0 * 1024.0);
+        Metrics.counter("copy", "rows").inc(rows);
+        Metrics.counter("copy", "bytes").inc(table._bytes.get());
+        Metrics.histogram("copy", "tableRows").update(rows);
+        Metrics.phase("copy.table").update(System.nanoTime() - table._started.get(), TimeUnit.NANOSECONDS);
+        if (table._failed.get()) {
+            _logger.warn("Table {} copied partially: {} rows, {} MB in {} s", table._name, rows, String.format("%.2f", megabytes), String.format("%.3f", seconds));
+        } else {
+            _logger.info("Table {}: {} rows, {} MB in {} s ({} rows/s, {} MB/s)", table._name, rows, String.format("%.2f", megabytes),
+                    String.format("%.3f", seconds), String.format("%.0f", rows / seconds), String.format("%.2f", megabytes / seconds));
+        }
+    }
+
+    private String sourceName(TableCopy table) {
+        return (_sourceCatalog == null ? "" : table.quote(_sourceCatalog) + ".") + table.quote(_schema) + "." + table.quote(table._name);
+    }
+
+    private String targetName(TableCopy table) {
+        return table.quote(_schema) + "." + table.quote(table._name);
+    }
+
+    private static final class TableCopy {
+        private final String _name;
+        private final String _quote;
+        private final List<String> _columns = new ArrayList<>();
+        private final List<Integer> _types = new ArrayList<>();
+        private final Set<String> _parents = new HashSet<>();
+        private final List<String> _keyColumns = new ArrayList<>();
+        private final List<long[]> _ranges = new ArrayList<>();
+        private final AtomicInteger _pendingRanges = new AtomicInteger();
+        private final AtomicLong _rows = new AtomicLong();
+        private final AtomicLong _bytes = new AtomicLong();
+        private final AtomicLong _started = new AtomicLong();
+        private final AtomicBoolean _failed = new AtomicBoolean();
+        private String _keyColumn;
+        private boolean _ordered;
+
+        private TableCopy(String name, String quote) {
+            this._name = name;
+            this._quote = quote;
+        }
+
+        private String quote(String identifier) {
+            return _quote + identifier + _quote;
+        }
+
+        private String columnList() {
+            return quote(_columns);
+        }
+
+        private String quote(List<String> identifiers) {
+            StringBuilder list = new StringBuilder();
+            for (String column : identifiers) {
+                if (list.length() > 0) list.append(", ");
+                list.append(quote(column));
+            }
+            return list.toString();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package db.liquibase;
+
+import db.jdbc.ConnectionSource;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.function.Function;
+
+/* H2 fast path: SCRIPT writes the source out as one SQL script, with or without its rows, and RUNSCRIPT replays it into
+ * each emptied target. Both run inside the engine, so nothing is parsed or generated on our side. SCRIPT needs admin rights */
+
+class H2ScriptClone implements NativeClone {
+    private static final Logger _logger = LogManager.getLogger(H2ScriptClone.class);
+
+    private final Function<String, ConnectionSource> _databases;
+    private final File _tmpDir;
+    private final boolean _copyData;
+    private File _script;
+
+    H2ScriptClone(Function<String, ConnectionSource> databases, File tmpDir, boolean copyData) {
+        this._databases = databases;
+        this._tmpDir = tmpDir;
+        this._copyData = copyData;
+    }
+
+    static boolean supports(Connection source, String product) {
+        if (!"H2".equals(product)) return false;
+        try (PreparedStatement stmt = source.prepareStatement("SELECT ADMIN FROM INFORMATION_SCHEMA.USERS WHERE NAME = ?")) {
+            stmt.setString(1, source.getMetaData().getUserName());
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() && Boolean.parseBoolean(rs.getString(1));
+            }
+        } catch (SQLException e) {
+            _logger.debug("Cannot check the H2 admin right", e);
+            return false;
+        }
+    }
+
+    @Override
+    public String getName() {
+        return _copyData ? "h2-script" : "h2-script-nodata";
+    }
+
+    @Override
+    public void snapshot(String sourceDbName) throws SQLException, IOException {
+        _script = File.createTempFile(sourceDbName, ".sql", _tmpDir);
+        try (Connection connection = _databases.apply(sourceDbName).getConnection();
+             PreparedStatement stmt = connection.prepareStatement(_copyData ? "SCRIPT TO ?" : "SCRIPT NODATA TO ?")) {
+            stmt.setString(1, _script.getAbsolutePath());
+            stmt.execute();
+        }
+        _logger.info("Scripted {} to {} ({} bytes)", sourceDbName, _script, _script.length());
+    }
+
+    @Override
+    public void restore(String sourceDbName, String targetDbName) throws SQLException {
+        if (targetDbName.equalsIgnoreCase(sourceDbName)) throw new SQLException("Refusing to restore " + sourceDbName + " over itself");
+        try (Connection connection = _databases.apply(targetDbName).getConnection(); Statement stmt = connection.createStatement()) {
+            stmt.execute("DROP ALL OBJECTS");
+            try (PreparedStatement runScript = connection.prepareStatement("RUNSCRIPT FROM ?")) {
+                runScript.setString(1, _script.getAbsolutePath());
+                runScript.execute();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (_script != null && !_script.delete()) {
+            _logger.warn("Cannot delete the clone script {}", _script);
+        }
+    }
+}
@@ -1,30 +1,61 @@
 package db.liquibase;
 
-import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
+import db.jdbc.ConcurrencyLimiter;
+import db.jdbc.ConnectionPool;
+import db.jdbc.ConnectionSource;
+import db.metrics.Metrics;
+import db.metrics.Trace;
+import db.service.ServiceClient;
 import liquibase.CatalogAndSchema;
 import liquibase.Contexts;
 import liquibase.LabelExpression;
 import liquibase.Liquibase;
+import liquibase.change.Change;
+import liquibase.change.ChangeFactory;
+import liquibase.changelog.ChangeSet;
+import liquibase.changelog.DatabaseChangeLog;
 import liquibase.database.Database;
 import liquibase.database.DatabaseFactory;
 import liquibase.database.jvm.JdbcConnection;
+import liquibase.diff.DiffGeneratorFactory;
+import liquibase.diff.DiffResult;
+import liquibase.diff.compare.CompareControl;
 import liquibase.diff.output.DiffOutputControl;
+import liquibase.diff.output.StandardObjectChangeFilter;
 import liquibase.diff.output.changelog.DiffToChangeLog;
 import liquibase.exception.DatabaseException;
 import liquibase.resource.FileSystemResourceAccessor;
+import liquibase.serializer.core.xml.XMLChangeLogSerializer;
+import liquibase.snapshot.DatabaseSnapshot;
+import liquibase.snapshot.SnapshotControl;
+import liquibase.structure.DatabaseObject;
 import org.apache.commons.cli.*;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.PrintStream;
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.ResultSet;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 
-import static com.codahale.metrics.MetricRegistry.name;
 import static java.lang.System.exit;
 
 public class LiquiBaseCloneDb {
@@ -37,83 +68,487 @@ public class LiquiBaseCloneDb {
     private static final String SRC_DB_NAME = "s_database";
     private static final String SRC_DB_SCHEMA = "s_schema";
     private static final String TMP_PATH = "tmp_path";
+    private static final String SRC_CACHE_DIR = "s_cache_dir";
+    private static final String TRGT_DB_NAME = "t_database";
+    private static final String INCREMENTAL = "incremental";
+    private static final String COPY_DATA = "data";
+    private static final String DATA_THREADS = "data_threads";
+    private static final String DEFER_CONSTRAINTS = "defer_constraints";
+    private static final String TRGT_BATCH_SIZE = "t_batch_size";
+    private static final String REPORT_DIR = "report_dir";
+    private static final String JMX = "jmx";
+    private static final String TRACE_FILE = "trace_file";
+    private static final String TRANSFORM = "transform";
+    private static final String FANOUT_THREADS = "fanout_threads";
+    private static final String CLONE_STRATEGY = "clone_strategy";
+    private static final String BACKUP_PATH = "backup_path";
+    private static final String CHANGELOG_STRATEGY = "changelog";
+    private static final String NATIVE_STRATEGY = "native";
+    private static final String CHUNK_SIZE = "chunk_size";
+    private static final String CHECKPOINT_DIR = "checkpoint_dir";
+    private static final String H2_URL_PREFIX = "jdbc:h2:";
+    private static final int DEFAULT_FANOUT_THREADS = 4;
+    private static final String CHANGELOG_PATH_SUFFIX = "-clone.xml"; // recorded as FILENAME in the change log table
+    private static final String DATA_STEP = "data";
 
     private static final Logger _logger = LogManager.getLogger(LiquiBaseCloneDb.class);
-    private static final MetricRegistry _metrics = new MetricRegistry();
-    private static final Timer _liquiBaseTimer = _metrics.timer(name(LiquiBaseCloneDb.class, SRC_URL));
+    private static final Timer _liquiBaseTimer = Metrics.phase("lift");
+    private static final Timer _cloneTimer = Metrics.phase("clone");
     private static final boolean CLEAR_CHANGE_HISTORY = true;
     private static final boolean DELETE_CREATE_TARGET = true;
-    private static File outputFile;
+    private static final Set<String> SYSTEM_SCHEMAS = new HashSet<>(Arrays.asList("SYS", "INFORMATION_SCHEMA"));
+    private static final Set<String> UNSAFE_INCREMENTAL_CHANGES = new HashSet<>(Arrays.asList("modifyDataType", "dropPrimaryKey", "addPrimaryKey", "addAutoIncrement"));
     private static OptionsHelper optionsHelper;
-
-    /* Lifts the schema off source DB and clones it on the target DB. For this case source and target are on the same VM*/
+    private static SnapshotCache snapshotCache;
+    private static ChangeSetTransformer transformer;
+
+    /* Lifts the schema off source DB and clones it on the target DB. For this case source and target are on the same VM.
+     * The target defaults to the source database name; with --incremental an existing target only receives the delta.
+     * Several comma separated targets are all provisioned from the one lift, concurrently. With --clone_strategy native the
+     * engine's snapshot and restore is used instead of the lift, as long as it would copy no more than the lift does, falling
+     * back to the changeLog for any target it fails on.
+     * The lift runs on its own thread while the targets are dropped and re-created, and its changeSets are handed to them
+     * in memory. With --incremental it only runs once a target needs the full changeLog, since existing targets diff
+     * themselves against the source. When the source itself is a target it is lifted first, and left alone if the lift
+     * fails. With --checkpoint_dir a target left incomplete by an earlier run is not dropped: it keeps its change log table
+     * and resumes with the changeSets and data chunks that did not finish, as long as the lift still yields the same
+     * changeLog */
 
     public static void main(String[] args) {
-         org.apache.log4j.Logger.getRootLogger().setLevel(org.apache.log4j.Level.OFF);
+        if (ServiceClient.isEnabled()) exit(ServiceClient.forward("clone", args));
+        if (!ServiceClient.isInService()) org.apache.log4j.Logger.getRootLogger().setLevel(org.apache.log4j.Level.OFF);
         optionsHelper = new OptionsHelper(args);
+        try {
+            transformer = ChangeSetTransformer.parse(optionsHelper.getOptionValue(TRANSFORM));
+        } catch (IllegalArgumentException e) {
+            _logger.error("Error parsing the {} option", TRANSFORM, e);
+            exit(-2);
+        }
+        if (optionsHelper.getOptionValue(SRC_CACHE_DIR) != null) {
+            List<String> targetDbNames = getTargetDbNames();
+            snapshotCache = new SnapshotCache(new File(optionsHelper.getOptionValue(SRC_CACHE_DIR)), targetDbNames.size() > 1 ? "" : targetDbNames.get(0)); // "" marks catalog-free entries
+        }
+
+        try (Metrics ignored = Metrics.start(LiquiBaseCloneDb.class.getSimpleName(), optionsHelper.getOptionValue(REPORT_DIR), optionsHelper.hasOption(JMX));
+             Trace ignoredTrace = Trace.start(optionsHelper.getOptionValue(TRACE_FILE))) {
+            _logger.info("Initiating connection to {} DB with userName {}, password {}", optionsHelper.getOptionValue(SRC_URL), optionsHelper.getOptionValue(SRC_USERNAME), optionsHelper.getOptionValue(SRC_PSWD));
+            List<String> replayed = cloneNatively(getTargetDbNames());
+            if (!replayed.isEmpty()) {
+                FutureTask<List<ChangeSet>> changeLog = new FutureTask<>(LiquiBaseCloneDb::liftSchemaFromSource);
+                try {
+                    if (isSourceAmong(replayed)) {
+                        changeLog.run(); // the source is about to be dropped, so the lift cannot overlap the target preparation
+                    } else if (!optionsHelper.hasOption(INCREMENTAL)) {
+                        Thread liftThread = new Thread(changeLog, "changelog-lift");
+                        liftThread.setDaemon(true);
+                        liftThread.start();
+                    }
+
+                    if (changeLog.isDone() && awaitChangeLog(changeLog) == null) {
+                        _logger.warn("The lift of {} failed, leaving the target databases untouched", optionsHelper.getOptionValue(SRC_DB_NAME));
+                    } else {
+                        _logger.info("Cloning...");
+                        spawnDb(replayed, changeLog);
+                    }
+                } finally {
+                    changeLog.cancel(true); // a lift no target waits for any more must not outlive the run
+                }
+            }
+            _logger.info("Time to complete cloning {} ms", Metrics.millis(_cloneTimer.getSnapshot().getMax()));
+        } finally {
+            ConnectionPool.closeAll();
+        }
+    }
 
-        _logger.info("Creating temp output file");
-        createTmpOutputFile();
-        if (outputFile != null) _logger.info("Created tmp output file at [{}]", outputFile.getAbsoluteFile());
+    /* Returns the lifted changeSets, or null when the lift failed */
+    private static List<ChangeSet> liftSchemaFromSource() {
+        String connectString = getConnectString(optionsHelper.getOptionValue(SRC_DB_NAME)); // We need to be within the database of interest in order to lift the schema
+        List<ChangeSet> changeSets = null;
+        try (java.sql.Connection connection = getPool(connectString).getConnection(); final Timer.Context ignored = _liquiBaseTimer.time()){
 
-        _logger.info("Initiating connection to {} DB with userName {}, password {}", optionsHelper.getOptionValue(SRC_URL), optionsHelper.getOptionValue(SRC_USERNAME), optionsHelper.getOptionValue(SRC_PSWD));
-        liftSchemaFromSource();
-        _logger.info("MeanRate for time to complete generating changeLog {} s, over {} events", _liquiBaseTimer.getMeanRate(), _liquiBaseTimer.getCount());
+            Database database = DatabaseFactory.getInstance().findCorrectDatabaseImplementation(new JdbcConnection(connection));
+            changeSets = generateChangeLog(database, optionsHelper.getOptionValue(SRC_DB_NAME), optionsHelper.getOptionValue(SRC_DB_SCHEMA));
 
-        _logger.info("Cloning...");
-        spawnDb();
+        } catch (Exception e) {
+            _logger.error("Exception caught when lifting the schema", e);
+        }
+        _logger.info("Time to complete generating changeLog {} ms", Metrics.millis(_liquiBaseTimer.getSnapshot().getMax()));
+        return changeSets;
     }
 
-    private static void createTmpOutputFile(){
-        try {
-            outputFile = File.createTempFile(optionsHelper.getOptionValue(SRC_DB_NAME), ".xml", new File(optionsHelper.getOptionValue(TMP_PATH)));
-            outputFile.deleteOnExit();
-        } catch (IOException e) {
-            _logger.error("Exception caught during creating output file", e);
+    private static List<ChangeSet> generateChangeLog(Database database, String databaseName, String schemaName) throws Exception {
+        CatalogAndSchema catalogAndSchema = new CatalogAndSchema(databaseName, schemaName);
+        DiffOutputControl diffOutputControl;
+        if (getTargetDbNames().size() > 1) {
+            diffOutputControl = new DiffOutputControl(false, true, true, null); // catalog-free, so one changeLog serves every target
+        } else {
+            String targetDbName = getTargetDbNames().get(0);
+            diffOutputControl = databaseName.equals(targetDbName) ? new DiffOutputControl() : new DiffOutputControl(true, true, true, getSchemaComparisons(targetDbName));
         }
+        DiffToChangeLog writer = new DiffToChangeLog(diffOutputControl);
+        // A resumed target matches changeSets to its change log table by id, so with checkpoints the ids must not depend on the time
+        String idRoot = optionsHelper.getOptionValue(CHECKPOINT_DIR) == null ? String.valueOf(new Date().getTime()) : databaseName;
+        writer.setIdRoot(idRoot);
+        List<ChangeSet> changeSets = transformer.apply(snapshotCache == null
+                ? SnapshotCache.snapshotAndDiff(database, catalogAndSchema, null, writer)
+                : snapshotCache.generateChangeSets(database, catalogAndSchema, writer, idRoot));
+        _logger.info("Lifted {} changeSets from {}", changeSets.size(), databaseName);
+        if (getChunkSize() > 0) writeChunkedChangeLog(changeSets);
+        return changeSets;
     }
 
-    private static void liftSchemaFromSource() {
-        String connectString = optionsHelper.getOptionValue(SRC_URL) + "; database="+ optionsHelper.getOptionValue(SRC_DB_NAME)+ ";"; // We need to be within the database of interest in order to lift the schema
-        try (java.sql.Connection connection = DriverManager.getConnection(connectString, optionsHelper.getOptionValue(SRC_USERNAME), optionsHelper.getOptionValue(SRC_PSWD)); final Timer.Context ignored = _liquiBaseTimer.time()){
+    /* Keeps a copy of the lifted changeLog in the temp path, as a master including chunk files next to it, for shipping or
+     * applying elsewhere. The clone itself replays the changeSets from memory */
+    private static void writeChunkedChangeLog(List<ChangeSet> changeSets) throws IOException {
+        File master = new File(optionsHelper.getOptionValue(TMP_PATH), optionsHelper.getOptionValue(SRC_DB_NAME) + ".xml");
+        try (ChunkedChangeLogWriter chunks = new ChunkedChangeLogWriter(master, getChunkSize(), new XMLChangeLogSerializer()::write)) {
+            chunks.addAll(changeSets);
+        }
+    }
 
-            Database database = DatabaseFactory.getInstance().findCorrectDatabaseImplementation(new JdbcConnection(connection));
-            generateChangeLog(database, optionsHelper.getOptionValue(SRC_DB_NAME), optionsHelper.getOptionValue(SRC_DB_SCHEMA));
+    /* Waits for the lift running alongside the target preparation, or runs it when it was deferred for --incremental and no
+     * caller ran it yet. Returns null when it failed */
+    private static List<ChangeSet> awaitChangeLog(FutureTask<List<ChangeSet>> changeLog) {
+        try (final Timer.Context ignored = Metrics.phase("clone.await_lift").time()) {
+            changeLog.run(); // returns at once when the lift is running or done
+            return changeLog.get();
+        } catch (InterruptedException e) {
+            _logger.error("Interrupted while waiting for the lift", e);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            _logger.error("Exception caught when lifting the schema", e.getCause());
+        }
+        return null;
+    }
+
+    private static int getChunkSize() {
+        return Math.max(0, getIntOption(CHUNK_SIZE, 0));
+    }
 
+    /* Clones every target the engine's fast path can handle and returns the targets left for the changeLog replay. The
+     * source itself, the default target, is never restored over. A native clone copies the whole database, so it is only
+     * taken when asked for and when the lift would yield the same objects: no transform rules, and nothing outside the
+     * source schema */
+    private static List<String> cloneNatively(List<String> targetDbNames) {
+        String sourceDbName = optionsHelper.getOptionValue(SRC_DB_NAME);
+        if (!NATIVE_STRATEGY.equals(optionsHelper.getOptionValue(CLONE_STRATEGY)) || optionsHelper.hasOption(INCREMENTAL)) return targetDbNames;
+        if (!transformer.isEmpty()) {
+            _logger.info("Transform rules only apply to the changeLog, replaying it instead of a native clone");
+            return targetDbNames;
+        }
+        List<String> nativeTargets = new ArrayList<>(targetDbNames);
+        nativeTargets.removeIf(sourceDbName::equalsIgnoreCase); // like isSourceAmong, database names do not differ by case
+        if (nativeTargets.isEmpty()) return targetDbNames;
+
+        NativeClone nativeClone;
+        try (java.sql.Connection source = getPool(getConnectString(sourceDbName)).getConnection()) {
+            String outside = findObjectOutsideSchema(source, optionsHelper.getOptionValue(SRC_DB_SCHEMA));
+            if (outside != null) {
+                _logger.info("{} is not part of the lifted schema, replaying the changeLog instead of a native clone", outside);
+                return targetDbNames;
+            }
+            nativeClone = NativeClone.detect(source, getPool(optionsHelper.getOptionValue(SRC_URL)), databaseName -> getPool(getConnectString(databaseName)),
+                    new File(optionsHelper.getOptionValue(TMP_PATH)), optionsHelper.getOptionValue(BACKUP_PATH), optionsHelper.hasOption(COPY_DATA));
         } catch (Exception e) {
-            _logger.error("Exception caught when lifting the schema", e);
+            _logger.error("Exception caught detecting a native clone of {}", sourceDbName, e);
+            return targetDbNames;
+        }
+        if (nativeClone == null) {
+            _logger.info("No native clone available for {}, replaying the changeLog", sourceDbName);
+            return targetDbNames;
         }
+
+        List<String> replayed = new ArrayList<>(targetDbNames);
+        replayed.removeAll(nativeTargets);
+        try (NativeClone clone = nativeClone) {
+            long start = System.nanoTime();
+            try (final Timer.Context ignored = Metrics.phase("clone." + clone.getName() + ".snapshot").time()) {
+                clone.snapshot(sourceDbName);
+            }
+            _logger.info("Took the {} snapshot of {} in {} ms", clone.getName(), sourceDbName, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            replayed.addAll(fanOut(nativeTargets, targetDbName -> restoreNatively(clone, sourceDbName, targetDbName)));
+        } catch (Exception e) {
+            _logger.warn("Native {} snapshot of {} failed, replaying the changeLog", nativeClone.getName(), sourceDbName, e);
+            return targetDbNames;
+        }
+        return replayed;
     }
 
-    private static void generateChangeLog(Database database, String databaseName, String schemaName) {
+    /* The lift only covers the source schema and leaves out the change log tables, which a native clone would copy too */
+    private static String findObjectOutsideSchema(Connection source, String schemaName) throws java.sql.SQLException {
+        try (ResultSet rs = source.getMetaData().getTables(source.getCatalog(), null, null, new String[]{"TABLE", "VIEW"})) {
+            while (rs.next()) {
+                String schema = rs.getString("TABLE_SCHEM");
+                String table = rs.getString("TABLE_NAME");
+                if (SYSTEM_SCHEMAS.contains(schema.toUpperCase())) continue;
+                if (!schema.equalsIgnoreCase(schemaName) || table.equalsIgnoreCase(DB_CHANGELOG_NAME) || table.equalsIgnoreCase(DB_CHANGELOCK_NAME)) {
+                    return schema + "." + table;
+                }
+            }
+        }
+        return null;
+    }
 
-        try (Liquibase liquibase = new Liquibase(outputFile.getAbsolutePath(), new FileSystemResourceAccessor(), database)){
-            CatalogAndSchema catalogAndSchema = new CatalogAndSchema(databaseName, schemaName);
-            DiffOutputControl diffOutputControl = new DiffOutputControl();
-            DiffToChangeLog writer = new DiffToChangeLog(diffOutputControl);
-            PrintStream pw = new PrintStream(outputFile);
-            liquibase.generateChangeLog(catalogAndSchema, writer, pw);
+    private static boolean restoreNatively(NativeClone clone, String sourceDbName, String targetDbName) {
+        long start = System.nanoTime();
+        try (ConcurrencyLimiter.Permit permit = ConcurrencyLimiter.get(optionsHelper.getOptionValue(SRC_URL), getFanOutThreads()).acquire("clone.restore");
+             final Timer.Context ignored = Metrics.phase("clone." + clone.getName() + ".restore").time()) {
+            ConnectionPool.evict(getConnectString(targetDbName));
+            clone.restore(sourceDbName, targetDbName);
+            permit.succeeded();
+            _logger.info("Cloned {} into {} with {} in {} ms", sourceDbName, targetDbName, clone.getName(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            return true;
         } catch (Exception e) {
-            _logger.error("Exception caught", e);
+            _logger.warn("Native {} clone into {} failed, it will be replayed from the changeLog", clone.getName(), targetDbName, e);
+            return false;
         }
     }
 
-    private static void spawnDb() {
-        try (java.sql.Connection connection = DriverManager.getConnection(optionsHelper.getOptionValue(SRC_URL), optionsHelper.getOptionValue(SRC_USERNAME) , optionsHelper.getOptionValue(SRC_PSWD) ); // need to be in the high-level "default" db
-             final Timer.Context ignored = _liquiBaseTimer.time()){
-            if (!deleteLiquiBaseDbChangeLog(connection) || !deleteDbIfExists(connection, optionsHelper.getOptionValue(SRC_DB_NAME)) || !createDbIfNotExist(connection, optionsHelper.getOptionValue(SRC_DB_NAME))) {
+    private static void spawnDb(List<String> targetDbNames, FutureTask<List<ChangeSet>> changeLog) {
+        if (getTargetDbNames().size() > 1) { // the lift was catalog-free, so even a single remaining target takes the fan-out path
+            List<String> failed = fanOut(targetDbNames, targetDbName -> spawnFanOutTarget(targetDbName, changeLog));
+            Metrics.counter("clone", "targetsFailed").inc(failed.size());
+            return;
+        }
+        String targetDbName = targetDbNames.get(0);
+        try (java.sql.Connection connection = getPool(optionsHelper.getOptionValue(SRC_URL)).getConnection(); // need to be in the high-level "default" db
+             final Timer.Context ignored = _cloneTimer.time()){
+            ProvisionCheckpoint checkpoint = openCheckpoint(targetDbName);
+            boolean resuming = canResume(connection, targetDbName, checkpoint);
+            if (!resuming && optionsHelper.hasOption(INCREMENTAL) && dbExists(connection, targetDbName)) {
+                if (applyIncrementally(targetDbName)) return;
+                _logger.warn("Incremental clone of {} could not be applied, falling back to a full rebuild", targetDbName);
+            }
+            if (!resuming && !recreateDb(connection, targetDbName, true)) {
                 _logger.warn("Database may be in use, cannot access it. Aborting...");
                 return;
             }
-            createDbInstance(connection);
+            List<ChangeSet> changeSets = awaitChangeLog(changeLog);
+            if (changeSets == null) return;
+            if (resuming && !checkpoint.matches(ProvisionCheckpoint.fingerprint(changeSets))) {
+                _logger.warn("The lifted changeLog differs from the one {} was being built from, rebuilding it", targetDbName);
+                if (!recreateDb(connection, targetDbName, true)) return;
+            }
+            provision(connection, targetDbName, changeSets, checkpoint);
         } catch (Exception e) {
             _logger.error("Exception caught", e);
         }
     }
 
+    /* Runs provisioner for every target, at most FANOUT_THREADS at a time, and returns the targets it failed on. A failed
+     * target does not stop the others */
+    private static List<String> fanOut(List<String> targetDbNames, Predicate<String> provisioner) {
+        int concurrency = Math.min(getFanOutThreads(), targetDbNames.size());
+        ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+        Map<String, Future<Boolean>> futures = new LinkedHashMap<>();
+        List<String> failed = new ArrayList<>();
+        _logger.info("Provisioning {} target databases with {} workers", targetDbNames.size(), concurrency);
+        try (final Timer.Context ignored = _cloneTimer.time()) {
+            for (String targetDbName : targetDbNames) {
+                futures.put(targetDbName, pool.submit(() -> provisioner.test(targetDbName)));
+            }
+            for (Map.Entry<String, Future<Boolean>> entry : futures.entrySet()) {
+                try {
+                    if (!entry.getValue().get()) failed.add(entry.getKey());
+                } catch (ExecutionException e) {
+                    _logger.error("Exception caught provisioning target database {}", entry.getKey(), e.getCause());
+                    failed.add(entry.getKey());
+                }
+            }
+        } catch (InterruptedException e) {
+            _logger.error("Interrupted while provisioning the target databases", e);
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+        }
+        if (failed.isEmpty()) {
+            _logger.info("Provisioned all {} target databases", targetDbNames.size());
+        } else {
+            _logger.warn("Provisioned {} of {} target databases, failed: {}", targetDbNames.size() - failed.size(), targetDbNames.size(), failed);
+        }
+        return failed;
+    }
+
+    /* The fan-out changeLog carries no catalog, so it is applied over a connection to the target database itself, which then
+     * also holds the change log tables until provision() drops them */
+    private static boolean spawnFanOutTarget(String targetDbName, FutureTask<List<ChangeSet>> changeLog) {
+        boolean provisioned = false;
+        long start = System.nanoTime();
+        try (final Timer.Context ignored = Metrics.phase("clone.target").time()) {
+            ProvisionCheckpoint checkpoint = openCheckpoint(targetDbName);
+            boolean resuming;
+            try (java.sql.Connection connection = getPool(optionsHelper.getOptionValue(SRC_URL)).getConnection()) {
+                resuming = canResume(connection, targetDbName, checkpoint);
+                if (!resuming && optionsHelper.hasOption(INCREMENTAL) && dbExists(connection, targetDbName)) {
+                    provisioned = applyIncrementally(targetDbName);
+                    if (!provisioned) _logger.warn("Incremental clone of {} could not be applied, falling back to a full rebuild", targetDbName);
+                }
+                if (!provisioned && !resuming && !recreateDb(connection, targetDbName, false)) {
+                    _logger.warn("Database {} may be in use, cannot access it. Skipping it...", targetDbName);
+                    return false;
+                }
+            }
+            List<ChangeSet> changeSets = provisioned ? null : awaitChangeLog(changeLog);
+            if (changeSets != null && resuming && !checkpoint.matches(ProvisionCheckpoint.fingerprint(changeSets))) {
+                _logger.warn("The lifted changeLog differs from the one {} was being built from, rebuilding it", targetDbName);
+                try (java.sql.Connection connection = getPool(optionsHelper.getOptionValue(SRC_URL)).getConnection()) {
+                    if (!recreateDb(connection, targetDbName, false)) return false;
+                }
+            }
+            if (changeSets != null) {
+                try (java.sql.Connection connection = getPool(getConnectString(targetDbName)).getConnection()) {
+                    provisioned = provision(connection, targetDbName, changeSets, checkpoint);
+                }
+            }
+        } catch (Exception e) {
+            _logger.error("Exception caught provisioning target database {}", targetDbName, e);
+        } finally {
+            _logger.info("Target database {} {} in {} ms", targetDbName, provisioned ? "provisioned" : "failed", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+        return provisioned;
+    }
+
+    /* Returns the checkpoint of the target, or null without --checkpoint_dir */
+    private static ProvisionCheckpoint openCheckpoint(String targetDbName) throws IOException {
+        String checkpointDir = optionsHelper.getOptionValue(CHECKPOINT_DIR);
+        return checkpointDir == null ? null : ProvisionCheckpoint.open(new File(checkpointDir), targetDbName);
+    }
+
+    /* An earlier run left the target incomplete and it is still there, so it is resumed instead of dropped */
+    private static boolean canResume(Connection connection, String targetDbName, ProvisionCheckpoint checkpoint) {
+        if (checkpoint == null || !checkpoint.isStarted() || !dbExists(connection, targetDbName)) return false;
+        _logger.info("Found a checkpoint for {}, resuming the provisioning left unfinished", targetDbName);
+        Metrics.counter("clone", "targetsResumed").inc();
+        return true;
+    }
+
+    /* The single-target changeLog keeps its change log tables in the default database, which outlive the dropped target */
+    private static boolean recreateDb(Connection connection, String targetDbName, boolean clearChangeLog) {
+        return (!clearChangeLog || deleteLiquiBaseDbChangeLog(connection)) && deleteDbIfExists(connection, targetDbName) && createDbIfNotExist(connection, targetDbName);
+    }
+
+    private static boolean copyData(String targetDbName, ProvisionCheckpoint checkpoint) {
+        ConnectionSource source = getPool(getConnectString(optionsHelper.getOptionValue(SRC_DB_NAME)));
+        ConnectionSource target = getPool(getConnectString(targetDbName));
+        _logger.info("Copying data from {} to {}", optionsHelper.getOptionValue(SRC_DB_NAME), targetDbName);
+        return new DataCopier(source, target, optionsHelper.getOptionValue(SRC_DB_NAME), optionsHelper.getOptionValue(SRC_DB_SCHEMA),
+                getDataThreads(), new HashSet<>(Arrays.asList(DB_CHANGELOG_NAME, DB_CHANGELOCK_NAME)), optionsHelper.hasOption(DEFER_CONSTRAINTS), checkpoint).copy();
+    }
+
+    private static int getDataThreads() {
+        return Math.max(1, getIntOption(DATA_THREADS, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /* Snapshots source and target, diffs them and applies only the delta changeSets to the target. Returns false whenever the
+     * delta cannot be applied safely, in which case the caller rebuilds the target from scratch */
+    private static boolean applyIncrementally(String targetDbName) {
+        try (java.sql.Connection sourceConnection = getPool(getConnectString(optionsHelper.getOptionValue(SRC_DB_NAME))).getConnection();
+             java.sql.Connection targetConnection = getPool(getConnectString(targetDbName)).getConnection()) {
+            Database sourceDb = DatabaseFactory.getInstance().findCorrectDatabaseImplementation(new JdbcConnection(sourceConnection));
+            Database targetDb = createLiquibaseDb(targetConnection);
+            if (targetDb == null) return false;
+
+            CompareControl compareControl = new CompareControl(getSchemaComparisons(targetDbName), (Set<Class<? extends DatabaseObject>>) null);
+            DatabaseSnapshot reference = BulkCatalogSnapshot.create(compareControl.getSchemas(CompareControl.DatabaseRole.REFERENCE), sourceDb, new SnapshotControl(sourceDb));
+            DatabaseSnapshot comparison = BulkCatalogSnapshot.create(compareControl.getSchemas(CompareControl.DatabaseRole.COMPARISON), targetDb, new SnapshotControl(targetDb));
+            DiffResult diffResult = DiffGeneratorFactory.getInstance().compare(reference, comparison, compareControl);
+
+            DiffOutputControl diffOutputControl = new DiffOutputControl(true, true, true, compareControl.getSchemaComparisons());
+            diffOutputControl.setObjectChangeFilter(new StandardObjectChangeFilter(StandardObjectChangeFilter.FilterType.EXCLUDE, "table:" + DB_CHANGELOG_NAME + ", table:" + DB_CHANGELOCK_NAME));
+            DiffToChangeLog writer = new DiffToChangeLog(diffResult, diffOutputControl);
+            writer.setChangeSetPath(targetDbName + "-incremental.xml"); // recorded as FILENAME in the change log table
+            List<ChangeSet> changeSets = writer.generateChangeSets();
+            if (changeSets.isEmpty()) {
+                _logger.info("Target database {} is already up to date", targetDbName);
+                return true;
+            }
+            for (ChangeSet changeSet : changeSets) {
+                for (Change change : changeSet.getChanges()) {
+                    String changeName = ChangeFactory.getInstance().getChangeMetaData(change).getName();
+                    if (UNSAFE_INCREMENTAL_CHANGES.contains(changeName)) {
+                        _logger.info("Delta contains {} on {}, which is not applied incrementally", changeName, SnapshotCache.ownerOf(changeSet));
+                        return false;
+                    }
+                }
+            }
+
+            DatabaseChangeLog changeLog = ChangeLogs.inMemory(writer.getChangeSetPath(), changeSets);
+            _logger.info("Applying {} delta changeSets to the target database {}", changeSets.size(), targetDbName);
+            try (Liquibase liquibase = new ScopedLiquibase(changeLog, new FileSystemResourceAccessor(), targetDb)) {
+                liquibase.setChangeExecListener(new ChangeTimingListener());
+                liquibase.update(new Contexts(), new LabelExpression());
+                deleteLiquiBaseDbChangeLog(targetConnection);
+            }
+            return true;
+        } catch (Exception e) {
+            _logger.error("Exception caught during applying the delta", e);
+            return false;
+        }
+    }
+
+    private static boolean dbExists(Connection connection, String databaseName) {
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("select db_id('"+databaseName+"')")) {
+            return rs.next() && rs.getObject(1) != null;
+        } catch (Exception e) {
+            _logger.error("Exception caught during checking for a database {}", databaseName, e);
+            return false;
+        }
+    }
+
+    private static CompareControl.SchemaComparison[] getSchemaComparisons(String targetDbName) {
+        String schemaName = optionsHelper.getOptionValue(SRC_DB_SCHEMA);
+        return new CompareControl.SchemaComparison[]{new CompareControl.SchemaComparison(
+                new CatalogAndSchema(optionsHelper.getOptionValue(SRC_DB_NAME), schemaName), new CatalogAndSchema(targetDbName, schemaName))};
+    }
+
+    private static int getBatchSize() {
+        return Math.max(1, getIntOption(TRGT_BATCH_SIZE, 1));
+    }
+
+    private static ConnectionPool getPool(String connectString) {
+        return ConnectionPool.get(connectString, optionsHelper.getOptionValue(SRC_USERNAME), optionsHelper.getOptionValue(SRC_PSWD));
+    }
+
+    /* H2 keeps one database per file, so there a database is addressed as a file in the directory the URL names */
+    private static String getConnectString(String databaseName) {
+        String url = optionsHelper.getOptionValue(SRC_URL);
+        if (url.startsWith(H2_URL_PREFIX)) {
+            int settings = url.indexOf(';');
+            String directory = settings < 0 ? url : url.substring(0, settings);
+            return directory + (directory.endsWith("/") ? "" : "/") + databaseName + (settings < 0 ? "" : url.substring(settings));
+        }
+        return url + "; database="+ databaseName+ ";";
+    }
+
+    private static List<String> getTargetDbNames() {
+        String targetDbNames = optionsHelper.getOptionValue(TRGT_DB_NAME);
+        return targetDbNames != null ? Arrays.asList(targetDbNames.trim().split("\\s*,\\s*")) : Collections.singletonList(optionsHelper.getOptionValue(SRC_DB_NAME));
+    }
+
+    private static boolean isSourceAmong(List<String> targetDbNames) {
+        String sourceDbName = optionsHelper.getOptionValue(SRC_DB_NAME);
+        return targetDbNames.stream().anyMatch(sourceDbName::equalsIgnoreCase);
+    }
+
+    private static int getFanOutThreads() {
+        return Math.max(1, getIntOption(FANOUT_THREADS, DEFAULT_FANOUT_THREADS));
+    }
+
+    private static int getIntOption(String label, int defaultValue) {
+        String value = optionsHelper.getOptionValue(label);
+        try {
+            return value == null ? defaultValue : Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            _logger.warn("Invalid {} value [{}], using {}", label, value, defaultValue);
+            return defaultValue;
+        }
+    }
+
     private static boolean deleteDbIfExists(Connection connection, String databaseName) {
         if (!DELETE_CREATE_TARGET) return true;
-        try (Statement stmt = connection.createStatement()) {
+        ConnectionPool.evict(getConnectString(databaseName)); // our own idle sessions would keep it in use
+        try (Statement stmt = connection.createStatement(); Timer.Context ignored = Metrics.phase("drop_db").time()) {
             _logger.info("Deleting database {} if it exists", databaseName);
             stmt.executeUpdate("if db_id('"+databaseName+"') is not null DROP DATABASE "+databaseName+";");
             return true;
@@ -141,7 +576,7 @@ public class LiquiBaseCloneDb {
 
     private static boolean createDbIfNotExist(Connection connection, String databaseName) {
         if (!DELETE_CREATE_TARGET) return true;
-        try (Statement stmt = connection.createStatement()) {
+        try (Statement stmt = connection.createStatement(); Timer.Context ignored = Metrics.phase("create_db").time()) {
             _logger.info("Creaing a database {} if it does not exist", databaseName);
             stmt.executeUpdate("if db_id('"+databaseName+"') is null create DATABASE "+databaseName+";");
             return true;
@@ -151,18 +586,71 @@ public class LiquiBaseCloneDb {
         }
     }
 
-    private static void createDbInstance(Connection connection) {
+    /* Creates the target schema and, with --data, loads it. By default the changeLog is applied in the order it was lifted;
+     * with --defer_constraints secondary indexes and constraints are built after the load, in parallel per table. The time
+     * spent in each phase is reported so both orderings can be compared. Returns false when the target was left incomplete,
+     * which with a checkpoint keeps the change log table and the checkpoint for the next run to resume from */
+    private static boolean provision(Connection connection, String targetDbName, List<ChangeSet> changeSets, ProvisionCheckpoint checkpoint) {
         Database database = createLiquibaseDb(connection);
         if (database == null) {
             _logger.warn("Database was not created, exiting...");
-            return;
+            return false;
         }
-        try (Liquibase liquibase = new Liquibase(outputFile.getAbsolutePath(), new FileSystemResourceAccessor(), database)){
-            _logger.info("Applying changes to the target database");
-            liquibase.update(new Contexts(), new LabelExpression());
+        boolean defer = optionsHelper.hasOption(DEFER_CONSTRAINTS);
+        try {
+            FileSystemResourceAccessor resourceAccessor = new FileSystemResourceAccessor();
+            DatabaseChangeLog changeLog = ChangeLogs.inMemoryCopy(optionsHelper.getOptionValue(SRC_DB_NAME) + CHANGELOG_PATH_SUFFIX, changeSets); // fanned out targets share changeSets
+            DatabaseChangeLog[] phases = defer ? ChangeLogs.deferIndexesAndConstraints(changeLog) : new DatabaseChangeLog[]{changeLog};
+            if (checkpoint != null) checkpoint.begin(ProvisionCheckpoint.fingerprint(changeSets));
+
+            long start = System.nanoTime();
+            _logger.info("Applying changes to the target database {}", targetDbName);
+            if (getBatchSize() > 1) {
+                if (!new ParallelChangeLogUpdater(database, getPool(getConnectString(targetDbName)), 1, getBatchSize()).update(phases[0], new Contexts(), new LabelExpression())) {
+                    _logger.warn("Change log was only partially applied, keeping {} for inspection", DB_CHANGELOG_NAME);
+                    return false;
+                }
+            } else {
+                // one changeLog replay per fanned out target at a time, as many targets at once as the server's limiter allows
+                try (ConcurrencyLimiter.Permit permit = ConcurrencyLimiter.get(optionsHelper.getOptionValue(SRC_URL), getFanOutThreads()).acquire("clone.changelog")) {
+                    Liquibase liquibase = new ScopedLiquibase(phases[0], resourceAccessor, database);
+                    liquibase.setChangeExecListener(new ChangeTimingListener());
+                    liquibase.update(new Contexts(), new LabelExpression());
+                    permit.succeeded();
+                }
+            }
+            long schemaDone = System.nanoTime();
+            if (optionsHelper.hasOption(COPY_DATA)) {
+                if (checkpoint != null && checkpoint.isDone(DATA_STEP)) {
+                    _logger.info("Data was copied into {} by an earlier run", targetDbName);
+                } else if (copyData(targetDbName, checkpoint)) {
+                    if (checkpoint != null) checkpoint.done(DATA_STEP);
+                } else if (checkpoint != null) {
+                    _logger.warn("Data was only partially copied into {}, keeping the checkpoint to resume from", targetDbName);
+                    return false;
+                } else {
+                    _logger.warn("Data was only partially copied into {}", targetDbName);
+                }
+            }
+            long dataDone = System.nanoTime();
+            if (defer) {
+                ConnectionSource target = getPool(getConnectString(targetDbName));
+                _logger.info("Building {} deferred index and constraint changeSets", phases[1].getChangeSets().size());
+                if (!new ParallelChangeLogUpdater(database, target, getDataThreads(), getBatchSize()).update(phases[1], new Contexts(), new LabelExpression())) {
+                    _logger.warn("Deferred indexes and constraints were only partially applied, keeping {} for inspection", DB_CHANGELOG_NAME);
+                    return false;
+                }
+            }
+            long done = System.nanoTime();
+            _logger.info("Provisioned {} with {} ordering in {} ms: schema {} ms, data {} ms, deferred indexes and constraints {} ms", targetDbName,
+                    defer ? "deferred" : "changelog", TimeUnit.NANOSECONDS.toMillis(done - start), TimeUnit.NANOSECONDS.toMillis(schemaDone - start),
+                    TimeUnit.NANOSECONDS.toMillis(dataDone - schemaDone), TimeUnit.NANOSECONDS.toMillis(done - dataDone));
             deleteLiquiBaseDbChangeLog(connection);
+            if (checkpoint != null) checkpoint.finish();
+            return true;
         } catch (Exception e) {
-            _logger.error("Exception caught during applying a change log", e);
+            _logger.error("Exception caught during applying a change log to {}", targetDbName, e);
+            return false;
         }
     }
 
@@ -210,6 +698,71 @@ public class LiquiBaseCloneDb {
             Option tmpPathOption = new Option("tp", TMP_PATH, true, "Temporary File Path");
             tmpPathOption.setRequired(true);
             _opts.addOption(tmpPathOption);
+
+            Option targetDbOption = new Option("td", TRGT_DB_NAME, true, "Target database, or a comma separated list of databases all provisioned from one lift; defaults to the source database");
+            targetDbOption.setRequired(false);
+            _opts.addOption(targetDbOption);
+
+            Option incrementalOption = new Option("inc", INCREMENTAL, false, "Apply only the source/target delta to an existing target database");
+            incrementalOption.setRequired(false);
+            _opts.addOption(incrementalOption);
+
+            Option dataOption = new Option("data", COPY_DATA, false, "Copy table data into the freshly created target");
+            dataOption.setRequired(false);
+            _opts.addOption(dataOption);
+
+            Option dataThreadsOption = new Option("dj", DATA_THREADS, true, "Number of concurrent table/key-range copies (default: number of CPUs)");
+            dataThreadsOption.setRequired(false);
+            _opts.addOption(dataThreadsOption);
+
+            Option deferOption = new Option("defer", DEFER_CONSTRAINTS, false, "Build secondary indexes and constraints after the data load, in parallel per table");
+            deferOption.setRequired(false);
+            _opts.addOption(deferOption);
+
+            Option batchOption = new Option("tb", TRGT_BATCH_SIZE, true, "Number of independent changeSets sent to the target in one JDBC batch");
+            batchOption.setRequired(false);
+            _opts.addOption(batchOption);
+
+            Option cacheDirOption = new Option("scd", SRC_CACHE_DIR, true, "Snapshot cache directory, enables incremental re-lifts of unchanged objects");
+            cacheDirOption.setRequired(false);
+            _opts.addOption(cacheDirOption);
+
+            Option chunkSizeOption = new Option("chunk", CHUNK_SIZE, true, "Also write the lifted changeLog into the temp path as a master changeLog including files of this many changeSets");
+            chunkSizeOption.setRequired(false);
+            _opts.addOption(chunkSizeOption);
+
+            Option checkpointDirOption = new Option("ckd", CHECKPOINT_DIR, true, "Directory keeping per-target progress, so a failed clone resumes instead of starting over");
+            checkpointDirOption.setRequired(false);
+            _opts.addOption(checkpointDirOption);
+
+            Option reportDirOption = new Option("rd", REPORT_DIR, true, "Directory receiving per-metric CSV files and a JSON run report");
+            reportDirOption.setRequired(false);
+            _opts.addOption(reportDirOption);
+
+            Option jmxOption = new Option("jmx", JMX, false, "Publish run metrics over JMX");
+            jmxOption.setRequired(false);
+            _opts.addOption(jmxOption);
+
+            Option traceOption = new Option("trace", TRACE_FILE, true, "Write a Chrome trace / Perfetto JSON timeline of the run to this file");
+            traceOption.setRequired(false);
+            _opts.addOption(traceOption);
+
+            Option transformOption = new Option("tr", TRANSFORM, true, "Comma separated rewrite rules applied to the lifted changeSets before they are written and applied: dropRemarks, catalogSuffix=X, catalog=A:B, schema=A:B, type=A:B, drop=<change type>");
+            transformOption.setRequired(false);
+            _opts.addOption(transformOption);
+
+            Option fanOutThreadsOption = new Option("fj", FANOUT_THREADS, true, "Number of target databases provisioned concurrently when several are given (default " + DEFAULT_FANOUT_THREADS + ")");
+            fanOutThreadsOption.setRequired(false);
+            _opts.addOption(fanOutThreadsOption);
+
+            Option strategyOption = new Option("cs", CLONE_STRATEGY, true, CHANGELOG_STRATEGY + " (default) replays the lifted changeLog, " + NATIVE_STRATEGY + " copies the whole database with the engine's snapshot and restore when the source holds nothing outside the schema and no transform is given (DBCC CLONEDATABASE copies are not supported for production use)");
+            strategyOption.setRequired(false);
+            _opts.addOption(strategyOption);
+
+            Option backupPathOption = new Option("bp", BACKUP_PATH, true, "Server-side directory for native SQL Server backups (default: the instance default backup path)");
+            backupPathOption.setRequired(false);
+            _opts.addOption(backupPathOption);
+
             parseOptions(args);
         }
 
@@ -224,5 +777,8 @@ public class LiquiBaseCloneDb {
         String getOptionValue (String optionLabel){
             return _cmd.getOptionValue(optionLabel);
         }
+        boolean hasOption (String optionLabel){
+            return _cmd.hasOption(optionLabel);
+        }
     }
 }
@@ -1,9 +1,15 @@
 package db.liquibase;
 
-import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
+import db.jdbc.ConcurrencyLimiter;
+import db.jdbc.ConnectionPool;
+import db.jdbc.DriverRegistry;
+import db.metrics.Metrics;
+import db.metrics.Trace;
+import db.service.ServiceClient;
 import liquibase.CatalogAndSchema;
 import liquibase.Liquibase;
+import liquibase.changelog.ChangeSet;
 import liquibase.database.Database;
 import liquibase.database.DatabaseFactory;
 import liquibase.database.jvm.JdbcConnection;
@@ -15,24 +21,22 @@ import liquibase.serializer.core.json.JsonChangeLogSerializer;
 import org.apache.commons.cli.*;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.codehaus.jackson.JsonFactory;
-import org.codehaus.jackson.JsonGenerator;
-import org.codehaus.jackson.JsonParser;
-import org.codehaus.jackson.JsonToken;
-import org.codehaus.jackson.map.MappingJsonFactory;
-import org.codehaus.jackson.util.DefaultPrettyPrinter;
-
-import java.io.ByteArrayOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.FileOutputStream;
-import java.io.PrintStream;
-import java.net.URL;
-import java.net.URLClassLoader;
-import java.sql.Driver;
-import java.sql.DriverManager;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import static com.codahale.metrics.MetricRegistry.name;
 import static java.lang.System.exit;
 
 /* Auto-generates Change Log. Works for MS-SQL and Oracle */
@@ -45,64 +49,140 @@ public class LiquiBaseConnector {
     private static final String SRC_DB_SCHEMA = "s_schema";
     private static final String TRGT_DRIVER = "t_driver";
     private static final String TRGT_DRIVER_PATH = "t_driver_path";
+    private static final String SRC_THREADS = "s_threads";
+    private static final String SRC_CACHE_DIR = "s_cache_dir";
+    private static final String CHUNK_SIZE = "chunk_size";
+    private static final String REPORT_DIR = "report_dir";
+    private static final String JMX = "jmx";
+    private static final String TRACE_FILE = "trace_file";
+    private static final String TRANSFORM = "transform";
 
     private static final String CHANGELOG_LOC = "src/main/resources/LiquiBaseChangeLog.json";
+    private static final String DEFAULT_TRANSFORM = ChangeSetTransformer.DROP_REMARKS + "," + ChangeSetTransformer.CATALOG_SUFFIX + "=Clone";
     private static final Logger _logger = LogManager.getLogger(LiquiBaseConnector.class);
-    private static final MetricRegistry _metrics = new MetricRegistry();
-    private static final Timer _liquiBaseTimer = _metrics.timer(name(LiquiBaseConnector.class, SRC_URL));
+    private static final Timer _liquiBaseTimer = Metrics.phase("lift");
     private static LiquiBaseConnector.OptionsHelper optionsHelper;
     private static final List<String> SCHEMAS = new ArrayList<>();
+    private static SnapshotCache snapshotCache;
+    private static ChangeSetTransformer transformer;
 
     public static void main(String[] args) {
-        SCHEMAS.add("dbo");
-        org.apache.log4j.Logger.getRootLogger().setLevel(org.apache.log4j.Level.OFF);
+        if (ServiceClient.isEnabled()) exit(ServiceClient.forward("lift", args));
+        if (!ServiceClient.isInService()) org.apache.log4j.Logger.getRootLogger().setLevel(org.apache.log4j.Level.OFF);
         optionsHelper = new LiquiBaseConnector.OptionsHelper(args);
+        SCHEMAS.addAll(Arrays.asList(optionsHelper.getOptionValue(SRC_DB_SCHEMA).split("\\s*,\\s*")));
+        try {
+            String transform = optionsHelper.getOptionValue(TRANSFORM);
+            transformer = ChangeSetTransformer.parse(transform == null ? DEFAULT_TRANSFORM : transform);
+        } catch (IllegalArgumentException e) {
+            _logger.error("Error parsing the {} option", TRANSFORM, e);
+            exit(-2);
+        }
         _logger.info("Initiating connection to {} DB with userName {}, password {}", optionsHelper.getOptionValue(SRC_URL), optionsHelper.getOptionValue(SRC_USERNAME), optionsHelper.getOptionValue(SRC_PSWD));
-       initializeDriver();
+        try (Metrics ignored = Metrics.start(LiquiBaseConnector.class.getSimpleName(), optionsHelper.getOptionValue(REPORT_DIR), optionsHelper.hasOption(JMX));
+             Trace ignoredTrace = Trace.start(optionsHelper.getOptionValue(TRACE_FILE))) {
+            initializeDriver();
+            if (optionsHelper.getOptionValue(SRC_CACHE_DIR) != null) {
+                snapshotCache = new SnapshotCache(new File(optionsHelper.getOptionValue(SRC_CACHE_DIR)));
+            }
 
-        liftSchemaFromSource();
-        _logger.info("MeanRate for time to complete generating changeLog {} s, over {} events", _liquiBaseTimer.getMeanRate(), _liquiBaseTimer.getCount());
+            liftSchemaFromSource();
+            _logger.info("Time to complete generating changeLog {} ms", Metrics.millis(_liquiBaseTimer.getSnapshot().getMax()));
+        } finally {
+            ConnectionPool.closeAll();
+        }
     }
 
     private static void initializeDriver() {
 
-        try (URLClassLoader ucl = new URLClassLoader(new URL[] {new URL(optionsHelper.getOptionValue(TRGT_DRIVER_PATH))})) {
-            Driver d = (Driver)Class.forName(optionsHelper.getOptionValue(TRGT_DRIVER), true, ucl).newInstance();
-            DriverManager.registerDriver(DriverShim.getInstance(d));
-            _logger.info("Driver {} was initialized OK", optionsHelper.getOptionValue(TRGT_DRIVER));
+        try {
+            DriverRegistry.register(optionsHelper.getOptionValue(TRGT_DRIVER_PATH), optionsHelper.getOptionValue(TRGT_DRIVER));
         } catch (Exception e) {
             _logger.error("Exception caught", e);
         }
     }
 
     private static void liftSchemaFromSource() {
-        String connectString = optionsHelper.getOptionValue(SRC_URL);
-        if (optionsHelper.getOptionValue(SRC_DB_NAME) != null){
-            connectString = optionsHelper.getOptionValue(SRC_URL) + "; database="+ optionsHelper.getOptionValue(SRC_DB_NAME)+ ";"; // We need to be within the database of interest in order to lift the schema
+        int concurrency = getConcurrency();
+        String idRoot = String.valueOf(new Date().getTime()); // shared by all schemas so parallel and sequential runs emit the same changeSet ids
+        if (concurrency > 1 && SCHEMAS.size() > 1) {
+            liftSchemasInParallel(concurrency, idRoot);
+            return;
         }
-        try (java.sql.Connection connection = DriverManager.getConnection(connectString, optionsHelper.getOptionValue(SRC_USERNAME), optionsHelper.getOptionValue(SRC_PSWD));
+        try (java.sql.Connection connection = getSourceConnection();
              final Timer.Context ignored = _liquiBaseTimer.time()){
             Database database = DatabaseFactory.getInstance().findCorrectDatabaseImplementation(new JdbcConnection(connection));
-            generateChangeLog(database, optionsHelper.getOptionValue(SRC_DB_NAME));
+            generateChangeLog(database, optionsHelper.getOptionValue(SRC_DB_NAME), idRoot);
         } catch (Exception e) {
             _logger.error("Exception caught when lifting the schema", e);
         }
     }
 
-    private static void generateChangeLog(Database database, String databaseName) {
+    /* Every schema gets its own connection, Database and Liquibase instance, so workers share no JDBC or snapshot state. The
+     * source's limiter decides how many of the workers snapshot at once */
+    private static void liftSchemasInParallel(int concurrency, String idRoot) {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(concurrency, SCHEMAS.size()));
+        List<Future<?>> futures = new ArrayList<>();
+        _logger.info("Lifting {} schemas with {} workers", SCHEMAS.size(), Math.min(concurrency, SCHEMAS.size()));
+        try (final Timer.Context ignored = _liquiBaseTimer.time()) {
+            for (String schema : SCHEMAS) {
+                futures.add(pool.submit(() -> liftSchema(schema, idRoot)));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    _logger.error("Exception caught when lifting the schema", e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            _logger.error("Interrupted while lifting the schemas", e);
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static void liftSchema(String schema, String idRoot) {
+        try (ConcurrencyLimiter.Permit permit = ConcurrencyLimiter.get(getSourceConnectString(), getConcurrency()).acquire("lift");
+             java.sql.Connection connection = getSourceConnection()) {
+            Database database = DatabaseFactory.getInstance().findCorrectDatabaseImplementation(new JdbcConnection(connection));
+            try (Liquibase liquibase = new Liquibase(CHANGELOG_LOC, new FileSystemResourceAccessor(), database)) {
+                generateSchemaChangeLog(liquibase, optionsHelper.getOptionValue(SRC_DB_NAME), schema, idRoot);
+            }
+            permit.succeeded();
+        } catch (Exception e) {
+            _logger.error("Exception caught when lifting schema {}", schema, e);
+        }
+    }
+
+    private static java.sql.Connection getSourceConnection() throws SQLException {
+        return ConnectionPool.get(getSourceConnectString(), optionsHelper.getOptionValue(SRC_USERNAME), optionsHelper.getOptionValue(SRC_PSWD)).getConnection();
+    }
+
+    private static String getSourceConnectString() {
+        String connectString = optionsHelper.getOptionValue(SRC_URL);
+        if (optionsHelper.getOptionValue(SRC_DB_NAME) != null){
+            connectString = optionsHelper.getOptionValue(SRC_URL) + "; database="+ optionsHelper.getOptionValue(SRC_DB_NAME)+ ";"; // We need to be within the database of interest in order to lift the schema
+        }
+        return connectString;
+    }
+
+    private static int getConcurrency() {
+        String threads = optionsHelper.getOptionValue(SRC_THREADS);
+        try {
+            return threads == null ? 1 : Math.max(1, Integer.parseInt(threads));
+        } catch (NumberFormatException e) {
+            _logger.warn("Invalid {} value [{}], lifting schemas sequentially", SRC_THREADS, threads);
+            return 1;
+        }
+    }
+
+    private static void generateChangeLog(Database database, String databaseName, String idRoot) {
         try (Liquibase liquibase = new Liquibase(CHANGELOG_LOC, new FileSystemResourceAccessor(), database)){
             SCHEMAS.forEach( schema -> {
                 try {
-                    CatalogAndSchema catalogAndSchema = new CatalogAndSchema(databaseName, schema);
-                    DiffOutputControl diffOutputControl = new DiffOutputControl();
-                    StandardObjectChangeFilter standardObjectChangeFilter = new StandardObjectChangeFilter(StandardObjectChangeFilter.FilterType.EXCLUDE,"view:snapshot.*");
-                    diffOutputControl.setObjectChangeFilter(standardObjectChangeFilter);
-                    DiffToChangeLog writer = new DiffToChangeLog(diffOutputControl);
-                    JsonChangeLogSerializer jsonChangeLogSerializer = new JsonChangeLogSerializer();
-                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                    PrintStream pw = new PrintStream(baos);
-                    liquibase.generateChangeLog(catalogAndSchema, writer, pw,  jsonChangeLogSerializer);
-                    tweakJson(baos, schema);
+                    generateSchemaChangeLog(liquibase, databaseName, schema, idRoot);
                 } catch (Exception e) {
                     _logger.error("Exception caught when generating ChangeLog", e);
                 }
@@ -112,76 +192,62 @@ public class LiquiBaseConnector {
         }
     }
 
-    private static void tweakJson(ByteArrayOutputStream baos, String schemaName){
-        int depth = 0;
-        JsonFactory f = new MappingJsonFactory();
-        String jsn= baos.toString();
-        String fileName = CHANGELOG_LOC.split("\\.")[0]+"_"+schemaName+"."+CHANGELOG_LOC.split("\\.")[1];
-
-        try(JsonParser jp = f.createJsonParser(jsn);JsonGenerator jg = f.createJsonGenerator(new FileOutputStream(fileName))){
-        jg.setPrettyPrinter(new DefaultPrettyPrinter());
-
-        JsonToken current;
-        current = jp.nextToken();
-        String fieldName;
-
-        while (current != null) {
-            if (current == JsonToken.FIELD_NAME) {
-                fieldName = jp.getText();
-
-                    if ("remarks".equals(fieldName)){ // we have the field name
-                        jp.nextToken();               // getting field value
-                        _logger.info("Removing {}, value {}", jp.getCurrentName(), jp.getText());
-                        current = jp.nextToken();     // skipping to the next field name and not writing it out
-                        continue;
-                    }
-                    else if("catalogName".equals(fieldName)){
-                        jg.writeFieldName(fieldName);
-                        jp.nextToken();                // get catalogue field value
-                        jg.writeString(jp.getText()+"Clone");
-                        current = jp.nextToken();
-                        continue;
-                    }
-                //otherwise get field value and write it out
-                current = jp.nextToken();
-                jg.writeFieldName(fieldName);
-            }
-            if (current == null) {
-                _logger.info("Received a null value, something up..");
-            } else if (current == JsonToken.START_ARRAY) {
-                jg.writeStartArray();
-            } else if (current == JsonToken.END_ARRAY) {
-                jg.writeEndArray();
-            } else if (current == JsonToken.START_OBJECT) {
-                jg.writeStartObject();
-                depth++;
-            } else if (current == JsonToken.END_OBJECT) {
-                if (depth > 0) {
-                    jg.writeEndObject();
-                }
-            } else if (current == JsonToken.VALUE_TRUE) {
-                jg.writeBoolean(true);
-            } else if (current == JsonToken.VALUE_FALSE) {
-                jg.writeBoolean(false);
-            } else if (current == JsonToken.VALUE_STRING) {
-                    jg.writeString(jp.getText());
-            } else if (current == JsonToken.VALUE_NULL) {
-                jg.writeNull();
-            } else if (current == JsonToken.VALUE_NUMBER_FLOAT) {
-                String fieldValue = Float.toString(jp.getFloatValue());
-                jg.writeNumber(Float.parseFloat(fieldValue));
-            } else if (current == JsonToken.VALUE_NUMBER_INT) {
-                String fieldValue = Long.toString(jp.getLongValue());
-                jg.writeNumber(Long.parseLong(fieldValue));
-            } else {
-               _logger.warn("Unknown type");
-            }
-            current = jp.nextToken();
+    private static void generateSchemaChangeLog(Liquibase liquibase, String databaseName, String schema, String idRoot) throws Exception {
+        CatalogAndSchema catalogAndSchema = new CatalogAndSchema(databaseName, schema);
+        DiffOutputControl diffOutputControl = new DiffOutputControl();
+        StandardObjectChangeFilter standardObjectChangeFilter = new StandardObjectChangeFilter(StandardObjectChangeFilter.FilterType.EXCLUDE,"view:snapshot.*");
+        diffOutputControl.setObjectChangeFilter(standardObjectChangeFilter);
+        DiffToChangeLog writer = new DiffToChangeLog(diffOutputControl);
+        writer.setIdRoot(idRoot);
+        JsonChangeLogSerializer jsonChangeLogSerializer = new JsonChangeLogSerializer();
+        List<ChangeSet> changeSets = transformer.apply(liftChangeSets(liquibase, catalogAndSchema, writer, idRoot));
+        if (getChunkSize() > 0) {
+            writeChunkedChangeLog(changeSets, schema, jsonChangeLogSerializer);
+            return;
         }
-        jg.flush();
+
+        String fileName = getChangeLogFileName(schema);
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(fileName));
+             Timer.Context ignored = Metrics.phase("serialize").time()) {
+            jsonChangeLogSerializer.write(changeSets, out);
         }
-        catch (Exception e){
-            _logger.error("Exception caught when parsing Json", e);
+        long bytes = new File(fileName).length();
+        Metrics.counter("json", "bytes").inc(bytes);
+        Metrics.histogram("json", "bytes").update(bytes);
+        _logger.info("Wrote {}", fileName);
+    }
+
+    private static List<ChangeSet> liftChangeSets(Liquibase liquibase, CatalogAndSchema catalogAndSchema, DiffToChangeLog writer, String idRoot) throws Exception {
+        return snapshotCache == null
+                ? SnapshotCache.snapshotAndDiff(liquibase.getDatabase(), catalogAndSchema, null, writer)
+                : snapshotCache.generateChangeSets(liquibase.getDatabase(), catalogAndSchema, writer, idRoot);
+    }
+
+    /* Writes the schema changeLog as a master including chunk files of CHUNK_SIZE changeSets, each serialized on its own, so
+     * only one chunk of changeSets is written at a time */
+    private static void writeChunkedChangeLog(List<ChangeSet> changeSets, String schemaName, JsonChangeLogSerializer serializer) throws IOException {
+        File master = new File(getChangeLogFileName(schemaName));
+        try (ChunkedChangeLogWriter chunks = new ChunkedChangeLogWriter(master, getChunkSize(), (chunk, out) -> {
+            try (Timer.Context ignored = Metrics.phase("serialize").time()) {
+                serializer.write(chunk, out);
+            }
+        })) {
+            chunks.addAll(changeSets);
+        }
+        _logger.info("Wrote {}", master);
+    }
+
+    private static String getChangeLogFileName(String schemaName) {
+        return CHANGELOG_LOC.split("\\.")[0]+"_"+schemaName+"."+CHANGELOG_LOC.split("\\.")[1];
+    }
+
+    private static int getChunkSize() {
+        String chunkSize = optionsHelper.getOptionValue(CHUNK_SIZE);
+        try {
+            return chunkSize == null ? 0 : Math.max(0, Integer.parseInt(chunkSize));
+        } catch (NumberFormatException e) {
+            _logger.warn("Invalid {} value [{}], writing one changeLog file", CHUNK_SIZE, chunkSize);
+            return 0;
         }
     }
 
@@ -206,7 +272,7 @@ public class LiquiBaseConnector {
             dbnameOption.setRequired(false);
             _opts.addOption(dbnameOption);
 
-            Option schemaNameOption = new Option("ss", SRC_DB_SCHEMA, true, "Schema");
+            Option schemaNameOption = new Option("ss", SRC_DB_SCHEMA, true, "Comma separated list of schemas");
             schemaNameOption.setRequired(true);
             _opts.addOption(schemaNameOption);
 
@@ -222,6 +288,34 @@ public class LiquiBaseConnector {
             tDriverPathOption.setRequired(true);
             _opts.addOption(tDriverPathOption);
 
+            Option threadsOption = new Option("sj", SRC_THREADS, true, "Number of schemas lifted concurrently, each on its own connection (default 1)");
+            threadsOption.setRequired(false);
+            _opts.addOption(threadsOption);
+
+            Option cacheDirOption = new Option("scd", SRC_CACHE_DIR, true, "Snapshot cache directory, enables incremental re-lifts of unchanged objects");
+            cacheDirOption.setRequired(false);
+            _opts.addOption(cacheDirOption);
+
+            Option chunkSizeOption = new Option("chunk", CHUNK_SIZE, true, "Split each schema changeLog into files of this many changeSets, included by a master changeLog");
+            chunkSizeOption.setRequired(false);
+            _opts.addOption(chunkSizeOption);
+
+            Option reportDirOption = new Option("rd", REPORT_DIR, true, "Directory receiving per-metric CSV files and a JSON run report");
+            reportDirOption.setRequired(false);
+            _opts.addOption(reportDirOption);
+
+            Option jmxOption = new Option("jmx", JMX, false, "Publish run metrics over JMX");
+            jmxOption.setRequired(false);
+            _opts.addOption(jmxOption);
+
+            Option traceOption = new Option("trace", TRACE_FILE, true, "Write a Chrome trace / Perfetto JSON timeline of the run to this file");
+            traceOption.setRequired(false);
+            _opts.addOption(traceOption);
+
+            Option transformOption = new Option("tr", TRANSFORM, true, "Comma separated rewrite rules applied to the lifted changeSets before they are written: dropRemarks, catalogSuffix=X, catalog=A:B, schema=A:B, type=A:B, drop=<change type> (default " + DEFAULT_TRANSFORM + ")");
+            transformOption.setRequired(false);
+            _opts.addOption(transformOption);
+
             parseOptions(args);
         }
 
@@ -236,5 +330,9 @@ public class LiquiBaseConnector {
         String getOptionValue (String optionLabel){
             return _cmd.getOptionValue(optionLabel);
         }
+
+        boolean hasOption(String optionLabel) {
+            return _cmd.hasOption(optionLabel);
+        }
     }
 }
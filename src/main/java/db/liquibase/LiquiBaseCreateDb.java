@@ -1,14 +1,22 @@
 package db.liquibase;
 
-import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
+import db.jdbc.ConnectionPool;
+import db.jdbc.ConnectionSource;
+import db.jdbc.DriverRegistry;
+import db.metrics.Metrics;
+import db.metrics.Trace;
+import db.service.ServiceClient;
 import liquibase.Contexts;
 import liquibase.LabelExpression;
 import liquibase.Liquibase;
+import liquibase.changelog.ChangeLogParameters;
+import liquibase.changelog.DatabaseChangeLog;
 import liquibase.database.Database;
 import liquibase.database.DatabaseFactory;
 import liquibase.database.jvm.JdbcConnection;
 import liquibase.exception.DatabaseException;
+import liquibase.parser.ChangeLogParserFactory;
 import liquibase.resource.FileSystemResourceAccessor;
 import org.apache.commons.cli.*;
 import org.apache.log4j.BasicConfigurator;
@@ -16,16 +24,14 @@ import org.apache.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.net.URL;
-import java.net.URLClassLoader;
+import java.io.File;
 import java.sql.Connection;
-import java.sql.Driver;
-import java.sql.DriverManager;
+import java.sql.ResultSet;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
-import static com.codahale.metrics.MetricRegistry.name;
 import static java.lang.System.exit;
 
 public class LiquiBaseCreateDb {
@@ -38,58 +44,97 @@ public class LiquiBaseCreateDb {
     private static final String TRGT_DBNAME = "t_database";
     private static final String TRGT_DRIVER = "t_driver";
     private static final String TRGT_DRIVER_PATH = "t_driver_path";
+    private static final String TRGT_THREADS = "t_threads";
+    private static final String DEFER_CONSTRAINTS = "defer_constraints";
+    private static final String TRGT_BATCH_SIZE = "t_batch_size";
+    private static final String REPORT_DIR = "report_dir";
+    private static final String JMX = "jmx";
+    private static final String TRACE_FILE = "trace_file";
+    private static final String CHANGELOG_CACHE_DIR = "changelog_cache_dir";
+    private static final String CHECKPOINT_DIR = "checkpoint_dir";
 
     private static final String CHANGELOG_LOC = "src/main/resources/LiquiBaseChangeLog_dbo.json";
     private static final Logger _logger = LogManager.getLogger(LiquiBaseCreateDb.class);
-    private static final MetricRegistry _metrics = new MetricRegistry();
-    private static final Timer _liquiBaseTimer = _metrics.timer(name(LiquiBaseCreateDb.class, TRGT_URL));
+    private static final Timer _liquiBaseTimer = Metrics.phase("create");
     private static final boolean CLEAR_CHANGE_HISTORY = true;
     private static final boolean DELETE_CREATE_TARGET = true;
     private static final List<String> SCHEMAS = new ArrayList<>();
     private static LiquiBaseCreateDb.OptionsHelper optionsHelper;
 
-    /* Creates a DB and restoring schema using supplied Change Log */
+    /* Creates a DB and restoring schema using supplied Change Log. With --checkpoint_dir a database left incomplete by an
+     * earlier run of the same changeLog is not dropped, the changeSets it still misses are applied to it */
 
     public static void main(String[] args) {
-        org.apache.log4j.Logger.getRootLogger().setLevel(Level.DEBUG);
+        if (ServiceClient.isEnabled()) exit(ServiceClient.forward("create", args));
         optionsHelper = new LiquiBaseCreateDb.OptionsHelper(args);
-        BasicConfigurator.configure();
+        if (!ServiceClient.isInService()) {
+            org.apache.log4j.Logger.getRootLogger().setLevel(Level.DEBUG);
+            BasicConfigurator.configure();
+        }
         SCHEMAS.add("dbo");
 
-        initializeDriver();
-        _logger.info("Initiating connection to {} DB with userName {}, password {}", optionsHelper.getOptionValue(TRGT_URL), optionsHelper.getOptionValue(TRGT_USER) , optionsHelper.getOptionValue(TRGT_PSWD));
-        spawnDb();
-        _logger.info("MeanRate for time to complete generating changeLog {} s, over {} events", _liquiBaseTimer.getMeanRate(), _liquiBaseTimer.getCount());
+        try (Metrics ignored = Metrics.start(LiquiBaseCreateDb.class.getSimpleName(), optionsHelper.getOptionValue(REPORT_DIR), optionsHelper.hasOption(JMX));
+             Trace ignoredTrace = Trace.start(optionsHelper.getOptionValue(TRACE_FILE))) {
+            initializeDriver();
+            _logger.info("Initiating connection to {} DB with userName {}, password {}", optionsHelper.getOptionValue(TRGT_URL), optionsHelper.getOptionValue(TRGT_USER) , optionsHelper.getOptionValue(TRGT_PSWD));
+            spawnDb();
+            _logger.info("Time to complete creating the database {} ms", Metrics.millis(_liquiBaseTimer.getSnapshot().getMax()));
+        } finally {
+            ConnectionPool.closeAll();
+        }
     }
 
     private static void initializeDriver() {
 
-        try (URLClassLoader ucl = new URLClassLoader(new URL[] {new URL(optionsHelper.getOptionValue(TRGT_DRIVER_PATH))})) {
-            Driver d = (Driver)Class.forName(optionsHelper.getOptionValue(TRGT_DRIVER), true, ucl).newInstance();
-            DriverManager.registerDriver(DriverShim.getInstance(d));
-            _logger.info("Driver {} was initialized OK", optionsHelper.getOptionValue(TRGT_DRIVER));
+        try {
+            DriverRegistry.register(optionsHelper.getOptionValue(TRGT_DRIVER_PATH), optionsHelper.getOptionValue(TRGT_DRIVER));
         } catch (Exception e) {
             _logger.error("Exception caught", e);
         }
     }
 
     private static void spawnDb() {
-        try (java.sql.Connection connection = DriverManager.getConnection(optionsHelper.getOptionValue(TRGT_URL), optionsHelper.getOptionValue(TRGT_USER) , optionsHelper.getOptionValue(TRGT_PSWD)); // need to be in the high-level "default" db
+        String dbName = optionsHelper.getOptionValue(TRGT_DBNAME);
+        try (java.sql.Connection connection = getTargetPool().getConnection(); // need to be in the high-level "default" db
              final Timer.Context ignored = _liquiBaseTimer.time()){
-            if (!deleteLiquiBaseDbChangeLog(connection) || !deleteDbIfExists(connection, optionsHelper.getOptionValue(TRGT_DBNAME)) || !createDbIfNotExist(connection, optionsHelper.getOptionValue(TRGT_DBNAME))) {
+            ProvisionCheckpoint checkpoint = null;
+            DatabaseChangeLog changeLog = null;
+            String fingerprint = null;
+            if (optionsHelper.getOptionValue(CHECKPOINT_DIR) != null) {
+                checkpoint = ProvisionCheckpoint.open(new File(optionsHelper.getOptionValue(CHECKPOINT_DIR)), dbName);
+                Database database = createLiquibaseDb(connection);
+                if (database == null) return;
+                changeLog = parseChangeLog(database, new FileSystemResourceAccessor());
+                fingerprint = ProvisionCheckpoint.fingerprint(changeLog.getChangeSets());
+            }
+            boolean resuming = checkpoint != null && checkpoint.isStarted() && checkpoint.matches(fingerprint) && dbExists(connection, dbName);
+            if (resuming) {
+                _logger.info("Found a checkpoint for {}, resuming the changeLog left unfinished", dbName);
+            } else if (!deleteLiquiBaseDbChangeLog(connection) || !deleteDbIfExists(connection, dbName) || !createDbIfNotExist(connection, dbName)) {
                 _logger.warn("Database may be in use, cannot access it. Aborting...");
                 return;
             }
-            createSchemasIfNotExist(connection, optionsHelper.getOptionValue(TRGT_DBNAME));
-            createDbInstance(connection);
+            createSchemasIfNotExist(connection, dbName);
+            if (checkpoint != null) checkpoint.begin(fingerprint);
+            createDbInstance(connection, changeLog, checkpoint);
         } catch (Exception e) {
             _logger.error("Exception caught", e);
         }
     }
 
+    private static boolean dbExists(Connection connection, String databaseName) {
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("select db_id('"+databaseName+"')")) {
+            return rs.next() && rs.getObject(1) != null;
+        } catch (Exception e) {
+            _logger.error("Exception caught during checking for a database {}", databaseName, e);
+            return false;
+        }
+    }
+
     private static boolean deleteDbIfExists(Connection connection, String databaseName) {
         if (!DELETE_CREATE_TARGET) return true;
-        try (Statement stmt = connection.createStatement()) {
+        try (Statement stmt = connection.createStatement(); Timer.Context ignored = Metrics.phase("drop_db").time()) {
             _logger.info("Deleting database {} if it exists", databaseName);
             stmt.executeUpdate("if db_id('"+databaseName+"') is not null DROP DATABASE "+databaseName+";");
             return true;
@@ -117,7 +162,7 @@ public class LiquiBaseCreateDb {
 
     private static boolean createDbIfNotExist(Connection connection, String databaseName) {
         if (!DELETE_CREATE_TARGET) return true;
-        try (Statement stmt = connection.createStatement()) {
+        try (Statement stmt = connection.createStatement(); Timer.Context ignored = Metrics.phase("create_db").time()) {
             _logger.info("Creating a database {} if it does not exist", databaseName);
             stmt.executeUpdate("if db_id('"+databaseName+"') is null create DATABASE "+databaseName+";");
             return true;
@@ -146,21 +191,104 @@ public class LiquiBaseCreateDb {
         }
     }
 
-    private static void createDbInstance(Connection connection) {
+    /* changeLog is the already parsed changeLog, or null to read it here. The change log table is only dropped once the whole
+     * changeLog went in, so a failed run leaves the applied changeSets recorded for a resume */
+    private static void createDbInstance(Connection connection, DatabaseChangeLog changeLog, ProvisionCheckpoint checkpoint) {
         Database database = createLiquibaseDb(connection);
         if (database == null) {
             _logger.warn("Database was not created, exiting...");
             return;
         }
-        try (Liquibase liquibase = new Liquibase(CHANGELOG_LOC, new FileSystemResourceAccessor(), database)){
+        int concurrency = getConcurrency();
+        if (concurrency > 1 || optionsHelper.hasOption(DEFER_CONSTRAINTS) || getBatchSize() > 1) {
+            applyInPhases(connection, database, concurrency, changeLog, checkpoint);
+            return;
+        }
+        FileSystemResourceAccessor resourceAccessor = new FileSystemResourceAccessor();
+        try (Liquibase liquibase = changeLog == null && optionsHelper.getOptionValue(CHANGELOG_CACHE_DIR) == null
+                ? new ScopedLiquibase(CHANGELOG_LOC, resourceAccessor, database) // other service jobs may be mid-update
+                : new ScopedLiquibase(changeLog != null ? changeLog : parseChangeLog(database, resourceAccessor), resourceAccessor, database)){
             _logger.info("Applying changes to the target database");
+            liquibase.setChangeExecListener(new ChangeTimingListener());
             liquibase.update(new Contexts(), new LabelExpression());
             deleteLiquiBaseDbChangeLog(connection);
+            if (checkpoint != null) checkpoint.finish();
         } catch (Exception e) {
             _logger.error("Exception caught during applying a change log", e);
         }
     }
 
+    /* Applies the changeLog through ParallelChangeLogUpdater. With --defer_constraints tables go in first and secondary
+     * indexes and constraints follow in a second phase, which always runs on a pool since each table is independent */
+    private static void applyInPhases(Connection connection, Database database, int concurrency, DatabaseChangeLog parsedChangeLog, ProvisionCheckpoint checkpoint) {
+        String dbName = optionsHelper.getOptionValue(TRGT_DBNAME);
+        ConnectionSource targetConnections = () -> {
+            Connection target = getTargetPool().getConnection();
+            target.setCatalog(dbName);
+            return target;
+        };
+        boolean defer = optionsHelper.hasOption(DEFER_CONSTRAINTS);
+        try {
+            FileSystemResourceAccessor resourceAccessor = new FileSystemResourceAccessor();
+            DatabaseChangeLog changeLog = parsedChangeLog != null ? parsedChangeLog : parseChangeLog(database, resourceAccessor);
+            DatabaseChangeLog[] phases = defer ? ChangeLogs.deferIndexesAndConstraints(changeLog) : new DatabaseChangeLog[]{changeLog};
+            _logger.info("Applying changes to the target database with {} connections", concurrency);
+            long start = System.nanoTime();
+            boolean applied = new ParallelChangeLogUpdater(database, targetConnections, concurrency, getBatchSize()).update(phases[0], new Contexts(), new LabelExpression());
+            long schemaNanos = System.nanoTime() - start;
+            if (applied && defer) {
+                int deferredConcurrency = optionsHelper.getOptionValue(TRGT_THREADS) == null ? Runtime.getRuntime().availableProcessors() : concurrency;
+                _logger.info("Building {} deferred index and constraint changeSets with {} connections", phases[1].getChangeSets().size(), deferredConcurrency);
+                applied = new ParallelChangeLogUpdater(database, targetConnections, deferredConcurrency, getBatchSize()).update(phases[1], new Contexts(), new LabelExpression());
+            }
+            long totalNanos = System.nanoTime() - start;
+            _logger.info("Provisioned {} with {} ordering in {} ms: tables {} ms, deferred indexes and constraints {} ms", dbName, defer ? "deferred" : "changelog",
+                    TimeUnit.NANOSECONDS.toMillis(totalNanos), TimeUnit.NANOSECONDS.toMillis(schemaNanos), TimeUnit.NANOSECONDS.toMillis(totalNanos - schemaNanos));
+            if (applied) {
+                deleteLiquiBaseDbChangeLog(connection);
+                if (checkpoint != null) checkpoint.finish();
+            } else {
+                _logger.warn("Change log was only partially applied, keeping {} for inspection", DB_CHANGELOG_NAME);
+            }
+        } catch (Exception e) {
+            _logger.error("Exception caught during applying a change log", e);
+        }
+    }
+
+    /* With --changelog_cache_dir an unchanged changeLog comes from its compiled form with checksums precomputed */
+    private static DatabaseChangeLog parseChangeLog(Database database, FileSystemResourceAccessor resourceAccessor) throws Exception {
+        String cacheDir = optionsHelper.getOptionValue(CHANGELOG_CACHE_DIR);
+        if (cacheDir != null) {
+            return new CompiledChangeLogCache(new File(cacheDir)).parse(CHANGELOG_LOC, new ChangeLogParameters(database), resourceAccessor);
+        }
+        return ChangeLogParserFactory.getInstance().getParser(CHANGELOG_LOC, resourceAccessor)
+                .parse(CHANGELOG_LOC, new ChangeLogParameters(database), resourceAccessor);
+    }
+
+    private static int getConcurrency() {
+        String threads = optionsHelper.getOptionValue(TRGT_THREADS);
+        try {
+            return threads == null ? 1 : Math.max(1, Integer.parseInt(threads));
+        } catch (NumberFormatException e) {
+            _logger.warn("Invalid {} value [{}], applying changeSets sequentially", TRGT_THREADS, threads);
+            return 1;
+        }
+    }
+
+    private static int getBatchSize() {
+        String batchSize = optionsHelper.getOptionValue(TRGT_BATCH_SIZE);
+        try {
+            return batchSize == null ? 1 : Math.max(1, Integer.parseInt(batchSize));
+        } catch (NumberFormatException e) {
+            _logger.warn("Invalid {} value [{}], sending changeSets one at a time", TRGT_BATCH_SIZE, batchSize);
+            return 1;
+        }
+    }
+
+    private static ConnectionPool getTargetPool() {
+        return ConnectionPool.get(optionsHelper.getOptionValue(TRGT_URL), optionsHelper.getOptionValue(TRGT_USER), optionsHelper.getOptionValue(TRGT_PSWD));
+    }
+
     private static Database createLiquibaseDb(Connection connection) {
         Database database = null;
         try {
@@ -206,6 +334,38 @@ public class LiquiBaseCreateDb {
             tDriverPathOption.setRequired(true);
             _opts.addOption(tDriverPathOption);
 
+            Option threadsOption = new Option("tj", TRGT_THREADS, true, "Number of target connections applying independent changeSets concurrently");
+            threadsOption.setRequired(false);
+            _opts.addOption(threadsOption);
+
+            Option deferOption = new Option("defer", DEFER_CONSTRAINTS, false, "Create tables first and build secondary indexes and constraints afterwards, in parallel per table");
+            deferOption.setRequired(false);
+            _opts.addOption(deferOption);
+
+            Option batchOption = new Option("tb", TRGT_BATCH_SIZE, true, "Number of independent changeSets sent to the target in one JDBC batch");
+            batchOption.setRequired(false);
+            _opts.addOption(batchOption);
+
+            Option reportDirOption = new Option("rd", REPORT_DIR, true, "Directory receiving per-metric CSV files and a JSON run report");
+            reportDirOption.setRequired(false);
+            _opts.addOption(reportDirOption);
+
+            Option jmxOption = new Option("jmx", JMX, false, "Publish run metrics over JMX");
+            jmxOption.setRequired(false);
+            _opts.addOption(jmxOption);
+
+            Option traceOption = new Option("trace", TRACE_FILE, true, "Write a Chrome trace / Perfetto JSON timeline of the run to this file");
+            traceOption.setRequired(false);
+            _opts.addOption(traceOption);
+
+            Option cacheDirOption = new Option("ccd", CHANGELOG_CACHE_DIR, true, "Compiled changeLog cache directory, skips re-parsing and re-checksumming an unchanged changeLog");
+            cacheDirOption.setRequired(false);
+            _opts.addOption(cacheDirOption);
+
+            Option checkpointDirOption = new Option("ckd", CHECKPOINT_DIR, true, "Directory keeping per-database progress, so a failed run resumes instead of starting over");
+            checkpointDirOption.setRequired(false);
+            _opts.addOption(checkpointDirOption);
+
             parseOptions(args);
         }
 
@@ -220,5 +380,9 @@ public class LiquiBaseCreateDb {
         String getOptionValue (String optionLabel){
             return _cmd.getOptionValue(optionLabel);
         }
+
+        boolean hasOption(String optionLabel) {
+            return _cmd.hasOption(optionLabel);
+        }
     }
 }
@@ -0,0 +1,326 @@
+package db.liquibase;
+
+import com.codahale.metrics.Timer;
+import db.jdbc.ConnectionPool;
+import db.jdbc.DriverRegistry;
+import db.metrics.Metrics;
+import liquibase.CatalogAndSchema;
+import liquibase.change.Change;
+import liquibase.change.ChangeFactory;
+import liquibase.changelog.ChangeSet;
+import liquibase.database.Database;
+import liquibase.database.DatabaseFactory;
+import liquibase.database.core.H2Database;
+import liquibase.database.core.MSSQLDatabase;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.diff.DiffGeneratorFactory;
+import liquibase.diff.DiffResult;
+import liquibase.diff.compare.CompareControl;
+import liquibase.diff.output.DiffOutputControl;
+import liquibase.diff.output.StandardObjectChangeFilter;
+import liquibase.diff.output.changelog.DiffToChangeLog;
+import liquibase.snapshot.DatabaseSnapshot;
+import liquibase.snapshot.SnapshotControl;
+import liquibase.sql.Sql;
+import liquibase.sqlgenerator.SqlGeneratorFactory;
+import liquibase.structure.DatabaseObject;
+import liquibase.structure.core.Schema;
+import org.apache.commons.cli.*;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.flywaydb.core.Flyway;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+import static java.lang.System.exit;
+
+/* Turns a live schema into a single Flyway baseline migration. The schema is lifted with the same snapshot machinery as
+ * LiquiBaseConnector, catalog-free, and every change is rendered to SQL for the target dialect. With --verify the
+ * baseline is rendered for H2, migrated by Flyway into an empty in-memory database and diffed against the source. Types,
+ * defaults and view text of another engine never compare equal to H2's, so --verify needs an H2 source */
+
+public class LiquiBaseFlyWayBaseline {
+    private static final String SRC_URL = "s_connection";
+    private static final String SRC_USERNAME = "s_user";
+    private static final String SRC_PSWD = "s_password";
+    private static final String SRC_DB_NAME = "s_database";
+    private static final String SRC_DB_SCHEMA = "s_schema";
+    private static final String TRGT_DRIVER = "t_driver";
+    private static final String TRGT_DRIVER_PATH = "t_driver_path";
+    private static final String OUTPUT_DIR = "output_dir";
+    private static final String BASELINE_VERSION = "baseline_version";
+    private static final String DIALECT = "dialect";
+    private static final String VERIFY = "verify";
+    private static final String REPORT_DIR = "report_dir";
+    private static final String JMX = "jmx";
+
+    private static final String DEFAULT_OUTPUT_DIR = "src/main/resources/db/migration";
+    private static final String DEFAULT_BASELINE_VERSION = "1";
+    private static final String FLYWAY_HISTORY_TABLE = "flyway_schema_history";
+    private static final String EXCLUDED_OBJECTS = "view:snapshot.*";
+    private static final Logger _logger = LogManager.getLogger(LiquiBaseFlyWayBaseline.class);
+    private static final Timer _baselineTimer = Metrics.phase("baseline");
+    private static LiquiBaseFlyWayBaseline.OptionsHelper optionsHelper;
+    private static final List<String> SCHEMAS = new ArrayList<>();
+
+    public static void main(String[] args) {
+        org.apache.log4j.Logger.getRootLogger().setLevel(org.apache.log4j.Level.OFF);
+        optionsHelper = new LiquiBaseFlyWayBaseline.OptionsHelper(args);
+        SCHEMAS.addAll(Arrays.asList(optionsHelper.getOptionValue(SRC_DB_SCHEMA).split("\\s*,\\s*")));
+        _logger.info("Initiating connection to {} DB with userName {}, password {}", optionsHelper.getOptionValue(SRC_URL), optionsHelper.getOptionValue(SRC_USERNAME), optionsHelper.getOptionValue(SRC_PSWD));
+        boolean verified = true;
+        try (Metrics ignored = Metrics.start(LiquiBaseFlyWayBaseline.class.getSimpleName(), optionsHelper.getOptionValue(REPORT_DIR), optionsHelper.hasOption(JMX))) {
+            initializeDriver();
+            verified = generateBaseline();
+            _logger.info("Time to complete generating the baseline {} ms", Metrics.millis(_baselineTimer.getSnapshot().getMax()));
+        } finally {
+            ConnectionPool.closeAll();
+        }
+        if (!verified) exit(-1);
+    }
+
+    private static void initializeDriver() {
+
+        try {
+            DriverRegistry.register(optionsHelper.getOptionValue(TRGT_DRIVER_PATH), optionsHelper.getOptionValue(TRGT_DRIVER));
+        } catch (Exception e) {
+            _logger.error("Exception caught", e);
+        }
+    }
+
+    /* Returns false when the baseline could not be written or did not verify */
+    private static boolean generateBaseline() {
+        try (Connection connection = getSourceConnection();
+             final Timer.Context ignored = _baselineTimer.time()) {
+            Database source = DatabaseFactory.getInstance().findCorrectDatabaseImplementation(new JdbcConnection(connection));
+            if (optionsHelper.hasOption(VERIFY) && !(source instanceof H2Database)) {
+                _logger.error("--{} diffs the source against H2 and needs an H2 source, {} is {}", VERIFY, optionsHelper.getOptionValue(SRC_URL), source.getShortName());
+                return false;
+            }
+            List<ChangeSet> changeSets = lift(source);
+            Database dialect = getDialect(source);
+            File baseline = new File(optionsHelper.getOptionValue(OUTPUT_DIR) == null ? DEFAULT_OUTPUT_DIR : optionsHelper.getOptionValue(OUTPUT_DIR),
+                    "V" + getBaselineVersion() + "__baseline.sql");
+            int statements = render(changeSets, dialect, baseline);
+            _logger.info("Wrote {} with {} statements from {} changeSets for {}", baseline, statements, changeSets.size(), dialect.getShortName());
+            return !optionsHelper.hasOption(VERIFY) || verify(source, changeSets, dialect instanceof H2Database ? baseline : null);
+        } catch (Exception e) {
+            _logger.error("Exception caught when generating the baseline", e);
+            return false;
+        }
+    }
+
+    /* Catalog-free, so the baseline applies to whichever database Flyway is pointed at */
+    private static List<ChangeSet> lift(Database source) throws Exception {
+        List<ChangeSet> changeSets = new ArrayList<>();
+        for (String schema : SCHEMAS) {
+            DiffOutputControl diffOutputControl = new DiffOutputControl(false, true, false, null);
+            diffOutputControl.setObjectChangeFilter(new StandardObjectChangeFilter(StandardObjectChangeFilter.FilterType.EXCLUDE, EXCLUDED_OBJECTS));
+            DiffToChangeLog writer = new DiffToChangeLog(diffOutputControl);
+            changeSets.addAll(SnapshotCache.snapshotAndDiff(source, new CatalogAndSchema(optionsHelper.getOptionValue(SRC_DB_NAME), schema), null, writer));
+        }
+        return changeSets;
+    }
+
+    /* Writes the changeSets as one SQL script, creating the lifted schemas first. SQL Server scripts end every statement with
+     * a GO batch separator, which Flyway understands, since views and procedures must open their own batch */
+    private static int render(List<ChangeSet> changeSets, Database dialect, File script) throws IOException {
+        File dir = script.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create baseline directory " + dir);
+        boolean batches = dialect instanceof MSSQLDatabase;
+        int statements = 0;
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(script.toPath(), StandardCharsets.UTF_8));
+             Timer.Context ignored = Metrics.phase("baseline.render").time()) {
+            out.println("-- Flyway baseline of " + String.join(", ", SCHEMAS) + " generated by " + LiquiBaseFlyWayBaseline.class.getSimpleName() + " on " + new Date());
+            out.println("-- " + changeSets.size() + " changeSets lifted from " + optionsHelper.getOptionValue(SRC_URL));
+            for (String schema : SCHEMAS) {
+                if (schema.equalsIgnoreCase(dialect.getDefaultSchemaName())) continue;
+                out.println();
+                out.println(createSchema(dialect, schema));
+                if (batches) out.println("GO");
+            }
+            for (ChangeSet changeSet : changeSets) {
+                for (Change change : changeSet.getChanges()) {
+                    out.println();
+                    out.println("-- " + ChangeFactory.getInstance().getChangeMetaData(change).getName() + " " + SnapshotCache.ownerOf(changeSet));
+                    for (Sql sql : SqlGeneratorFactory.getInstance().generateSql(change, dialect)) {
+                        out.println(sql.toSql() + (sql.getEndDelimiter() == null ? ";" : sql.getEndDelimiter()));
+                        if (batches) out.println("GO");
+                        statements++;
+                    }
+                }
+            }
+        }
+        return statements;
+    }
+
+    private static String createSchema(Database dialect, String schema) {
+        String name = dialect.escapeObjectName(schema, Schema.class);
+        return dialect instanceof MSSQLDatabase
+                ? "IF SCHEMA_ID('" + schema + "') IS NULL EXEC('CREATE SCHEMA " + name + "');"
+                : "CREATE SCHEMA IF NOT EXISTS " + name + ";";
+    }
+
+    /* Migrates the baseline, rendered for H2 unless it already is, into an empty in-memory H2 database and diffs that
+     * against the source. Flyway reads it from a temporary location holding nothing else, so other migrations next to the
+     * written baseline stay out of the comparison. The remaining delta, as changeSets, must be empty */
+    private static boolean verify(Database source, List<ChangeSet> changeSets, File h2Baseline) throws Exception {
+        File dir = Files.createTempDirectory("baseline-verify").toFile();
+        String url = "jdbc:h2:mem:baseline_verify_" + System.nanoTime() + ";DB_CLOSE_DELAY=-1";
+        try (Timer.Context ignored = Metrics.phase("baseline.verify").time();
+             Connection keepAlive = DriverRegistry.connect(url, "sa", "")) {
+            File script = new File(dir, "V" + getBaselineVersion() + "__baseline.sql");
+            if (h2Baseline != null) {
+                Files.copy(h2Baseline.toPath(), script.toPath());
+            } else {
+                render(changeSets, new H2Database(), script);
+            }
+            Flyway.configure().dataSource(url, "sa", "").locations("filesystem:" + dir.getAbsolutePath()).load().migrate();
+
+            Database verified = DatabaseFactory.getInstance().findCorrectDatabaseImplementation(new JdbcConnection(keepAlive));
+            List<String> delta = new ArrayList<>();
+            for (String schema : SCHEMAS) {
+                CompareControl.SchemaComparison[] comparisons = {new CompareControl.SchemaComparison(
+                        new CatalogAndSchema(optionsHelper.getOptionValue(SRC_DB_NAME), schema), new CatalogAndSchema(null, schema))};
+                CompareControl compareControl = new CompareControl(comparisons, (Set<Class<? extends DatabaseObject>>) null);
+                DatabaseSnapshot reference = BulkCatalogSnapshot.create(compareControl.getSchemas(CompareControl.DatabaseRole.REFERENCE), source, new SnapshotControl(source));
+                DatabaseSnapshot comparison = BulkCatalogSnapshot.create(compareControl.getSchemas(CompareControl.DatabaseRole.COMPARISON), verified, new SnapshotControl(verified));
+                DiffResult diffResult = DiffGeneratorFactory.getInstance().compare(reference, comparison, compareControl);
+
+                DiffOutputControl diffOutputControl = new DiffOutputControl(false, true, false, comparisons);
+                diffOutputControl.setObjectChangeFilter(new StandardObjectChangeFilter(StandardObjectChangeFilter.FilterType.EXCLUDE, EXCLUDED_OBJECTS + ", table:" + FLYWAY_HISTORY_TABLE));
+                for (ChangeSet changeSet : new DiffToChangeLog(diffResult, diffOutputControl).generateChangeSets()) {
+                    for (Change change : changeSet.getChanges()) {
+                        delta.add(schema + ": " + ChangeFactory.getInstance().getChangeMetaData(change).getName() + " " + SnapshotCache.ownerOf(changeSet));
+                    }
+                }
+            }
+            if (delta.isEmpty()) {
+                _logger.info("Baseline verified: the migrated H2 schema matches the source");
+                return true;
+            }
+            delta.forEach(difference -> _logger.warn("Baseline differs from the source: {}", difference));
+            _logger.warn("Baseline verification found {} differences", delta.size());
+            return false;
+        } finally {
+            deleteQuietly(dir);
+        }
+    }
+
+    private static void deleteQuietly(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) Arrays.stream(files).forEach(File::delete);
+        if (!dir.delete()) _logger.debug("Could not delete {}", dir);
+    }
+
+    private static Database getDialect(Database source) {
+        String dialect = optionsHelper.getOptionValue(DIALECT);
+        if (dialect == null) return source;
+        Database database = DatabaseFactory.getInstance().getDatabase(dialect);
+        if (database == null) throw new IllegalArgumentException("Unknown dialect " + dialect);
+        return database;
+    }
+
+    private static String getBaselineVersion() {
+        return optionsHelper.getOptionValue(BASELINE_VERSION) == null ? DEFAULT_BASELINE_VERSION : optionsHelper.getOptionValue(BASELINE_VERSION);
+    }
+
+    private static Connection getSourceConnection() throws java.sql.SQLException {
+        String connectString = optionsHelper.getOptionValue(SRC_URL);
+        if (optionsHelper.getOptionValue(SRC_DB_NAME) != null && !connectString.startsWith("jdbc:h2:")) {
+            connectString = connectString + "; database=" + optionsHelper.getOptionValue(SRC_DB_NAME) + ";"; // We need to be within the database of interest in order to lift the schema
+        }
+        return ConnectionPool.get(connectString, optionsHelper.getOptionValue(SRC_USERNAME), optionsHelper.getOptionValue(SRC_PSWD)).getConnection();
+    }
+
+    static class OptionsHelper {
+        private final Options _opts;
+        private final CommandLineParser _parser;
+        private CommandLine _cmd;
+
+        OptionsHelper(String[] args) {
+            _opts = new Options();
+            _parser = new DefaultParser();
+
+            Option urlOption = new Option("sc", SRC_URL, true, "Connection URL for the DB");
+            urlOption.setRequired(true);
+            _opts.addOption(urlOption);
+
+            Option userOption = new Option("su", SRC_USERNAME, true, "User name");
+            userOption.setRequired(true);
+            _opts.addOption(userOption);
+
+            Option dbnameOption = new Option("sd", SRC_DB_NAME, true, "Database");
+            dbnameOption.setRequired(false);
+            _opts.addOption(dbnameOption);
+
+            Option schemaNameOption = new Option("ss", SRC_DB_SCHEMA, true, "Comma separated list of schemas");
+            schemaNameOption.setRequired(true);
+            _opts.addOption(schemaNameOption);
+
+            Option passwordOption = new Option("sp", SRC_PSWD, true, "Password");
+            passwordOption.setRequired(true);
+            _opts.addOption(passwordOption);
+
+            Option tDriverOption = new Option("tdrv", TRGT_DRIVER, true, "Target Driver");
+            tDriverOption.setRequired(true);
+            _opts.addOption(tDriverOption);
+
+            Option tDriverPathOption = new Option("tdrvp", TRGT_DRIVER_PATH, true, "Target Driver Path");
+            tDriverPathOption.setRequired(true);
+            _opts.addOption(tDriverPathOption);
+
+            Option outputDirOption = new Option("o", OUTPUT_DIR, true, "Flyway location directory receiving the baseline (default " + DEFAULT_OUTPUT_DIR + ")");
+            outputDirOption.setRequired(false);
+            _opts.addOption(outputDirOption);
+
+            Option versionOption = new Option("bv", BASELINE_VERSION, true, "Flyway version of the baseline migration (default " + DEFAULT_BASELINE_VERSION + ")");
+            versionOption.setRequired(false);
+            _opts.addOption(versionOption);
+
+            Option dialectOption = new Option("dialect", DIALECT, true, "Liquibase short name of the database the baseline is written for, e.g. mssql or h2 (default: the source's)");
+            dialectOption.setRequired(false);
+            _opts.addOption(dialectOption);
+
+            Option verifyOption = new Option("verify", VERIFY, false, "Migrate the baseline into an empty H2 database and diff it against the source, which must be H2 as well");
+            verifyOption.setRequired(false);
+            _opts.addOption(verifyOption);
+
+            Option reportDirOption = new Option("rd", REPORT_DIR, true, "Directory receiving per-metric CSV files and a JSON run report");
+            reportDirOption.setRequired(false);
+            _opts.addOption(reportDirOption);
+
+            Option jmxOption = new Option("jmx", JMX, false, "Publish run metrics over JMX");
+            jmxOption.setRequired(false);
+            _opts.addOption(jmxOption);
+
+            parseOptions(args);
+        }
+
+        private void parseOptions(String[] args) {
+            try {
+                _cmd = _parser.parse(_opts, args);
+            } catch (ParseException e) {
+                _logger.error("Error parsing the command line options", e);
+                exit(-2);
+            }
+        }
+        String getOptionValue (String optionLabel){
+            return _cmd.getOptionValue(optionLabel);
+        }
+
+        boolean hasOption(String optionLabel) {
+            return _cmd.hasOption(optionLabel);
+        }
+    }
+}
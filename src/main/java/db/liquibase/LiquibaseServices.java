@@ -0,0 +1,42 @@
+package db.liquibase;
+
+import liquibase.changelog.ChangeLogHistoryServiceFactory;
+import liquibase.database.Database;
+import liquibase.executor.ExecutorService;
+import liquibase.lockservice.LockServiceFactory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.reflect.Field;
+import java.util.Map;
+
+/* Liquibase keeps the lock service, the history service and the executor of every database in process-wide factories, and
+ * resetAll() empties them whichever database they belong to, under any update still running on another one. reset() only
+ * touches the given database */
+
+final class LiquibaseServices {
+    private static final Logger _logger = LogManager.getLogger(LiquibaseServices.class);
+
+    private LiquibaseServices() {
+    }
+
+    static void reset(Database database) {
+        LockServiceFactory.getInstance().getLockService(database).reset();
+        ChangeLogHistoryServiceFactory.getInstance().getChangeLogService(database).reset();
+        ExecutorService.getInstance().clearExecutor(database);
+        forget(LockServiceFactory.getInstance(), "openLockServices", database);
+        forget(ChangeLogHistoryServiceFactory.getInstance(), "services", database);
+    }
+
+    /* The factories cannot drop a single database, yet keeping every one they saw would pin its connection for the life of
+     * the process. Their maps are concurrent, so removing an entry is safe */
+    private static void forget(Object factory, String fieldName, Database database) {
+        try {
+            Field field = factory.getClass().getDeclaredField(fieldName);
+            field.setAccessible(true);
+            ((Map<?, ?>) field.get(factory)).remove(database);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            _logger.debug("Cannot drop the services of {} from {}", database, factory.getClass().getSimpleName(), e);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package db.liquibase;
+
+import db.jdbc.ConnectionSource;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.function.Function;
+
+/* Fast path for cloning a whole database with the engine's own snapshot and restore instead of replaying a lifted
+ * changeLog. snapshot() is taken once per run and every restore() recreates one target from it, so a fan-out only pays
+ * for the snapshot once. Implementations copy table data only when asked to, like the changeLog path */
+
+interface NativeClone extends AutoCloseable {
+
+    String getName();
+
+    void snapshot(String sourceDbName) throws Exception;
+
+    /* Drops targetDbName when it exists and recreates it from the snapshot. Names are compared without case, as SQL Server
+     * does, and a target naming the source is refused */
+    void restore(String sourceDbName, String targetDbName) throws Exception;
+
+    /* Removes whatever snapshot() left behind */
+    @Override
+    void close();
+
+    /* Returns the fast path the source's engine supports for this clone, or null when the changeLog has to be replayed.
+     * server reaches the engine outside any database, databases the given database */
+    static NativeClone detect(Connection source, ConnectionSource server, Function<String, ConnectionSource> databases, File tmpDir,
+                              String backupDir, boolean copyData) throws SQLException {
+        String product = source.getMetaData().getDatabaseProductName();
+        if (H2ScriptClone.supports(source, product)) {
+            return new H2ScriptClone(databases, tmpDir, copyData);
+        }
+        if (SqlServerNativeClone.supports(source, product, copyData)) {
+            String dir = backupDir != null ? backupDir : SqlServerNativeClone.defaultBackupDir(source);
+            if (copyData && dir == null) return null;
+            return new SqlServerNativeClone(server, dir, copyData);
+        }
+        return null;
+    }
+}
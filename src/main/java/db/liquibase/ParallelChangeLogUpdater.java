@@ -0,0 +1,430 @@
+package db.liquibase;
+
+import com.codahale.metrics.Timer;
+import db.jdbc.ConcurrencyLimiter;
+import db.jdbc.ConnectionSource;
+import db.metrics.Metrics;
+import db.metrics.Trace;
+import liquibase.Contexts;
+import liquibase.LabelExpression;
+import liquibase.change.Change;
+import liquibase.change.ChangeFactory;
+import liquibase.changelog.ChangeLogHistoryService;
+import liquibase.changelog.ChangeLogHistoryServiceFactory;
+import liquibase.changelog.ChangeSet;
+import liquibase.changelog.DatabaseChangeLog;
+import liquibase.changelog.filter.ChangeSetFilter;
+import liquibase.changelog.filter.ContextChangeSetFilter;
+import liquibase.changelog.filter.DbmsChangeSetFilter;
+import liquibase.changelog.filter.IgnoreChangeSetFilter;
+import liquibase.changelog.filter.LabelChangeSetFilter;
+import liquibase.changelog.filter.ShouldRunChangeSetFilter;
+import liquibase.database.Database;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.exception.DatabaseException;
+import liquibase.exception.LiquibaseException;
+import liquibase.lockservice.LockService;
+import liquibase.lockservice.LockServiceFactory;
+import liquibase.sql.Sql;
+import liquibase.sqlgenerator.SqlGeneratorFactory;
+import liquibase.statement.core.MarkChangeSetRanStatement;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/* Applies a changeLog with independent changeSets running concurrently on a pool of target connections. A changeSet waits
+ * for the last earlier changeSet touching any of the same tables, views or sequences, so indexes and FKs follow the tables
+ * they reference. Views and procedures wait for everything before them since their bodies may reference any object; a
+ * procedure names no table, view or sequence of its own, so only later views, procedures and barriers wait for it.
+ * ChangeSets the graph cannot reason about (raw sql, renames, preconditions, volatile statements) are barriers and run
+ * through Liquibase itself on the coordinator, as are those that must not run in a transaction or may fail. The
+ * coordinator also holds the change lock and records every changeSet in the change log table, so history is written by
+ * one connection only. Statements SQL Server wants first in their batch, CREATE or ALTER of a view, procedure, function
+ * or trigger, are never batched: their changeSet runs alone, one statement per round trip. */
+
+class ParallelChangeLogUpdater {
+    private static final Logger _logger = LogManager.getLogger(ParallelChangeLogUpdater.class);
+    private static final String[][] OBJECT_FIELDS = {
+            {"tableName", "schemaName"},
+            {"baseTableName", "baseTableSchemaName"},
+            {"referencedTableName", "referencedTableSchemaName"},
+            {"viewName", "schemaName"},
+            {"sequenceName", "schemaName"}};
+    private static final int UNBATCHED_BARRIER_ROUND_TRIPS = 4; // not counted exactly, Liquibase runs these itself
+    private static final Set<String> DEPENDS_ON_ALL = new HashSet<>(Arrays.asList("createView", "createProcedure"));
+    private static final Pattern FIRST_IN_BATCH = Pattern.compile("\\s*(CREATE|ALTER)\\s+(OR\\s+ALTER\\s+)?(VIEW|PROC|PROCEDURE|FUNCTION|TRIGGER)\\b", Pattern.CASE_INSENSITIVE);
+
+    private final Database _database;
+    private final ConnectionSource _connections;
+    private final int _threads;
+    private final int _batchSize;
+    private final AtomicLong _roundTrips = new AtomicLong();
+
+    ParallelChangeLogUpdater(Database database, ConnectionSource connections, int threads) {
+        this(database, connections, threads, 1);
+    }
+
+    ParallelChangeLogUpdater(Database database, ConnectionSource connections, int threads, int batchSize) {
+        _database = database;
+        _connections = connections;
+        _threads = Math.max(1, threads);
+        _batchSize = Math.max(1, batchSize);
+    }
+
+    private enum Kind { OBJECTS, AFTER_ALL, BARRIER }
+
+    private static final class Node {
+        final int index;
+        final ChangeSet changeSet;
+        final Kind kind;
+        final Set<String> objects;
+        final String type;
+        final List<Node> successors = new ArrayList<>();
+        ChangeSet.ExecType ran = ChangeSet.ExecType.EXECUTED;
+        List<String> sql;
+        boolean alone;
+        int pending;
+
+        Node(int index, ChangeSet changeSet, Kind kind, Set<String> objects) {
+            this.index = index;
+            this.changeSet = changeSet;
+            this.kind = kind;
+            this.objects = objects;
+            this.type = changeSet.getChanges().isEmpty() ? "empty" : ChangeFactory.getInstance().getChangeMetaData(changeSet.getChanges().get(0)).getName();
+        }
+    }
+
+    /* Applies the changeSets Liquibase.update would run for the same contexts and labels */
+    boolean update(DatabaseChangeLog changeLog, Contexts contexts, LabelExpression labelExpression) throws LiquibaseException {
+        ChangeLogHistoryService history = ChangeLogHistoryServiceFactory.getInstance().getChangeLogService(_database);
+        history.init();
+        LockService lockService = LockServiceFactory.getInstance().getLockService(_database);
+        lockService.init();
+        changeLog.validate(_database, contexts, labelExpression);
+        try (Timer.Context ignored = Metrics.phase("changelog.lock").time()) {
+            lockService.waitForLock();
+        }
+        try {
+            history.generateDeploymentId();
+            List<Node> nodes = buildGraph(changeLog, contexts, labelExpression);
+            _logger.info("Applying {} changeSets with {} connections", nodes.size(), _threads);
+            return apply(changeLog, nodes);
+        } finally {
+            lockService.releaseLock();
+            LiquibaseServices.reset(_database);
+        }
+    }
+
+    /* Edges point from a changeSet to the later ones that must wait for it. Depending on every current leaf is the same as
+     * depending on every earlier changeSet, without the quadratic number of edges */
+    private List<Node> buildGraph(DatabaseChangeLog changeLog, Contexts contexts, LabelExpression labelExpression) throws LiquibaseException {
+        // the filters Liquibase.update iterates the changeLog with
+        List<ChangeSetFilter> filters = Arrays.asList(new ShouldRunChangeSetFilter(_database), new ContextChangeSetFilter(contexts),
+                new LabelChangeSetFilter(labelExpression), new DbmsChangeSetFilter(_database), new IgnoreChangeSetFilter());
+        List<Node> nodes = new ArrayList<>();
+        Map<String, Node> lastTouch = new HashMap<>();
+        Set<Node> leaves = new LinkedHashSet<>();
+        Node barrier = null;
+        for (ChangeSet changeSet : changeLog.getChangeSets()) {
+            if (!filters.stream().allMatch(filter -> filter.accepts(changeSet).isAccepted())) continue;
+            Node node = classify(nodes.size(), changeSet);
+            // like UpdateVisitor, a runOnChange or alwaysRun changeSet that ran before is recorded as rerun
+            if (_database.getRunStatus(changeSet) != ChangeSet.RunStatus.NOT_RAN) node.ran = ChangeSet.ExecType.RERAN;
+            Set<Node> dependencies = new HashSet<>();
+            if (node.kind == Kind.OBJECTS) {
+                for (String object : node.objects) {
+                    Node last = lastTouch.get(object);
+                    if (last != null) dependencies.add(last);
+                }
+                if (barrier != null) dependencies.add(barrier);
+            } else {
+                dependencies.addAll(leaves);
+            }
+            for (String object : node.objects) {
+                lastTouch.put(object, node);
+            }
+            if (node.kind == Kind.BARRIER) barrier = node;
+            for (Node dependency : dependencies) {
+                dependency.successors.add(node);
+            }
+            node.pending = dependencies.size();
+            leaves.removeAll(dependencies);
+            leaves.add(node);
+            nodes.add(node);
+        }
+        return nodes;
+    }
+
+    private Node classify(int index, ChangeSet changeSet) {
+        Set<String> objects = new HashSet<>();
+        boolean afterAll = false;
+        if (changeSet.getPreconditions() != null || changeSet.getChanges().isEmpty() || !changeSet.isRunInTransaction()
+                || Boolean.FALSE.equals(changeSet.getFailOnError())) {
+            return new Node(index, changeSet, Kind.BARRIER, objects);
+        }
+        for (Change change : changeSet.getChanges()) {
+            Set<String> touched = objectsOf(change);
+            boolean dependsOnAll = DEPENDS_ON_ALL.contains(ChangeFactory.getInstance().getChangeMetaData(change).getName());
+            if ((touched.isEmpty() && !dependsOnAll) || change.generateStatementsVolatile(_database)) {
+                return new Node(index, changeSet, Kind.BARRIER, objects);
+            }
+            objects.addAll(touched);
+            afterAll |= dependsOnAll;
+        }
+        return new Node(index, changeSet, afterAll ? Kind.AFTER_ALL : Kind.OBJECTS, objects);
+    }
+
+    /* Keys of the tables, views and sequences change names. A change without a schema works in the default one, so
+     * PUBLIC.A and A are the same object */
+    Set<String> objectsOf(Change change) {
+        Set<String> objects = new HashSet<>();
+        Set<String> fields = change.getSerializableFields();
+        for (String[] field : OBJECT_FIELDS) {
+            Object name = fields.contains(field[0]) ? change.getSerializableFieldValue(field[0]) : null;
+            if (name == null) continue;
+            Object schema = fields.contains(field[1]) ? change.getSerializableFieldValue(field[1]) : null;
+            if (schema == null) schema = _database.getDefaultSchemaName();
+            objects.add(((schema == null ? "" : schema + ".") + name).toLowerCase(Locale.ROOT));
+        }
+        return objects;
+    }
+
+    private boolean apply(DatabaseChangeLog changeLog, List<Node> nodes) throws LiquibaseException {
+        // SQL is generated up front on this thread, Liquibase's generator and executor registries are not thread safe
+        for (Node node : nodes) {
+            if (node.kind == Kind.BARRIER) continue;
+            node.sql = new ArrayList<>();
+            for (Change change : node.changeSet.getChanges()) {
+                for (Sql sql : SqlGeneratorFactory.getInstance().generateSql(change, _database)) {
+                    node.sql.add(sql.toSql());
+                    node.alone |= FIRST_IN_BATCH.matcher(sql.toSql()).lookingAt();
+                }
+            }
+        }
+        BlockingQueue<Connection> idle = new ArrayBlockingQueue<>(_threads);
+        ExecutorService pool = Executors.newFixedThreadPool(_threads);
+        try {
+            for (int i = 0; i < _threads; i++) {
+                idle.add(_connections.getConnection());
+            }
+            ConcurrencyLimiter limiter = ConcurrencyLimiter.get(idle.peek(), _threads);
+            return schedule(changeLog, nodes, idle, limiter, new ExecutorCompletionService<List<Node>>(pool));
+        } catch (SQLException e) {
+            _logger.error("Exception caught opening target connections", e);
+            return false;
+        } finally {
+            pool.shutdownNow();
+            awaitTermination(pool);
+            for (Connection connection : idle) {
+                close(connection);
+            }
+        }
+    }
+
+    private boolean schedule(DatabaseChangeLog changeLog, List<Node> nodes, BlockingQueue<Connection> idle, ConcurrencyLimiter limiter,
+                             CompletionService<List<Node>> completion) throws LiquibaseException {
+        PriorityQueue<Node> ready = new PriorityQueue<>(Comparator.comparingInt((Node node) -> node.index));
+        for (Node node : nodes) {
+            if (node.pending == 0) ready.add(node);
+        }
+        int running = 0;
+        int applied = 0;
+        boolean failed = false;
+        while (!failed && (running > 0 || !ready.isEmpty())) {
+            // spread what is ready over the workers, at most _batchSize changeSets per round trip
+            int groupSize = Math.max(1, Math.min(_batchSize, (ready.size() + _threads - 1) / _threads));
+            while (!ready.isEmpty() && ready.peek().kind != Kind.BARRIER) {
+                List<Node> group = new ArrayList<>(groupSize);
+                if (ready.peek().alone) group.add(ready.poll());
+                while (group.size() < groupSize && !ready.isEmpty() && ready.peek().kind != Kind.BARRIER && !ready.peek().alone && (group.isEmpty() || !group.get(0).alone)) {
+                    group.add(ready.poll());
+                }
+                completion.submit(() -> execute(group, idle, limiter));
+                running++;
+            }
+            List<Node> done;
+            if (running > 0) {
+                try {
+                    done = completion.take().get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    _logger.error("Interrupted while applying changeSets");
+                    return false;
+                } catch (ExecutionException e) {
+                    _logger.error("Exception caught during applying a changeSet", e.getCause());
+                    failed = true;
+                    running--;
+                    continue;
+                }
+                running--;
+                markExecuted(done);
+            } else {
+                // a barrier only becomes ready once everything before it has completed, so nothing else is running here
+                Node barrier = ready.poll();
+                _logger.debug("Applying changeSet {} through Liquibase", barrier.changeSet.getId());
+                long barrierStart = Trace.begin();
+                ChangeSet.ExecType execType = barrier.changeSet.execute(changeLog, new ChangeTimingListener(), _database);
+                Trace.end(Trace.CHANGESET, barrier.changeSet.getId(), barrierStart);
+                _database.markChangeSetExecStatus(barrier.changeSet, barrier.ran == ChangeSet.ExecType.RERAN ? barrier.ran : execType);
+                Metrics.counter("apply", "changeSets").inc();
+                _roundTrips.addAndGet(UNBATCHED_BARRIER_ROUND_TRIPS);
+                done = Collections.singletonList(barrier);
+            }
+            applied += done.size();
+            for (Node node : done) {
+                for (Node successor : node.successors) {
+                    if (--successor.pending == 0) ready.add(successor);
+                }
+            }
+        }
+        while (running-- > 0) {
+            try {
+                List<Node> done = completion.take().get();
+                markExecuted(done);
+                applied += done.size();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                _logger.error("Exception caught during applying a changeSet", e.getCause());
+            }
+        }
+        _logger.info("Applied {} of {} changeSets in {} round trips, {} without batching", applied, nodes.size(), _roundTrips.get(), unbatchedRoundTrips(nodes));
+        return !failed && applied == nodes.size();
+    }
+
+    /* The limiter kind of a group: its change type when all of its changeSets share one, since a createTable, an index build
+     * and a foreign key check differ in latency by orders of magnitude, or apply.mixed */
+    private static String kind(List<Node> group) {
+        String type = group.get(0).type;
+        for (Node node : group) {
+            if (!node.type.equals(type)) return "apply.mixed";
+        }
+        return "apply." + type;
+    }
+
+    /* Executes a group of ready, hence independent, changeSets as one JDBC batch in one transaction, once the limiter of the
+     * target lets it through. A changeSet that must not be batched comes alone and has its statements sent one by one */
+    private List<Node> execute(List<Node> group, BlockingQueue<Connection> idle, ConcurrencyLimiter limiter) throws Exception {
+        Connection connection = idle.take();
+        try (ConcurrencyLimiter.Permit permit = limiter.acquire(kind(group))) {
+            long started = System.nanoTime();
+            long traceStart = Trace.begin();
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try (Statement stmt = connection.createStatement()) {
+                int statements = 0;
+                for (Node node : group) {
+                    for (String sql : node.sql) {
+                        _logger.debug("ChangeSet {}: {}", node.changeSet.getId(), sql);
+                        if (node.alone) {
+                            stmt.execute(sql);
+                            _roundTrips.incrementAndGet();
+                        } else {
+                            stmt.addBatch(sql);
+                            statements++;
+                        }
+                    }
+                }
+                if (statements > 0) {
+                    stmt.executeBatch();
+                    _roundTrips.incrementAndGet();
+                }
+                connection.commit();
+                _roundTrips.incrementAndGet();
+                Trace.end(Trace.CHANGESET, group.get(0).changeSet.getId() + (group.size() > 1 ? " and " + (group.size() - 1) + " batched with it" : ""), traceStart);
+                // batched changeSets share the batch time evenly
+                long share = (System.nanoTime() - started) / group.size();
+                for (Node node : group) {
+                    Metrics.phase("apply." + node.type).update(share, TimeUnit.NANOSECONDS);
+                }
+                Metrics.histogram("apply", "batch").update(group.size());
+                permit.succeeded();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw new SQLException("ChangeSet " + group.get(0).changeSet.getId() + (group.size() > 1 ? " or one of the " + (group.size() - 1) + " batched with it" : "") + " failed", e);
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+            return group;
+        } finally {
+            idle.put(connection);
+        }
+    }
+
+    /* Records the group in the change log table. Beyond a batch size of one the inserts go out as one JDBC batch; they are
+     * generated here on the coordinator so ORDEREXECUTED keeps counting up from the history service */
+    private void markExecuted(List<Node> group) throws LiquibaseException {
+        Metrics.counter("apply", "changeSets").inc(group.size());
+        if (_batchSize == 1) {
+            for (Node node : group) {
+                _database.markChangeSetExecStatus(node.changeSet, node.ran);
+                _roundTrips.addAndGet(2);
+            }
+            return;
+        }
+        Connection connection = ((JdbcConnection) _database.getConnection()).getUnderlyingConnection();
+        try (Statement stmt = connection.createStatement()) {
+            for (Node node : group) {
+                for (Sql sql : SqlGeneratorFactory.getInstance().generateSql(new MarkChangeSetRanStatement(node.changeSet, node.ran), _database)) {
+                    stmt.addBatch(sql.toSql());
+                }
+            }
+            stmt.executeBatch();
+            _database.commit();
+            _roundTrips.addAndGet(2);
+        } catch (SQLException e) {
+            throw new DatabaseException("Cannot record " + group.size() + " changeSets in " + _database.getDatabaseChangeLogTableName(), e);
+        }
+    }
+
+    private static long unbatchedRoundTrips(List<Node> nodes) {
+        long roundTrips = 0;
+        for (Node node : nodes) {
+            // each statement, the commit, then the change log insert and its commit
+            roundTrips += node.kind == Kind.BARRIER ? UNBATCHED_BARRIER_ROUND_TRIPS : node.sql.size() + 3;
+        }
+        return roundTrips;
+    }
+
+    private static void awaitTermination(ExecutorService pool) {
+        try {
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void close(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            _logger.warn("Exception caught closing a target connection", e);
+        }
+    }
+}
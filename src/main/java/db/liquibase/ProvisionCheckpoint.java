@@ -0,0 +1,122 @@
+package db.liquibase;
+
+import liquibase.changelog.ChangeSet;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Properties;
+
+/* Durable progress of provisioning one target database, kept in <dir>/<target>.checkpoint until the target is complete.
+ * Applied changeSets are already tracked by the change log table, which is kept while a checkpoint exists; the checkpoint
+ * adds the fingerprint of the changeLog being applied, so a retry only resumes against the same changeSets, and the steps
+ * and data chunks that finished. Every update is written through a temp file, so a killed run leaves the last good state */
+
+class ProvisionCheckpoint {
+    private static final Logger _logger = LogManager.getLogger(ProvisionCheckpoint.class);
+    private static final String FINGERPRINT = "changelog";
+    private static final String STEP_PREFIX = "step.";
+    private static final String CHUNK_PREFIX = "chunk.";
+
+    private final File _file;
+    private final Properties _properties = new Properties();
+    private final boolean _started;
+
+    private ProvisionCheckpoint(File file, boolean started) {
+        this._file = file;
+        this._started = started;
+    }
+
+    /* Loads the checkpoint of target, or starts an empty one when there is none or it cannot be read */
+    static ProvisionCheckpoint open(File dir, String target) throws IOException {
+        Files.createDirectories(dir.toPath());
+        File file = new File(dir, target + ".checkpoint");
+        if (!file.isFile()) return new ProvisionCheckpoint(file, false);
+        ProvisionCheckpoint checkpoint = new ProvisionCheckpoint(file, true);
+        try (InputStream in = new FileInputStream(file)) {
+            checkpoint._properties.load(in);
+        } catch (IOException e) {
+            _logger.warn("Cannot read checkpoint {}, starting over", file, e);
+            return new ProvisionCheckpoint(file, false);
+        }
+        return checkpoint;
+    }
+
+    /* True when an earlier run began provisioning the target and did not finish */
+    boolean isStarted() {
+        return _started && _properties.getProperty(FINGERPRINT) != null;
+    }
+
+    synchronized boolean matches(String fingerprint) {
+        return fingerprint.equals(_properties.getProperty(FINGERPRINT));
+    }
+
+    /* Records the changeLog the target is built from. Progress made against a different changeLog is dropped */
+    synchronized void begin(String fingerprint) throws IOException {
+        if (matches(fingerprint)) return;
+        _properties.clear();
+        _properties.setProperty(FINGERPRINT, fingerprint);
+        store();
+    }
+
+    synchronized boolean isDone(String step) {
+        return _properties.getProperty(STEP_PREFIX + step) != null;
+    }
+
+    synchronized void done(String step) throws IOException {
+        _properties.setProperty(STEP_PREFIX + step, String.valueOf(System.currentTimeMillis()));
+        store();
+    }
+
+    synchronized boolean isChunkDone(String chunk) {
+        return _properties.getProperty(CHUNK_PREFIX + chunk) != null;
+    }
+
+    synchronized void chunkDone(String chunk) throws IOException {
+        _properties.setProperty(CHUNK_PREFIX + chunk, String.valueOf(System.currentTimeMillis()));
+        store();
+    }
+
+    /* The target is complete, nothing is left to resume */
+    synchronized void finish() {
+        try {
+            Files.deleteIfExists(_file.toPath());
+        } catch (IOException e) {
+            _logger.warn("Cannot delete checkpoint {}", _file, e);
+        }
+    }
+
+    private void store() throws IOException {
+        File tmp = new File(_file.getParentFile(), _file.getName() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            _properties.store(out, "Provisioning checkpoint");
+        }
+        Files.move(tmp.toPath(), _file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /* Identifies a changeLog by the ids and checksums of its changeSets, the same things Liquibase validates a rerun against */
+    static String fingerprint(List<ChangeSet> changeSets) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            for (ChangeSet changeSet : changeSets) {
+                md.update((changeSet.getId() + ":" + changeSet.getAuthor() + ":" + changeSet.generateCheckSum() + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : md.digest()) hex.append(String.format("%02x", b));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package db.liquibase;
+
+import liquibase.Liquibase;
+import liquibase.changelog.DatabaseChangeLog;
+import liquibase.database.Database;
+import liquibase.resource.ResourceAccessor;
+
+/* Liquibase for one database among several updated at once, by fanned out targets or by concurrent service jobs. An update
+ * or rollback ends by resetting the services Liquibase keeps per database, and this one only resets its own */
+
+class ScopedLiquibase extends Liquibase {
+
+    ScopedLiquibase(String changeLogFile, ResourceAccessor resourceAccessor, Database database) {
+        super(changeLogFile, resourceAccessor, database);
+    }
+
+    ScopedLiquibase(DatabaseChangeLog changeLog, ResourceAccessor resourceAccessor, Database database) {
+        super(changeLog, resourceAccessor, database);
+    }
+
+    @Override
+    protected void resetServices() {
+        LiquibaseServices.reset(getDatabase());
+    }
+}
@@ -0,0 +1,393 @@
+package db.liquibase;
+
+import com.codahale.metrics.Timer;
+import db.metrics.Metrics;
+import liquibase.CatalogAndSchema;
+import liquibase.change.Change;
+import liquibase.change.ChangeFactory;
+import liquibase.changelog.ChangeLogParameters;
+import liquibase.changelog.ChangeSet;
+import liquibase.database.Database;
+import liquibase.database.core.H2Database;
+import liquibase.database.core.MSSQLDatabase;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.diff.DiffGeneratorFactory;
+import liquibase.diff.compare.CompareControl;
+import liquibase.diff.output.changelog.DiffToChangeLog;
+import liquibase.parser.ChangeLogParserFactory;
+import liquibase.resource.FileSystemResourceAccessor;
+import liquibase.serializer.core.json.JsonChangeLogSerializer;
+import liquibase.snapshot.DatabaseSnapshot;
+import liquibase.snapshot.SnapshotControl;
+import liquibase.snapshot.SnapshotGeneratorFactory;
+import liquibase.structure.DatabaseObject;
+import liquibase.structure.core.Schema;
+import liquibase.structure.core.Table;
+import liquibase.structure.core.View;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/* On-disk cache of lifted changeSets per database/schema. Each entry keeps the changeSets of the last lift together with
+ * a cheap change marker per owning object (table, view, sequence...). A later lift reads the markers only, re-snapshots
+ * the tables and views whose marker moved and merges their changeSets into the cached ones. Databases without a marker
+ * query, or changes to objects that cannot be snapshotted individually, fall back to a full snapshot. Sequences are marked
+ * by their definition, not their current value, so handing out values does not invalidate the entry */
+
+class SnapshotCache {
+    private static final Logger _logger = LogManager.getLogger(SnapshotCache.class);
+    private static final String TABLE_TYPE = "U";
+    private static final String VIEW_TYPE = "V";
+    private static final String[] OWNER_FIELDS = {"viewName", "baseTableName", "tableName", "sequenceName", "procedureName"};
+    private static final String[] NAME_FIELDS = {"indexName", "constraintName", "viewName", "tableName", "sequenceName", "procedureName"};
+    private static final List<String> CHANGE_ORDER = Arrays.asList("createSequence", "createTable", "addPrimaryKey", "addUniqueConstraint",
+            "createIndex", "addForeignKeyConstraint", "createView", "createProcedure");
+
+    private static final String MSSQL_MARKERS =
+            "SELECT COALESCE(p.name, o.name), COALESCE(p.type, o.type), o.name + '@' + CONVERT(varchar(33), o.modify_date, 126) " +
+            "FROM sys.objects o LEFT JOIN sys.objects p ON p.object_id = o.parent_object_id " +
+            "WHERE o.schema_id = SCHEMA_ID(?) AND o.is_ms_shipped = 0 " +
+            "UNION ALL SELECT s.name, 'SO', CONCAT(s.start_value, ':', s.increment, ':', s.minimum_value, ':', s.maximum_value, ':', s.is_cycling, ':', " +
+            "s.cache_size, ':', CONVERT(varchar(33), s.modify_date, 126)) FROM sys.sequences s WHERE s.schema_id = SCHEMA_ID(?) " +
+            "ORDER BY 1, 3";
+    private static final String[] H2_MARKERS = {
+            "SELECT TABLE_NAME, CASE TABLE_TYPE WHEN 'VIEW' THEN 'V' ELSE 'U' END, CONCAT(TABLE_TYPE, ':', REMARKS) FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_SCHEMA = ? ORDER BY 1",
+            "SELECT TABLE_NAME, 'U', CONCAT(COLUMN_NAME, ':', TYPE_NAME, ':', CHARACTER_MAXIMUM_LENGTH, ':', NUMERIC_PRECISION, ':', NUMERIC_SCALE, ':', IS_NULLABLE, ':', COLUMN_DEFAULT, ':', REMARKS) FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_SCHEMA = ? ORDER BY 1, ORDINAL_POSITION",
+            "SELECT TABLE_NAME, 'U', CONCAT(INDEX_NAME, ':', COLUMN_NAME, ':', NON_UNIQUE, ':', ORDINAL_POSITION) FROM INFORMATION_SCHEMA.INDEXES WHERE TABLE_SCHEMA = ? ORDER BY 1, 3",
+            "SELECT TABLE_NAME, 'U', CONCAT(CONSTRAINT_NAME, ':', CONSTRAINT_TYPE, ':', SQL) FROM INFORMATION_SCHEMA.CONSTRAINTS WHERE CONSTRAINT_SCHEMA = ? ORDER BY 1, 3",
+            "SELECT TABLE_NAME, 'V', VIEW_DEFINITION FROM INFORMATION_SCHEMA.VIEWS WHERE TABLE_SCHEMA = ? ORDER BY 1",
+            "SELECT SEQUENCE_NAME, 'SO', CONCAT(ID, ':', INCREMENT, ':', MIN_VALUE, ':', MAX_VALUE, ':', IS_CYCLE, ':', CACHE, ':', REMARKS) FROM INFORMATION_SCHEMA.SEQUENCES WHERE SEQUENCE_SCHEMA = ? ORDER BY 1"
+    };
+
+    private final File _dir;
+    private final String _outputCatalog;
+
+    SnapshotCache(File dir) {
+        this(dir, null);
+    }
+
+    /* outputCatalog separates entries whose changeSets were written against a different target catalog */
+    SnapshotCache(File dir, String outputCatalog) {
+        this._dir = dir;
+        this._outputCatalog = outputCatalog;
+        if (!_dir.isDirectory() && !_dir.mkdirs()) {
+            _logger.warn("Cannot create snapshot cache directory {}", _dir.getAbsolutePath());
+        }
+    }
+
+    /* Returns the changeSets describing the schema, renumbered from idRoot, and refreshes the cache entry */
+    List<ChangeSet> generateChangeSets(Database database, CatalogAndSchema catalogAndSchema, DiffToChangeLog writer, String idRoot) throws Exception {
+        Map<String, Marker> markers;
+        try (Timer.Context ignored = Metrics.phase("snapshot.markers").time()) {
+            markers = readMarkers(database, catalogAndSchema);
+        }
+        if (markers == null) {
+            _logger.info("No change markers available for {}, taking a full snapshot", database.getShortName());
+            return renumber(snapshotAndDiff(database, catalogAndSchema, null, writer), idRoot);
+        }
+        String key = cacheKey(database, catalogAndSchema);
+        Map<String, Marker> cachedMarkers = loadMarkers(key);
+        List<ChangeSet> cachedChangeSets = cachedMarkers == null ? null : loadChangeSets(database, key);
+
+        List<ChangeSet> result;
+        if (cachedChangeSets == null) {
+            _logger.info("No cached snapshot for {}, taking a full snapshot", key);
+            result = snapshotAndDiff(database, catalogAndSchema, null, writer);
+        } else {
+            result = relift(database, catalogAndSchema, writer, markers, cachedMarkers, cachedChangeSets);
+        }
+        result = renumber(result, idRoot);
+        store(key, markers, result);
+        return result;
+    }
+
+    private List<ChangeSet> relift(Database database, CatalogAndSchema catalogAndSchema, DiffToChangeLog writer, Map<String, Marker> markers,
+                                   Map<String, Marker> cachedMarkers, List<ChangeSet> cachedChangeSets) throws Exception {
+        Set<String> stale = ownerSet();
+        for (Map.Entry<String, Marker> entry : markers.entrySet()) {
+            if (!entry.getValue().equals(cachedMarkers.get(entry.getKey()))) stale.add(entry.getKey());
+        }
+        for (String owner : cachedMarkers.keySet()) {
+            if (!markers.containsKey(owner)) stale.add(owner);
+        }
+        if (stale.isEmpty()) {
+            _logger.info("Snapshot cache hit, {} objects unchanged", markers.size());
+            return cachedChangeSets;
+        }
+        // Foreign keys live with the referencing table, so they are re-lifted whenever the referenced table moves
+        for (ChangeSet changeSet : cachedChangeSets) {
+            for (Change change : changeSet.getChanges()) {
+                Object referenced = fieldValue(change, "referencedTableName");
+                if (referenced != null && stale.contains(referenced.toString())) stale.add(ownerOf(changeSet));
+            }
+        }
+
+        List<DatabaseObject> examples = new ArrayList<>();
+        Schema schema = new Schema(catalogAndSchema.getCatalogName(), catalogAndSchema.getSchemaName());
+        for (String owner : stale) {
+            Marker marker = markers.get(owner);
+            if (marker == null) continue; // dropped, its changeSets just go away
+            if (TABLE_TYPE.equals(marker._type)) {
+                examples.add(new Table().setName(owner).setSchema(schema));
+            } else if (VIEW_TYPE.equals(marker._type)) {
+                examples.add(new View().setName(owner).setSchema(schema));
+            } else {
+                _logger.info("Object {} of type {} changed and cannot be re-lifted on its own, taking a full snapshot", owner, marker._type);
+                return snapshotAndDiff(database, catalogAndSchema, null, writer);
+            }
+        }
+        _logger.info("Snapshot cache partially stale, re-lifting {} of {} objects", stale.size(), markers.size());
+
+        Map<String, List<ChangeSet>> fresh = new HashMap<>();
+        if (!examples.isEmpty()) {
+            for (ChangeSet changeSet : snapshotAndDiff(database, catalogAndSchema, examples.toArray(new DatabaseObject[0]), writer)) {
+                String owner = ownerOf(changeSet);
+                if (owner != null && stale.contains(owner)) { // referenced tables are pulled into the snapshot as well, they are still cached
+                    fresh.computeIfAbsent(owner.toUpperCase(), k -> new ArrayList<>()).add(changeSet);
+                }
+            }
+        }
+        return merge(cachedChangeSets, stale, fresh);
+    }
+
+    /* Fresh changeSets take the place of the stale ones they replace and new objects are appended. The result is ordered by
+     * change type and then by object name the way DiffToChangeLog emits missing objects; views keep their position since
+     * they may be ordered by dependency rather than by name */
+    private static List<ChangeSet> merge(List<ChangeSet> cached, Set<String> stale, Map<String, List<ChangeSet>> fresh) {
+        List<ChangeSet> merged = new ArrayList<>();
+        for (ChangeSet changeSet : cached) {
+            String owner = ownerOf(changeSet);
+            if (owner == null || !stale.contains(owner)) {
+                merged.add(changeSet);
+                continue;
+            }
+            List<ChangeSet> replacements = fresh.remove(owner.toUpperCase());
+            if (replacements != null) merged.addAll(replacements);
+        }
+        fresh.values().forEach(merged::addAll);
+        merged.sort((a, b) -> {
+            int rank = Integer.compare(changeRank(a), changeRank(b));
+            if (rank != 0 || changeRank(a) >= CHANGE_ORDER.indexOf("createView")) return rank;
+            return String.valueOf(objectNameOf(a)).compareTo(String.valueOf(objectNameOf(b)));
+        });
+        return merged;
+    }
+
+    /* Snapshots the schema, or only the given example objects, and diffs it against an empty database the way
+     * Liquibase.generateChangeLog does */
+    static List<ChangeSet> snapshotAndDiff(Database database, CatalogAndSchema catalogAndSchema, DatabaseObject[] examples, DiffToChangeLog writer) throws Exception {
+        SnapshotControl snapshotControl = new SnapshotControl(database);
+        CompareControl compareControl = new CompareControl(new CompareControl.SchemaComparison[]{new CompareControl.SchemaComparison(catalogAndSchema, catalogAndSchema)}, (Set<Class<? extends DatabaseObject>>) null);
+        CatalogAndSchema[] schemas = compareControl.getSchemas(CompareControl.DatabaseRole.REFERENCE);
+        DatabaseSnapshot reference;
+        try (Timer.Context ignored = Metrics.phase("snapshot").time()) {
+            reference = examples == null
+                    ? BulkCatalogSnapshot.create(schemas, database, snapshotControl)
+                    : BulkCatalogSnapshot.create(examples, database, snapshotControl);
+        }
+        try (Timer.Context ignored = Metrics.phase("diff").time()) {
+            DatabaseSnapshot empty = SnapshotGeneratorFactory.getInstance().createSnapshot(schemas, null, snapshotControl);
+            writer.setDiffResult(DiffGeneratorFactory.getInstance().compare(reference, empty, compareControl));
+            List<ChangeSet> changeSets = writer.generateChangeSets();
+            Metrics.counter("snapshot", "changeSets").inc(changeSets.size());
+            return changeSets;
+        }
+    }
+
+    private static List<ChangeSet> renumber(List<ChangeSet> changeSets, String idRoot) {
+        List<ChangeSet> renumbered = new ArrayList<>(changeSets.size());
+        int changeNumber = 1;
+        for (ChangeSet changeSet : changeSets) {
+            ChangeSet copy = new ChangeSet(idRoot + "-" + changeNumber++, changeSet.getAuthor(), false, false, null, null, null, false, null, null);
+            changeSet.getChanges().forEach(copy::addChange);
+            renumbered.add(copy);
+        }
+        return renumbered;
+    }
+
+    static String ownerOf(ChangeSet changeSet) {
+        for (Change change : changeSet.getChanges()) {
+            for (String field : OWNER_FIELDS) {
+                Object value = fieldValue(change, field);
+                if (value != null) return value.toString();
+            }
+        }
+        return null;
+    }
+
+    private static Object objectNameOf(ChangeSet changeSet) {
+        if (changeSet.getChanges().isEmpty()) return null;
+        for (String field : NAME_FIELDS) {
+            Object value = fieldValue(changeSet.getChanges().get(0), field);
+            if (value != null) return value;
+        }
+        return null;
+    }
+
+    private static Object fieldValue(Change change, String field) {
+        return change.getSerializableFields().contains(field) ? change.getSerializableFieldValue(field) : null;
+    }
+
+    private static int changeRank(ChangeSet changeSet) {
+        if (changeSet.getChanges().isEmpty()) return CHANGE_ORDER.size();
+        int rank = CHANGE_ORDER.indexOf(ChangeFactory.getInstance().getChangeMetaData(changeSet.getChanges().get(0)).getName());
+        return rank < 0 ? CHANGE_ORDER.size() : rank;
+    }
+
+    private static Set<String> ownerSet() {
+        return new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+    }
+
+    private static Map<String, Marker> readMarkers(Database database, CatalogAndSchema catalogAndSchema) throws SQLException {
+        String[] queries;
+        if (database instanceof MSSQLDatabase) {
+            queries = new String[]{MSSQL_MARKERS};
+        } else if (database instanceof H2Database) {
+            queries = H2_MARKERS;
+        } else {
+            return null;
+        }
+        String schemaName = catalogAndSchema.getSchemaName() != null ? catalogAndSchema.getSchemaName() : database.getDefaultSchemaName();
+        Connection connection = ((JdbcConnection) database.getConnection()).getUnderlyingConnection();
+        Map<String, StringBuilder> text = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        Map<String, String> types = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (String query : queries) {
+            try (PreparedStatement stmt = connection.prepareStatement(query)) {
+                for (int i = 1; i <= stmt.getParameterMetaData().getParameterCount(); i++) stmt.setString(i, schemaName);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        String owner = rs.getString(1);
+                        text.computeIfAbsent(owner, k -> new StringBuilder()).append(rs.getString(3)).append('\n');
+                        types.putIfAbsent(owner, rs.getString(2).trim());
+                    }
+                }
+            }
+        }
+        Map<String, Marker> markers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        text.forEach((owner, value) -> markers.put(owner, new Marker(types.get(owner), digest(value.toString()))));
+        return markers;
+    }
+
+    private String cacheKey(Database database, CatalogAndSchema catalogAndSchema) {
+        String source = database.getConnection().getURL() + "|" + catalogAndSchema.getCatalogName() + "|" + catalogAndSchema.getSchemaName() + "|" + _outputCatalog;
+        return (catalogAndSchema.getCatalogName() == null ? "" : catalogAndSchema.getCatalogName() + "_") + catalogAndSchema.getSchemaName() + "_" + digest(source).substring(0, 12);
+    }
+
+    private Map<String, Marker> loadMarkers(String key) {
+        File file = new File(_dir, key + ".markers");
+        if (!file.isFile()) return null;
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        } catch (IOException e) {
+            _logger.warn("Cannot read cached markers {}, ignoring the cache entry", file, e);
+            return null;
+        }
+        Map<String, Marker> markers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        properties.stringPropertyNames().forEach(owner -> markers.put(owner, Marker.parse(properties.getProperty(owner))));
+        return markers;
+    }
+
+    private List<ChangeSet> loadChangeSets(Database database, String key) {
+        File file = new File(_dir, key + ".json");
+        if (!file.isFile()) return null;
+        try {
+            FileSystemResourceAccessor accessor = new FileSystemResourceAccessor(_dir.getAbsolutePath());
+            return ChangeLogParserFactory.getInstance().getParser(file.getName(), accessor)
+                    .parse(file.getName(), new ChangeLogParameters(database), accessor).getChangeSets();
+        } catch (Exception e) {
+            _logger.warn("Cannot parse cached changeSets {}, ignoring the cache entry", file, e);
+            return null;
+        }
+    }
+
+    /* Both files are written next to their final name and moved in place, so an interrupted run never leaves a torn entry behind */
+    private void store(String key, Map<String, Marker> markers, List<ChangeSet> changeSets) {
+        File changeLog = new File(_dir, key + ".json");
+        File markerFile = new File(_dir, key + ".markers");
+        try {
+            File tmpChangeLog = new File(_dir, key + ".json.tmp");
+            try (OutputStream out = new FileOutputStream(tmpChangeLog)) {
+                new JsonChangeLogSerializer().write(changeSets, out);
+            }
+            Properties properties = new Properties();
+            markers.forEach((owner, marker) -> properties.setProperty(owner, marker.toString()));
+            File tmpMarkers = new File(_dir, key + ".markers.tmp");
+            try (OutputStream out = new FileOutputStream(tmpMarkers)) {
+                properties.store(out, "Change markers for " + key);
+            }
+            Files.deleteIfExists(markerFile.toPath()); // markers go last, without them the entry is treated as missing
+            Files.move(tmpChangeLog.toPath(), changeLog.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tmpMarkers.toPath(), markerFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            _logger.warn("Cannot write snapshot cache entry {}", key, e);
+        }
+    }
+
+    private static String digest(String value) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            StringBuilder hex = new StringBuilder();
+            for (byte b : md.digest(value.getBytes(StandardCharsets.UTF_8))) hex.append(String.format("%02x", b));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(value.hashCode());
+        }
+    }
+
+    private static final class Marker {
+        private final String _type;
+        private final String _stamp;
+
+        private Marker(String type, String stamp) {
+            this._type = type;
+            this._stamp = stamp;
+        }
+
+        static Marker parse(String value) {
+            int split = value.indexOf('|');
+            return split < 0 ? new Marker("", value) : new Marker(value.substring(0, split), value.substring(split + 1));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Marker)) return false;
+            Marker other = (Marker) o;
+            return _type.equals(other._type) && _stamp.equals(other._stamp);
+        }
+
+        @Override
+        public int hashCode() {
+            return _type.hashCode() * 31 + _stamp.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return _type + "|" + _stamp;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package db.liquibase;
+
+import db.jdbc.ConnectionSource;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/* SQL Server fast path. With data the source is backed up once, COPY_ONLY so the backup chain is left alone, and every
+ * target is restored from that file with its files moved to the instance default locations. Without data each target is a
+ * DBCC CLONEDATABASE schema copy, switched back to read-write. Microsoft supports such clones for diagnostics only, not as
+ * production databases, which is why CloneDb only comes here when asked to. Paths are the server's, not ours */
+
+class SqlServerNativeClone implements NativeClone {
+    private static final Logger _logger = LogManager.getLogger(SqlServerNativeClone.class);
+    private static final int AZURE_SQL_DATABASE = 5;
+    private static final int CLONEDATABASE_MAJOR_VERSION = 13;
+
+    private final ConnectionSource _server;
+    private final String _backupDir;
+    private final boolean _copyData;
+    private String _backupFile;
+
+    SqlServerNativeClone(ConnectionSource server, String backupDir, boolean copyData) {
+        this._server = server;
+        this._backupDir = backupDir;
+        this._copyData = copyData;
+    }
+
+    /* BACKUP/RESTORE needs a box or managed instance and the rights to back up and create databases; DBCC CLONEDATABASE
+     * needs sysadmin and SQL Server 2016 or later */
+    static boolean supports(Connection source, String product, boolean copyData) {
+        if (!"Microsoft SQL Server".equals(product)) return false;
+        String check = copyData
+                ? "SELECT CAST(SERVERPROPERTY('EngineEdition') AS int), HAS_PERMS_BY_NAME(DB_NAME(), 'DATABASE', 'BACKUP DATABASE') & HAS_PERMS_BY_NAME(NULL, NULL, 'CREATE ANY DATABASE')"
+                : "SELECT CAST(SERVERPROPERTY('EngineEdition') AS int), CASE WHEN IS_SRVROLEMEMBER('sysadmin') = 1 AND CAST(SERVERPROPERTY('ProductMajorVersion') AS int) >= "
+                        + CLONEDATABASE_MAJOR_VERSION + " THEN 1 ELSE 0 END";
+        try (Statement stmt = source.createStatement(); ResultSet rs = stmt.executeQuery(check)) {
+            return rs.next() && rs.getInt(1) != AZURE_SQL_DATABASE && rs.getInt(2) == 1;
+        } catch (SQLException e) {
+            _logger.debug("Cannot check the native clone rights", e);
+            return false;
+        }
+    }
+
+    static String defaultBackupDir(Connection source) {
+        try (Statement stmt = source.createStatement(); ResultSet rs = stmt.executeQuery("SELECT CAST(SERVERPROPERTY('InstanceDefaultBackupPath') AS nvarchar(4000))")) {
+            return rs.next() ? rs.getString(1) : null;
+        } catch (SQLException e) {
+            _logger.debug("Cannot read the default backup path", e);
+            return null;
+        }
+    }
+
+    @Override
+    public String getName() {
+        return _copyData ? "mssql-backup-restore" : "mssql-clonedatabase";
+    }
+
+    @Override
+    public void snapshot(String sourceDbName) throws SQLException {
+        if (!_copyData) return;
+        _backupFile = _backupDir + (_backupDir.endsWith("\\") || _backupDir.endsWith("/") ? "" : "\\") + sourceDbName + "-" + System.currentTimeMillis() + ".bak";
+        try (Connection connection = _server.getConnection();
+             PreparedStatement stmt = connection.prepareStatement("BACKUP DATABASE " + quote(sourceDbName) + " TO DISK = ? WITH COPY_ONLY, INIT")) {
+            stmt.setString(1, _backupFile);
+            stmt.execute();
+        }
+        _logger.info("Backed up {} to {}", sourceDbName, _backupFile);
+    }
+
+    @Override
+    public void restore(String sourceDbName, String targetDbName) throws SQLException {
+        if (targetDbName.equalsIgnoreCase(sourceDbName)) throw new SQLException("Refusing to restore " + sourceDbName + " over itself");
+        try (Connection connection = _server.getConnection(); Statement stmt = connection.createStatement()) {
+            stmt.executeUpdate("if db_id('" + targetDbName + "') is not null DROP DATABASE " + quote(targetDbName) + ";");
+            if (!_copyData) {
+                stmt.execute("DBCC CLONEDATABASE (" + quote(sourceDbName) + ", " + quote(targetDbName) + ") WITH NO_STATISTICS, NO_QUERYSTORE");
+                stmt.execute("ALTER DATABASE " + quote(targetDbName) + " SET READ_WRITE");
+                return;
+            }
+            List<String> moves = new ArrayList<>();
+            List<String> arguments = new ArrayList<>();
+            try (PreparedStatement fileList = connection.prepareStatement("RESTORE FILELISTONLY FROM DISK = ?")) {
+                fileList.setString(1, _backupFile);
+                String dataDir = serverProperty(connection, "InstanceDefaultDataPath");
+                String logDir = serverProperty(connection, "InstanceDefaultLogPath");
+                try (ResultSet rs = fileList.executeQuery()) {
+                    while (rs.next()) {
+                        String logicalName = rs.getString("LogicalName");
+                        boolean log = "L".equals(rs.getString("Type"));
+                        moves.add("MOVE ? TO ?");
+                        arguments.add(logicalName);
+                        arguments.add((log ? logDir : dataDir) + targetDbName + "_" + logicalName + (log ? ".ldf" : ".mdf"));
+                    }
+                }
+            }
+            try (PreparedStatement restore = connection.prepareStatement("RESTORE DATABASE " + quote(targetDbName) + " FROM DISK = ? WITH "
+                    + String.join(", ", moves) + ", REPLACE, RECOVERY")) {
+                restore.setString(1, _backupFile);
+                for (int i = 0; i < arguments.size(); i++) {
+                    restore.setString(i + 2, arguments.get(i));
+                }
+                restore.execute();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (_backupFile == null) return;
+        try (Connection connection = _server.getConnection(); PreparedStatement stmt = connection.prepareStatement("EXECUTE master.dbo.xp_delete_file 0, ?")) {
+            stmt.setString(1, _backupFile);
+            stmt.execute();
+        } catch (SQLException e) {
+            _logger.warn("Cannot delete the clone backup {}", _backupFile, e);
+        }
+    }
+
+    private static String serverProperty(Connection connection, String property) throws SQLException {
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT CAST(SERVERPROPERTY('" + property + "') AS nvarchar(4000))")) {
+            return rs.next() ? rs.getString(1) : null;
+        }
+    }
+
+    private static String quote(String name) {
+        return "[" + name.replace("]", "]]") + "]";
+    }
+}
@@ -0,0 +1,195 @@
+package db.metrics;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.CsvReporter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import db.jdbc.ConcurrencyLimiter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.util.DefaultPrettyPrinter;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/* Registry shared by every step of a run. Phases are timers named "phase.<name>", sizes are histograms, object and
+ * byte totals are counters and current levels, such as concurrency limits, are gauges. Every timed phase is also a span on
+ * the Trace when one is recording. A run started with start() can publish the registry over JMX and, when given a report
+ * directory, leaves a CSV file per metric and a JSON run report there when it is closed */
+
+public final class Metrics implements AutoCloseable {
+    public static final MetricRegistry REGISTRY = new MetricRegistry();
+    private static final Logger _logger = LogManager.getLogger(Metrics.class);
+    private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final Map<String, Timer> _phases = new ConcurrentHashMap<>();
+
+    private final String _tool;
+    private final File _reportDir;
+    private final JmxReporter _jmxReporter;
+    private final long _startedAt = System.currentTimeMillis();
+
+    private Metrics(String tool, File reportDir, boolean jmx) {
+        _tool = tool;
+        _reportDir = reportDir;
+        _jmxReporter = jmx ? JmxReporter.forRegistry(REGISTRY).inDomain("db." + tool).convertDurationsTo(TimeUnit.MILLISECONDS).build() : null;
+        if (_jmxReporter != null) _jmxReporter.start();
+    }
+
+    /* Starts reporting for the run of the given tool; reportDir may be null when only JMX, or nothing, is wanted */
+    public static Metrics start(String tool, String reportDir, boolean jmx) {
+        File dir = reportDir == null ? null : new File(reportDir);
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            _logger.warn("Cannot create report directory {}, metrics will not be written", dir);
+            dir = null;
+        }
+        ConcurrencyLimiter.reportTo(new LimiterReporter());
+        return new Metrics(tool, dir, jmx);
+    }
+
+    public static Timer phase(String phase) {
+        return _phases.computeIfAbsent(phase, key -> {
+            synchronized (REGISTRY) {
+                Timer timer = REGISTRY.getTimers().get(name("phase", key));
+                return timer != null ? timer : REGISTRY.register(name("phase", key), new PhaseTimer(key));
+            }
+        });
+    }
+
+    public static Histogram histogram(String... names) {
+        return REGISTRY.histogram(name("size", names));
+    }
+
+    public static Counter counter(String... names) {
+        return REGISTRY.counter(name("count", names));
+    }
+
+    /* Registers the gauge unless one is already registered under the same name, which is then kept */
+    public static void gauge(Gauge<?> gauge, String... names) {
+        String name = name("gauge", names);
+        synchronized (REGISTRY) {
+            if (!REGISTRY.getGauges().containsKey(name)) REGISTRY.register(name, gauge);
+        }
+    }
+
+    public static long millis(double nanos) {
+        return Math.round(nanos / NANOS_PER_MILLI);
+    }
+
+    @Override
+    public void close() {
+        ConcurrencyLimiter.reportTo(null);
+        if (_jmxReporter != null) _jmxReporter.stop();
+        if (_reportDir == null) return;
+        CsvReporter.forRegistry(REGISTRY).formatFor(Locale.US).convertDurationsTo(TimeUnit.MILLISECONDS).convertRatesTo(TimeUnit.SECONDS)
+                .build(_reportDir).report();
+        File report = new File(_reportDir, _tool + "-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date(_startedAt)) + ".json");
+        try {
+            writeReport(report);
+            _logger.info("Wrote run report {}", report);
+        } catch (IOException e) {
+            _logger.error("Exception caught writing the run report {}", report, e);
+        }
+    }
+
+    private void writeReport(File report) throws IOException {
+        try (JsonGenerator jg = new JsonFactory().createJsonGenerator(report, JsonEncoding.UTF8)) {
+            jg.setPrettyPrinter(new DefaultPrettyPrinter());
+            jg.writeStartObject();
+            jg.writeStringField("tool", _tool);
+            jg.writeNumberField("startedAt", _startedAt);
+            jg.writeNumberField("durationMs", System.currentTimeMillis() - _startedAt);
+            jg.writeObjectFieldStart("timers");
+            for (Map.Entry<String, Timer> entry : REGISTRY.getTimers().entrySet()) {
+                jg.writeObjectFieldStart(entry.getKey());
+                jg.writeNumberField("count", entry.getValue().getCount());
+                writeSnapshot(jg, entry.getValue().getSnapshot(), true);
+                jg.writeEndObject();
+            }
+            jg.writeEndObject();
+            jg.writeObjectFieldStart("histograms");
+            for (Map.Entry<String, Histogram> entry : REGISTRY.getHistograms().entrySet()) {
+                jg.writeObjectFieldStart(entry.getKey());
+                jg.writeNumberField("count", entry.getValue().getCount());
+                writeSnapshot(jg, entry.getValue().getSnapshot(), false);
+                jg.writeEndObject();
+            }
+            jg.writeEndObject();
+            jg.writeObjectFieldStart("counters");
+            for (Map.Entry<String, Counter> entry : REGISTRY.getCounters().entrySet()) {
+                jg.writeNumberField(entry.getKey(), entry.getValue().getCount());
+            }
+            jg.writeEndObject();
+            jg.writeObjectFieldStart("gauges");
+            for (Map.Entry<String, ?> entry : REGISTRY.getGauges().entrySet()) {
+                Object value = ((Gauge<?>) entry.getValue()).getValue();
+                if (value instanceof Number) {
+                    jg.writeNumberField(entry.getKey(), ((Number) value).doubleValue());
+                } else {
+                    jg.writeStringField(entry.getKey(), String.valueOf(value));
+                }
+            }
+            jg.writeEndObject();
+            jg.writeEndObject();
+        }
+    }
+
+    /* Timer.Context.stop() reports through update(), so timed blocks and durations measured elsewhere both become spans */
+    private static final class PhaseTimer extends Timer {
+        private final String _phase;
+
+        private PhaseTimer(String phase) {
+            _phase = phase;
+        }
+
+        @Override
+        public void update(long duration, TimeUnit unit) {
+            super.update(duration, unit);
+            Trace.completed(Trace.PHASE, _phase, unit.toNanos(duration));
+        }
+    }
+
+    private static void writeSnapshot(JsonGenerator jg, Snapshot snapshot, boolean durations) throws IOException {
+        String suffix = durations ? "Ms" : "";
+        double scale = durations ? NANOS_PER_MILLI : 1;
+        jg.writeNumberField("min" + suffix, snapshot.getMin() / scale);
+        jg.writeNumberField("mean" + suffix, snapshot.getMean() / scale);
+        jg.writeNumberField("p50" + suffix, snapshot.getMedian() / scale);
+        jg.writeNumberField("p95" + suffix, snapshot.get95thPercentile() / scale);
+        jg.writeNumberField("p99" + suffix, snapshot.get99thPercentile() / scale);
+        jg.writeNumberField("max" + suffix, snapshot.getMax() / scale);
+    }
+
+    /* Records what the limiters measure in this registry. The limiters are not reloaded per job in the clone service, so
+     * start() points the run's threads at the registry of the job they belong to */
+    public static final class LimiterReporter implements ConcurrencyLimiter.Reporter {
+        @Override
+        public void gauge(Gauge<?> gauge, String... names) {
+            Metrics.gauge(gauge, names);
+        }
+
+        @Override
+        public void phase(String phase, long nanos) {
+            Metrics.phase(phase).update(nanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public void count(String... names) {
+            Metrics.counter(names).inc();
+        }
+    }
+}
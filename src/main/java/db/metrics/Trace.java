@@ -0,0 +1,139 @@
+package db.metrics;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* Timeline of a run: spans of phases, JDBC statements and metadata calls, changeSets and migrations, each with the thread
+ * that ran it. Spans go into a ring buffer allocated up front, which keeps the latest CAPACITY of them, and are written as
+ * Chrome trace JSON, which chrome://tracing and ui.perfetto.dev open, when the trace is closed. While no trace is started
+ * recording costs a volatile read. A span is begun with begin() and recorded by end():
+ *
+ *     long start = Trace.begin();
+ *     ...
+ *     Trace.end(Trace.JDBC, sql, start);
+ */
+
+public final class Trace implements AutoCloseable {
+    public static final int PHASE = 0;
+    public static final int JDBC = 1;
+    public static final int CHANGESET = 2;
+    public static final int MIGRATION = 3;
+    private static final String[] CATEGORIES = {"phase", "jdbc", "changeSet", "migration"};
+    private static final int CAPACITY = 1 << 19; // a power of two, about 20 MB of buffer
+    private static final int MAX_NAME_LENGTH = 200;
+    private static final Logger _logger = LogManager.getLogger(Trace.class);
+    private static volatile Trace _active;
+
+    private final File _file;
+    private final long _origin = System.nanoTime();
+    private final long[] _starts;
+    private final long[] _durations;
+    private final long[] _threads;
+    private final byte[] _categories;
+    private final String[] _names;
+    private final AtomicLong _next = new AtomicLong();
+    private final Map<Long, String> _threadNames = new ConcurrentHashMap<>();
+
+    private Trace(File file, int capacity) {
+        _file = file;
+        _starts = new long[capacity];
+        _durations = new long[capacity];
+        _threads = new long[capacity];
+        _categories = new byte[capacity];
+        _names = new String[capacity];
+    }
+
+    /* Starts recording for the run when file is given; the returned trace writes it when closed. With a null file nothing is
+     * recorded and closing does nothing */
+    public static Trace start(String file) {
+        Trace trace = new Trace(file == null ? null : new File(file), file == null ? 0 : CAPACITY);
+        if (file != null) _active = trace;
+        return trace;
+    }
+
+    public static boolean isEnabled() {
+        return _active != null;
+    }
+
+    /* Returns the start of a span, or 0 when nothing is recorded */
+    public static long begin() {
+        return _active == null ? 0 : System.nanoTime();
+    }
+
+    public static void end(int category, String name, long start) {
+        Trace trace = _active;
+        if (trace == null || start == 0) return;
+        trace.record(category, name, start, System.nanoTime() - start);
+    }
+
+    /* Records a span that ended now and lasted durationNanos, for work timed elsewhere */
+    public static void completed(int category, String name, long durationNanos) {
+        Trace trace = _active;
+        if (trace == null) return;
+        trace.record(category, name, System.nanoTime() - durationNanos, durationNanos);
+    }
+
+    private void record(int category, String name, long start, long duration) {
+        Thread thread = Thread.currentThread();
+        long threadId = thread.getId();
+        if (!_threadNames.containsKey(threadId)) _threadNames.put(threadId, thread.getName());
+        int slot = (int) (_next.getAndIncrement() & (_starts.length - 1));
+        _starts[slot] = start;
+        _durations[slot] = duration;
+        _threads[slot] = threadId;
+        _categories[slot] = (byte) category;
+        _names[slot] = name;
+    }
+
+    /* Stops recording and writes the spans, oldest first */
+    @Override
+    public void close() {
+        if (_file == null) return;
+        if (_active == this) _active = null;
+        long recorded = _next.get();
+        long first = Math.max(0, recorded - _starts.length);
+        try (JsonGenerator jg = new JsonFactory().createJsonGenerator(_file, JsonEncoding.UTF8)) {
+            jg.writeStartObject();
+            jg.writeStringField("displayTimeUnit", "ms");
+            jg.writeArrayFieldStart("traceEvents");
+            for (Map.Entry<Long, String> thread : _threadNames.entrySet()) {
+                jg.writeStartObject();
+                jg.writeStringField("name", "thread_name");
+                jg.writeStringField("ph", "M");
+                jg.writeNumberField("pid", 1);
+                jg.writeNumberField("tid", thread.getKey());
+                jg.writeObjectFieldStart("args");
+                jg.writeStringField("name", thread.getValue());
+                jg.writeEndObject();
+                jg.writeEndObject();
+            }
+            for (long i = first; i < recorded; i++) {
+                int slot = (int) (i & (_starts.length - 1));
+                String name = String.valueOf(_names[slot]);
+                jg.writeStartObject();
+                jg.writeStringField("name", name.length() > MAX_NAME_LENGTH ? name.substring(0, MAX_NAME_LENGTH) + "..." : name);
+                jg.writeStringField("cat", CATEGORIES[_categories[slot]]);
+                jg.writeStringField("ph", "X");
+                jg.writeNumberField("ts", (_starts[slot] - _origin) / 1000.0);
+                jg.writeNumberField("dur", _durations[slot] / 1000.0);
+                jg.writeNumberField("pid", 1);
+                jg.writeNumberField("tid", _threads[slot]);
+                jg.writeEndObject();
+            }
+            jg.writeEndArray();
+            jg.writeEndObject();
+            _logger.info("Wrote {} trace spans to {}{}", recorded - first, _file, first > 0 ? ", the " + first + " oldest were overwritten" : "");
+        } catch (IOException e) {
+            _logger.error("Exception caught writing the trace {}", _file, e);
+        }
+    }
+}
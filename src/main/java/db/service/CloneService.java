@@ -0,0 +1,397 @@
+package db.service;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import liquibase.change.ChangeFactory;
+import liquibase.database.DatabaseFactory;
+import liquibase.executor.ExecutorService;
+import liquibase.lockservice.LockServiceFactory;
+import liquibase.snapshot.SnapshotGeneratorFactory;
+import org.apache.commons.cli.*;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.ObjectNode;
+import org.flywaydb.core.Flyway;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.Permission;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.System.exit;
+
+/* Resident service running lift, create, clone and migrate jobs in one warm JVM. Jobs are posted to a loopback HTTP
+ * endpoint, wait in a bounded queue and run WORKERS at a time, each in its own JobClassLoader so the tools' static state
+ * never crosses jobs while Liquibase, Flyway and the drivers are initialized once. A System.exit from a job ends that job
+ * only, and a job's connection pools are closed and its leftover threads interrupted when its main returns. log4j is set
+ * up once for all jobs, the tools leave it alone in the service. Liquibase keeps a lock service and an executor per
+ * Database; those caches are dropped whenever the service goes idle.
+ *
+ *   POST /jobs          {"tool": "clone", "args": ["-sc", ...], "directory": "/where/the/client/runs"}
+ *   GET  /jobs/<id>     job state, exit code and timings; ?wait=<seconds> blocks until the job is done
+ *   GET  /jobs          all jobs still remembered */
+
+public class CloneService {
+    private static final String PORT = "port";
+    private static final String WORKERS = "workers";
+    private static final String QUEUE_SIZE = "queue_size";
+
+    static final int DEFAULT_PORT = 7878;
+    private static final int MAX_REMEMBERED_JOBS = 1000;
+    private static final Map<String, String> TOOLS = new HashMap<>();
+    private static final Logger _logger = LogManager.getLogger(CloneService.class);
+    private static final ObjectMapper _mapper = new ObjectMapper();
+
+    static {
+        TOOLS.put("lift", "db.liquibase.LiquiBaseConnector");
+        TOOLS.put("create", "db.liquibase.LiquiBaseCreateDb");
+        TOOLS.put("clone", "db.liquibase.LiquiBaseCloneDb");
+        TOOLS.put("migrate", "db.flyway.FlyWayConnector");
+    }
+
+    private final Map<Long, Job> _jobs = new ConcurrentSkipListMap<>();
+    private final AtomicLong _nextId = new AtomicLong();
+    private final ThreadPoolExecutor _workers;
+    private final String _directory = new File("").getAbsolutePath();
+    private int _running;
+
+    private CloneService(int workers, int queueSize) {
+        _workers = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize));
+    }
+
+    public static void main(String[] args) throws IOException {
+        OptionsHelper optionsHelper = new OptionsHelper(args);
+        System.clearProperty(ServiceClient.SERVICE_URL); // jobs run the tools' mains, which must not forward back to us
+        System.setProperty(ServiceClient.IN_SERVICE, "true");
+        org.apache.log4j.Logger.getRootLogger().setLevel(org.apache.log4j.Level.OFF); // what the tools set when run alone
+        installExitGuard();
+        warmUp();
+
+        CloneService service = new CloneService(optionsHelper.getInt(WORKERS, Math.max(1, Runtime.getRuntime().availableProcessors() / 2)),
+                optionsHelper.getInt(QUEUE_SIZE, 100));
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), optionsHelper.getInt(PORT, DEFAULT_PORT)), 0);
+        server.createContext("/jobs", service::handle);
+        server.setExecutor(Executors.newCachedThreadPool()); // ?wait requests block their handler thread
+        server.start();
+        _logger.info("Serving {} on {} with {} workers, jobs run in {}", TOOLS.keySet(), server.getAddress(), service._workers.getCorePoolSize(), service._directory);
+    }
+
+    /* Pays for Liquibase's and Flyway's class scanning and factory setup before the first job does */
+    private static void warmUp() {
+        long start = System.nanoTime();
+        DatabaseFactory.getInstance();
+        ChangeFactory.getInstance();
+        SnapshotGeneratorFactory.getInstance();
+        Flyway.configure();
+        _logger.info("Warmed up in {} ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    @SuppressWarnings("removal")
+    private static void installExitGuard() {
+        try {
+            System.setSecurityManager(new ExitGuard());
+        } catch (UnsupportedOperationException | SecurityException e) {
+            _logger.warn("Cannot install the exit guard, a job calling System.exit would stop the service; run with -Djava.security.manager=allow", e);
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath().replaceAll("/+$", "");
+            if ("POST".equals(exchange.getRequestMethod()) && "/jobs".equals(path)) {
+                submit(exchange);
+            } else if ("GET".equals(exchange.getRequestMethod()) && "/jobs".equals(path)) {
+                ArrayNode jobs = _mapper.createArrayNode();
+                _jobs.values().forEach(job -> jobs.add(job.toJson()));
+                respond(exchange, 200, jobs);
+            } else if ("GET".equals(exchange.getRequestMethod()) && path.startsWith("/jobs/")) {
+                status(exchange, path.substring("/jobs/".length()));
+            } else {
+                respond(exchange, 404, error("No such endpoint"));
+            }
+        } catch (Exception e) {
+            _logger.error("Exception caught handling {} {}", exchange.getRequestMethod(), exchange.getRequestURI(), e);
+            respond(exchange, 500, error(String.valueOf(e.getMessage())));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void submit(HttpExchange exchange) throws IOException {
+        JsonNode request = _mapper.readTree(exchange.getRequestBody());
+        String tool = request.path("tool").getTextValue();
+        if (!TOOLS.containsKey(tool)) {
+            respond(exchange, 400, error("Unknown tool " + tool + ", expected one of " + TOOLS.keySet()));
+            return;
+        }
+        // The tools write and read paths relative to the working directory, which a JVM cannot change per job
+        String directory = request.path("directory").getTextValue();
+        if (directory != null && !new File(directory).getAbsolutePath().equals(_directory)) {
+            respond(exchange, 409, error("The service runs in " + _directory + ", relative paths of a job from " + directory + " would resolve there"));
+            return;
+        }
+        List<String> args = new ArrayList<>();
+        request.path("args").forEach(arg -> args.add(arg.getTextValue()));
+
+        Job job = new Job(_nextId.incrementAndGet(), tool, args.toArray(new String[0]));
+        _jobs.put(job.id, job);
+        try {
+            _workers.execute(() -> run(job));
+        } catch (RejectedExecutionException e) {
+            _jobs.remove(job.id);
+            respond(exchange, 503, error("Job queue is full"));
+            return;
+        }
+        forgetOldJobs();
+        _logger.info("Queued job {}: {} {}", job.id, tool, args);
+        respond(exchange, 202, job.toJson());
+    }
+
+    private void status(HttpExchange exchange, String id) throws IOException, InterruptedException {
+        Job job;
+        try {
+            job = _jobs.get(Long.parseLong(id));
+        } catch (NumberFormatException e) {
+            job = null;
+        }
+        if (job == null) {
+            respond(exchange, 404, error("No job " + id));
+            return;
+        }
+        String query = exchange.getRequestURI().getQuery();
+        if (query != null && query.startsWith("wait=")) {
+            job.await(TimeUnit.SECONDS.toMillis(Long.parseLong(query.substring("wait=".length()))));
+        }
+        respond(exchange, 200, job.toJson());
+    }
+
+    /* Runs the tool's main on a thread of the job's own group, so an exit from any thread the tool starts is caught */
+    private void run(Job job) {
+        synchronized (this) {
+            _running++;
+        }
+        job.started();
+        _logger.info("Running job {}", job.id);
+        JobThreadGroup group = new JobThreadGroup(job);
+        Thread thread = new Thread(group, () -> {
+            try {
+                Class<?> tool = Class.forName(TOOLS.get(job.tool), true, Thread.currentThread().getContextClassLoader());
+                tool.getMethod("main", String[].class).invoke(null, (Object) job.args);
+                job.finished(0, null);
+            } catch (InvocationTargetException e) {
+                if (e.getCause() instanceof JobExit) {
+                    job.finished(((JobExit) e.getCause()).status, null);
+                } else {
+                    _logger.error("Exception caught running job {}", job.id, e.getCause());
+                    job.finished(1, String.valueOf(e.getCause()));
+                }
+            } catch (Throwable e) {
+                _logger.error("Exception caught running job {}", job.id, e);
+                job.finished(1, String.valueOf(e));
+            }
+        }, "job-" + job.id);
+        JobClassLoader loader = new JobClassLoader(CloneService.class.getClassLoader());
+        thread.setContextClassLoader(loader);
+        thread.start();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (group.activeCount() > 0) {
+            _logger.warn("Interrupting {} threads job {} left running", group.activeCount(), job.id);
+            group.interrupt();
+        }
+        closePools(job, loader);
+        _logger.info("Job {} finished with exit code {} in {} ms", job.id, job.getExitCode(), job.runMillis());
+        synchronized (this) {
+            if (--_running == 0) resetCaches();
+        }
+    }
+
+    /* Closes the connection pools of the job's own ConnectionPool class, which a tool that failed half way may have left open */
+    private static void closePools(Job job, ClassLoader loader) {
+        try {
+            Class.forName("db.jdbc.ConnectionPool", true, loader).getMethod("closeAll").invoke(null);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            _logger.error("Exception caught closing the connection pools of job {}", job.id, e);
+        }
+    }
+
+    /* Only called with no job running, since the caches are shared by all of them */
+    private static void resetCaches() {
+        LockServiceFactory.getInstance().resetAll();
+        ExecutorService.getInstance().reset();
+    }
+
+    private void forgetOldJobs() {
+        Iterator<Job> jobs = _jobs.values().iterator();
+        while (_jobs.size() > MAX_REMEMBERED_JOBS && jobs.hasNext()) {
+            if (jobs.next().isDone()) jobs.remove();
+        }
+    }
+
+    private static ObjectNode error(String message) {
+        ObjectNode node = _mapper.createObjectNode();
+        node.put("error", message);
+        return node;
+    }
+
+    private static void respond(HttpExchange exchange, int status, JsonNode body) throws IOException {
+        byte[] bytes = _mapper.writeValueAsString(body).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static final class Job {
+        final long id;
+        final String tool;
+        final String[] args;
+        private final long _queuedAt = System.currentTimeMillis();
+        private long _startedAt;
+        private long _finishedAt;
+        private Integer _exitCode;
+        private String _error;
+
+        Job(long id, String tool, String[] args) {
+            this.id = id;
+            this.tool = tool;
+            this.args = args;
+        }
+
+        synchronized void started() {
+            _startedAt = System.currentTimeMillis();
+        }
+
+        synchronized void finished(int exitCode, String error) {
+            if (_exitCode != null) return;
+            _exitCode = exitCode;
+            _error = error;
+            _finishedAt = System.currentTimeMillis();
+            notifyAll();
+        }
+
+        synchronized Integer getExitCode() {
+            return _exitCode;
+        }
+
+        synchronized boolean isDone() {
+            return _exitCode != null;
+        }
+
+        synchronized void await(long millis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + millis;
+            for (long left = millis; _exitCode == null && left > 0; left = deadline - System.currentTimeMillis()) {
+                wait(left);
+            }
+        }
+
+        synchronized long runMillis() {
+            return _startedAt == 0 ? 0 : (_finishedAt == 0 ? System.currentTimeMillis() : _finishedAt) - _startedAt;
+        }
+
+        synchronized ObjectNode toJson() {
+            ObjectNode node = _mapper.createObjectNode();
+            node.put("id", id);
+            node.put("tool", tool);
+            node.put("state", _exitCode != null ? "DONE" : _startedAt != 0 ? "RUNNING" : "QUEUED");
+            if (_exitCode != null) node.put("exitCode", _exitCode);
+            if (_error != null) node.put("error", _error);
+            node.put("queuedMs", (_startedAt == 0 ? System.currentTimeMillis() : _startedAt) - _queuedAt);
+            node.put("runMs", runMillis());
+            return node;
+        }
+    }
+
+    private static final class JobThreadGroup extends ThreadGroup {
+
+        JobThreadGroup(Job job) {
+            super("job-" + job.id);
+        }
+    }
+
+    private static final class JobExit extends SecurityException {
+        private static final long serialVersionUID = 1L;
+        final int status;
+
+        JobExit(int status) {
+            super("Job called System.exit(" + status + ")");
+            this.status = status;
+        }
+    }
+
+    /* Turns System.exit on a job's threads into a JobExit and permits everything else */
+    @SuppressWarnings("removal")
+    private static final class ExitGuard extends SecurityManager {
+
+        @Override
+        public void checkExit(int status) {
+            if (Thread.currentThread().getThreadGroup() instanceof JobThreadGroup) throw new JobExit(status);
+        }
+
+        @Override
+        public void checkPermission(Permission perm) {
+        }
+
+        @Override
+        public void checkPermission(Permission perm, Object context) {
+        }
+    }
+
+    static class OptionsHelper {
+        private final Options _opts;
+        private final CommandLineParser _parser;
+        private CommandLine _cmd;
+
+        OptionsHelper(String[] args) {
+            _opts = new Options();
+            _parser = new DefaultParser();
+
+            Option portOption = new Option("port", PORT, true, "Loopback port to listen on (default " + DEFAULT_PORT + ")");
+            portOption.setRequired(false);
+            _opts.addOption(portOption);
+
+            Option workersOption = new Option("w", WORKERS, true, "Number of jobs run concurrently (default: half the CPUs)");
+            workersOption.setRequired(false);
+            _opts.addOption(workersOption);
+
+            Option queueOption = new Option("q", QUEUE_SIZE, true, "Number of jobs waiting for a worker before new ones are refused (default 100)");
+            queueOption.setRequired(false);
+            _opts.addOption(queueOption);
+
+            try {
+                _cmd = _parser.parse(_opts, args);
+            } catch (ParseException e) {
+                _logger.error("Error parsing the command line options", e);
+                exit(-2);
+            }
+        }
+
+        int getInt(String optionLabel, int defaultValue) {
+            String value = _cmd.getOptionValue(optionLabel);
+            return value == null ? defaultValue : Integer.parseInt(value);
+        }
+    }
+}
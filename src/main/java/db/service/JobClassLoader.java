@@ -0,0 +1,59 @@
+package db.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/* Loads the tools, their metrics, their connection pools and the JDBC tracing afresh for every job, so the static state
+ * each tool keeps (parsed options, output files, pools, the metrics registry, the trace) belongs to that job alone.
+ * Everything else, Liquibase, Flyway, the JDBC drivers, DriverRegistry and the ConcurrencyLimiters included, comes from
+ * the parent and stays warm between jobs. The limiters are meant to be shared; they report to the job's metrics through
+ * the Reporter its Metrics installs. Liquibase keeps its services in singletons too, which the tools only reset for their
+ * own databases */
+
+final class JobClassLoader extends ClassLoader {
+    private static final String[] JOB_LOCAL = {"db.liquibase.", "db.flyway.", "db.metrics.", "db.jdbc.ConnectionPool", "db.jdbc.JdbcTracing"};
+
+    static {
+        registerAsParallelCapable();
+    }
+
+    JobClassLoader(ClassLoader parent) {
+        super(parent);
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        if (!isJobLocal(name)) return super.loadClass(name, resolve);
+        synchronized (getClassLoadingLock(name)) {
+            Class<?> loaded = findLoadedClass(name);
+            if (loaded == null) {
+                byte[] bytes = readClass(name);
+                loaded = defineClass(name, bytes, 0, bytes.length);
+            }
+            if (resolve) resolveClass(loaded);
+            return loaded;
+        }
+    }
+
+    private byte[] readClass(String name) throws ClassNotFoundException {
+        try (InputStream in = getParent().getResourceAsStream(name.replace('.', '/') + ".class")) {
+            if (in == null) throw new ClassNotFoundException(name);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int read; (read = in.read(buffer)) > 0; ) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new ClassNotFoundException(name, e);
+        }
+    }
+
+    private static boolean isJobLocal(String name) {
+        for (String prefix : JOB_LOCAL) {
+            if (name.startsWith(prefix)) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,98 @@
+package db.service;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ObjectNode;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+
+import static java.lang.System.exit;
+
+/* Thin client of CloneService. Every tool forwards its arguments here when started with -Ddb.service.url=<service url>,
+ * and this class can also be run directly as "ServiceClient <lift|create|clone|migrate> <tool arguments>". The job's exit
+ * code becomes the client's, so scripts behave as with the standalone tools */
+
+public final class ServiceClient {
+    static final String SERVICE_URL = "db.service.url";
+    static final String IN_SERVICE = "db.service.inService";
+    private static final int WAIT_SECONDS = 30;
+    private static final int UNAVAILABLE = 3;
+    private static final Logger _logger = LogManager.getLogger(ServiceClient.class);
+    private static final ObjectMapper _mapper = new ObjectMapper();
+
+    private ServiceClient() {
+    }
+
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            _logger.error("Usage: ServiceClient <lift|create|clone|migrate> [tool arguments], service at -D{} (default http://127.0.0.1:{})", SERVICE_URL, CloneService.DEFAULT_PORT);
+            exit(-2);
+        }
+        exit(run(System.getProperty(SERVICE_URL, "http://127.0.0.1:" + CloneService.DEFAULT_PORT), args[0], Arrays.copyOfRange(args, 1, args.length)));
+    }
+
+    /* True when the tools should hand their arguments to a running service instead of doing the work themselves */
+    public static boolean isEnabled() {
+        return System.getProperty(SERVICE_URL) != null;
+    }
+
+    /* True inside CloneService, whose jobs share log4j and must leave its setup alone */
+    public static boolean isInService() {
+        return Boolean.getBoolean(IN_SERVICE);
+    }
+
+    public static int forward(String tool, String[] args) {
+        return run(System.getProperty(SERVICE_URL), tool, args);
+    }
+
+    private static int run(String serviceUrl, String tool, String[] args) {
+        ObjectNode request = _mapper.createObjectNode();
+        request.put("tool", tool);
+        request.put("directory", new File("").getAbsolutePath());
+        Arrays.stream(args).forEach(request.putArray("args")::add);
+        try {
+            JsonNode job = call("POST", serviceUrl + "/jobs", request);
+            String id = job.path("id").asText();
+            _logger.info("Submitted {} job {} to {}", tool, id, serviceUrl);
+            while (!"DONE".equals(job.path("state").getTextValue())) {
+                job = call("GET", serviceUrl + "/jobs/" + id + "?wait=" + WAIT_SECONDS, null);
+            }
+            _logger.info("Job {} finished with exit code {} after {} ms queued and {} ms running", id, job.path("exitCode").asInt(),
+                    job.path("queuedMs").asLong(), job.path("runMs").asLong());
+            if (job.has("error")) _logger.error("Job {} failed: {}", id, job.path("error").getTextValue());
+            return job.path("exitCode").asInt();
+        } catch (IOException e) {
+            _logger.error("Exception caught talking to the service at {}", serviceUrl, e);
+            return UNAVAILABLE;
+        }
+    }
+
+    private static JsonNode call(String method, String url, JsonNode body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+        connection.setReadTimeout((WAIT_SECONDS + 30) * 1000);
+        if (body != null) {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json");
+            try (OutputStream out = connection.getOutputStream()) {
+                _mapper.writeValue(out, body);
+            }
+        }
+        int status = connection.getResponseCode();
+        try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+            JsonNode response = _mapper.readTree(in);
+            if (status >= 400) throw new IOException("Service answered " + status + ": " + response.path("error").getTextValue());
+            return response;
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package db.flyway;
+
+import db.jdbc.H2Databases;
+import org.flywaydb.core.Flyway;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/* One migration set applied to schema-per-tenant and database-per-tenant targets, all local in-memory H2 databases */
+
+public class MultiTenantMigratorTest {
+    @Rule
+    public TemporaryFolder _tmp = new TemporaryFolder();
+
+    @Rule
+    public H2Databases _h2 = new H2Databases("tenants");
+
+    @Test
+    public void migratesEverySchemaAndDatabase() throws Exception {
+        String shared = _h2.url("shared");
+        String single = _h2.url("single");
+        List<MultiTenantMigrator.Result> results = migrator(migrations(), 0).migrate(Arrays.asList(
+                new MultiTenantMigrator.Target(shared, "TENANT_A"), new MultiTenantMigrator.Target(shared, "TENANT_B"), new MultiTenantMigrator.Target(single)));
+
+        assertEquals(3, results.size());
+        results.forEach(result -> assertFalse(result.isFailed()));
+        assertEquals(2, _h2.count("shared", "SELECT COUNT(*) FROM TENANT_A.ACCOUNT"));
+        assertEquals(2, _h2.count("shared", "SELECT COUNT(*) FROM TENANT_B.ACCOUNT"));
+        assertEquals(2, _h2.count("single", "SELECT COUNT(*) FROM PUBLIC.ACCOUNT"));
+        assertEquals(2, _h2.count("shared", "SELECT COUNT(*) FROM TENANT_A.\"flyway_schema_history\" WHERE \"type\" = 'SQL' AND \"success\""));
+    }
+
+    @Test
+    public void aFailedTargetDoesNotStopTheOthers() throws Exception {
+        String broken = _h2.url("broken");
+        _h2.execute("broken", "CREATE TABLE ACCOUNT (ID INT)"); // V1 cannot create it again
+        String healthy = _h2.url("healthy");
+        List<MultiTenantMigrator.Result> results = migrator(migrations(), 2).migrate(Arrays.asList(
+                new MultiTenantMigrator.Target(broken), new MultiTenantMigrator.Target(healthy)));
+
+        assertTrue(results.get(0).isFailed());
+        assertFalse(results.get(1).isFailed());
+        assertEquals(2, _h2.count("healthy", "SELECT COUNT(*) FROM ACCOUNT"));
+    }
+
+    @Test
+    public void writesTheSummary() throws Exception {
+        String url = _h2.url("summary");
+        List<MultiTenantMigrator.Result> results = migrator(migrations(), 0).migrate(Collections.singletonList(new MultiTenantMigrator.Target(url)));
+        MultiTenantMigrator.summarize(results, _tmp.getRoot().getAbsolutePath());
+
+        List<String> lines = Files.readAllLines(new File(_tmp.getRoot(), "flyway-targets.csv").toPath(), StandardCharsets.UTF_8);
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(1), lines.get(1).startsWith(url + ",,OK,2,"));
+    }
+
+    private MultiTenantMigrator migrator(File location, int maxConnections) {
+        return new MultiTenantMigrator(Flyway.configure().locations("filesystem:" + location.getAbsolutePath()), "sa", "", 2, maxConnections);
+    }
+
+    private File migrations() throws IOException {
+        File dir = _tmp.newFolder("migrations");
+        Files.write(new File(dir, "V1__account.sql").toPath(), "CREATE TABLE ACCOUNT (ID INT PRIMARY KEY, NAME VARCHAR(50));".getBytes(StandardCharsets.UTF_8));
+        Files.write(new File(dir, "V2__seed.sql").toPath(), "INSERT INTO ACCOUNT VALUES (1, 'a'), (2, 'b');".getBytes(StandardCharsets.UTF_8));
+        return dir;
+    }
+}
@@ -0,0 +1,22 @@
+package db.jdbc;
+
+import org.junit.Test;
+
+import java.sql.Connection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/* The driver lookup is shared by every URL of a subprotocol and never keyed by credentials */
+
+public class DriverRegistryTest {
+    @Test
+    public void looksDriversUpBySubprotocol() throws Exception {
+        assertEquals("jdbc:sqlserver", DriverRegistry.subprotocol("jdbc:sqlserver://db01;user=sa;password=secret"));
+        assertEquals("jdbc:h2", DriverRegistry.subprotocol("JDBC:H2:mem:orders;DB_CLOSE_DELAY=-1"));
+        try (Connection first = DriverRegistry.connect("jdbc:h2:mem:registry_a", "sa", "");
+             Connection second = DriverRegistry.connect("jdbc:h2:mem:registry_b", "sa", "")) {
+            assertTrue(first.isValid(1) && second.isValid(1));
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package db.jdbc;
+
+import org.junit.rules.ExternalResource;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/* Named in-memory H2 databases for one test, kept alive between connections and unique to the test run. The pools opened
+ * on them are closed once the test ends */
+
+public class H2Databases extends ExternalResource {
+    private final String _prefix;
+
+    public H2Databases(String name) {
+        _prefix = "jdbc:h2:mem:" + name + "_" + System.nanoTime() + "_";
+    }
+
+    public String url(String name) {
+        return _prefix + name + ";DB_CLOSE_DELAY=-1";
+    }
+
+    public ConnectionPool database(String name) {
+        return ConnectionPool.get(url(name), "sa", "");
+    }
+
+    public void execute(String name, String... statements) throws SQLException {
+        try (Connection connection = database(name).getConnection(); Statement stmt = connection.createStatement()) {
+            for (String sql : statements) {
+                stmt.execute(sql);
+            }
+        }
+    }
+
+    public long count(String name, String query) throws SQLException {
+        try (Connection connection = database(name).getConnection(); Statement stmt = connection.createStatement(); ResultSet rs = stmt.executeQuery(query)) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    @Override
+    protected void after() {
+        ConnectionPool.closeAll();
+    }
+}
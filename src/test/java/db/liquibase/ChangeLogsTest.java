@@ -0,0 +1,57 @@
+package db.liquibase;
+
+import db.jdbc.H2Databases;
+import liquibase.CatalogAndSchema;
+import liquibase.change.Change;
+import liquibase.changelog.ChangeSet;
+import liquibase.changelog.DatabaseChangeLog;
+import liquibase.database.Database;
+import liquibase.database.DatabaseFactory;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.diff.output.DiffOutputControl;
+import liquibase.diff.output.changelog.DiffToChangeLog;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/* In-memory changeLogs over changeSets lifted from an H2 database */
+
+public class ChangeLogsTest {
+    @Rule
+    public H2Databases _h2 = new H2Databases("changelogs");
+
+    @Test
+    public void copiesLeaveTheLiftedChangeSetsAlone() throws Exception {
+        _h2.execute("src",
+                "CREATE TABLE PARENT (ID INT PRIMARY KEY, NAME VARCHAR(50) DEFAULT 'none' NOT NULL)",
+                "CREATE TABLE CHILD (ID INT PRIMARY KEY, PARENT_ID INT REFERENCES PARENT (ID))",
+                "CREATE INDEX CHILD_PARENT ON CHILD (PARENT_ID)",
+                "CREATE VIEW NAMES AS SELECT NAME FROM PARENT");
+        List<ChangeSet> changeSets;
+        try (Connection connection = _h2.database("src").getConnection()) {
+            Database database = DatabaseFactory.getInstance().findCorrectDatabaseImplementation(new JdbcConnection(connection));
+            changeSets = SnapshotCache.snapshotAndDiff(database, new CatalogAndSchema(null, "PUBLIC"), null,
+                    new DiffToChangeLog(new DiffOutputControl(false, true, false, null)));
+        }
+
+        DatabaseChangeLog first = ChangeLogs.inMemoryCopy("a.xml", changeSets);
+        DatabaseChangeLog second = ChangeLogs.inMemoryCopy("b.xml", changeSets);
+
+        assertEquals(changeSets.size(), first.getChangeSets().size());
+        for (int i = 0; i < changeSets.size(); i++) {
+            ChangeSet lifted = changeSets.get(i);
+            for (Change change : lifted.getChanges()) {
+                assertSame(lifted, change.getChangeSet());
+            }
+            assertNotSame(first.getChangeSets().get(i).getChanges().get(0), second.getChangeSets().get(i).getChanges().get(0));
+            assertSame(first.getChangeSets().get(i), first.getChangeSets().get(i).getChanges().get(0).getChangeSet());
+            assertEquals(lifted.generateCheckSum(), first.getChangeSets().get(i).generateCheckSum());
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package db.liquibase;
+
+import liquibase.change.ColumnConfig;
+import liquibase.change.core.AddForeignKeyConstraintChange;
+import liquibase.change.core.CreateTableChange;
+import liquibase.changelog.ChangeSet;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static db.liquibase.ParallelChangeLogUpdaterTest.changeSet;
+import static db.liquibase.ParallelChangeLogUpdaterTest.createView;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/* Transform rules applied to changeSets built the way DiffToChangeLog leaves them */
+
+public class ChangeSetTransformerTest {
+    @Test
+    public void rewritesNamesTypesAndRemarksInOneWalk() {
+        CreateTableChange table = table("dbo", "NVARCHAR(50)");
+        AddForeignKeyConstraintChange foreignKey = new AddForeignKeyConstraintChange();
+        foreignKey.setBaseTableSchemaName("dbo");
+        foreignKey.setBaseTableName("CHILD");
+        foreignKey.setReferencedTableSchemaName("DBO");
+        foreignKey.setReferencedTableName("PARENT");
+
+        ChangeSetTransformer.parse("schema=dbo:app,type=nvarchar:VARCHAR,dropRemarks,catalogSuffix=Clone")
+                .apply(Arrays.asList(changeSet("1", table), changeSet("2", foreignKey)));
+
+        assertEquals("app", table.getSchemaName());
+        assertEquals("SRCClone", table.getCatalogName());
+        assertNull(table.getRemarks());
+        assertEquals("VARCHAR(50)", table.getColumns().get(0).getType());
+        assertNull(table.getColumns().get(0).getRemarks());
+        assertEquals("app", foreignKey.getBaseTableSchemaName());
+        assertEquals("app", foreignKey.getReferencedTableSchemaName());
+    }
+
+    @Test
+    public void dropsChangesByTypeAndChangeSetsLeftEmpty() {
+        ChangeSet tableAndView = changeSet("1", table("dbo", "INT"), createView("V", "SELECT 1"));
+        ChangeSet view = changeSet("2", createView("W", "SELECT 1"));
+
+        List<ChangeSet> transformed = ChangeSetTransformer.parse("drop=createView").apply(Arrays.asList(tableAndView, view));
+
+        assertEquals(1, transformed.size());
+        assertEquals("1", transformed.get(0).getId());
+        assertEquals(1, transformed.get(0).getChanges().size());
+        assertEquals(CreateTableChange.class, transformed.get(0).getChanges().get(0).getClass());
+        assertEquals(2, tableAndView.getChanges().size()); // the lifted changeSet keeps its changes
+    }
+
+    @Test
+    public void anEmptySpecLeavesTheChangeSetsAsTheyAre() {
+        List<ChangeSet> changeSets = Arrays.asList(changeSet("1", table("dbo", "INT")));
+
+        assertSame(changeSets, ChangeSetTransformer.parse(" ").apply(changeSets));
+        assertSame(changeSets, ChangeSetTransformer.parse(null).apply(changeSets));
+    }
+
+    @Test
+    public void mapsTypesByNameKeepingTheirSize() {
+        assertEquals("VARCHAR(MAX)", ChangeSetTransformer.mapType("[nvarchar](MAX)", "NVARCHAR", "VARCHAR"));
+        assertEquals("DECIMAL(19,4)", ChangeSetTransformer.mapType("MONEY", "money", "DECIMAL(19,4)"));
+        assertEquals("NVARCHARX(5)", ChangeSetTransformer.mapType("NVARCHARX(5)", "NVARCHAR", "VARCHAR"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownRules() {
+        ChangeSetTransformer.parse("dropRemarks,renameEverything");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMappingsWithoutATarget() {
+        ChangeSetTransformer.parse("schema=dbo");
+    }
+
+    private static CreateTableChange table(String schemaName, String type) {
+        CreateTableChange change = new CreateTableChange();
+        change.setCatalogName("SRC");
+        change.setSchemaName(schemaName);
+        change.setTableName("PARENT");
+        change.setRemarks("parents");
+        change.addColumn(new ColumnConfig().setName("NAME").setType(type).setRemarks("name"));
+        return change;
+    }
+}
@@ -0,0 +1,76 @@
+package db.liquibase;
+
+import liquibase.changelog.ChangeLogParameters;
+import liquibase.changelog.ChangeSet;
+import liquibase.changelog.DatabaseChangeLog;
+import liquibase.database.core.H2Database;
+import liquibase.parser.ChangeLogParserFactory;
+import liquibase.resource.FileSystemResourceAccessor;
+import liquibase.resource.ResourceAccessor;
+import liquibase.serializer.core.json.JsonChangeLogSerializer;
+import liquibase.serializer.core.xml.XMLChangeLogSerializer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static db.liquibase.ParallelChangeLogUpdaterTest.changeSet;
+import static db.liquibase.ParallelChangeLogUpdaterTest.createTable;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/* Chunked changeLogs read back through the Liquibase parsers */
+
+public class ChunkedChangeLogWriterTest {
+    private static final ResourceAccessor ACCESSOR = new FileSystemResourceAccessor();
+
+    @Rule
+    public TemporaryFolder _tmp = new TemporaryFolder();
+
+    @Test
+    public void theMasterIncludesEveryChunkInOrder() throws Exception {
+        for (String extension : new String[]{"xml", "json"}) {
+            File master = new File(_tmp.getRoot(), "LiquiBaseChangeLog_dbo." + extension);
+            ChunkedChangeLogWriter.ChunkSerializer serializer = "xml".equals(extension) ? new XMLChangeLogSerializer()::write : new JsonChangeLogSerializer()::write;
+            List<File> written;
+            try (ChunkedChangeLogWriter chunks = new ChunkedChangeLogWriter(master, 2, serializer)) {
+                for (int i = 1; i <= 5; i++) chunks.add(changeSet(String.valueOf(i), createTable("T" + i)));
+                written = chunks.getChunks();
+            }
+
+            assertEquals(3, written.size());
+            assertEquals("[1, 2, 3, 4, 5]", ids(master).toString());
+        }
+    }
+
+    @Test
+    public void aSmallerRunLeavesNoChunksOfTheLargerOneBehind() throws Exception {
+        File master = new File(_tmp.getRoot(), "changelog.xml");
+        try (ChunkedChangeLogWriter chunks = new ChunkedChangeLogWriter(master, 1, new XMLChangeLogSerializer()::write)) {
+            for (int i = 1; i <= 3; i++) chunks.add(changeSet(String.valueOf(i), createTable("T" + i)));
+        }
+        try (ChunkedChangeLogWriter chunks = new ChunkedChangeLogWriter(master, 1, new XMLChangeLogSerializer()::write)) {
+            chunks.add(changeSet("1", createTable("T1")));
+        }
+
+        assertEquals(1, new File(_tmp.getRoot(), "changelog").list().length);
+        assertEquals("[1]", ids(master).toString());
+        assertFalse(new File(_tmp.getRoot(), "changelog.xml.tmp").exists());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesFormatsItCannotInclude() throws Exception {
+        new ChunkedChangeLogWriter(new File(_tmp.getRoot(), "changelog.sql"), 1, new XMLChangeLogSerializer()::write).close();
+    }
+
+    private static List<String> ids(File master) throws Exception {
+        DatabaseChangeLog changeLog = ChangeLogParserFactory.getInstance().getParser(master.getPath(), ACCESSOR)
+                .parse(master.getPath(), new ChangeLogParameters(new H2Database()), ACCESSOR);
+        List<String> ids = new ArrayList<>();
+        for (ChangeSet changeSet : changeLog.getChangeSets()) ids.add(changeSet.getId());
+        return ids;
+    }
+}
@@ -0,0 +1,89 @@
+package db.liquibase;
+
+import liquibase.changelog.ChangeLogParameters;
+import liquibase.changelog.ChangeSet;
+import liquibase.changelog.DatabaseChangeLog;
+import liquibase.database.core.H2Database;
+import liquibase.parser.ChangeLogParserFactory;
+import liquibase.resource.FileSystemResourceAccessor;
+import liquibase.resource.ResourceAccessor;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/* Cache misses, hits and the files it leaves to the regular parser, checked against what that parser returns */
+
+public class CompiledChangeLogCacheTest {
+    private static final ResourceAccessor ACCESSOR = new FileSystemResourceAccessor();
+
+    @Rule
+    public TemporaryFolder _tmp = new TemporaryFolder();
+
+    @Test
+    public void aHitReturnsTheChangeSetsAndChecksumsOfTheFile() throws Exception {
+        File file = changeLog("changelog.yaml", "'ID'");
+        CompiledChangeLogCache cache = new CompiledChangeLogCache(_tmp.newFolder("cache"));
+
+        List<String> miss = checkSums(cache.parse(file.getPath(), parameters(), ACCESSOR));
+        List<String> hit = checkSums(cache.parse(file.getPath(), parameters(), ACCESSOR));
+
+        assertEquals(checkSums(ChangeLogParserFactory.getInstance().getParser(file.getPath(), ACCESSOR).parse(file.getPath(), parameters(), ACCESSOR)), miss);
+        assertEquals(miss, hit);
+        assertEquals(1, new File(_tmp.getRoot(), "cache").list().length);
+    }
+
+    @Test
+    public void aValueTheCacheCannotStoreIsParsedWithoutIt() throws Exception {
+        File file = changeLog("dated.yaml", "2020-01-01"); // an unquoted timestamp, which SnakeYAML reads as a java.util.Date
+        File dir = _tmp.newFolder("cache");
+
+        DatabaseChangeLog changeLog = new CompiledChangeLogCache(dir).parse(file.getPath(), parameters(), ACCESSOR);
+
+        assertEquals(2, changeLog.getChangeSets().size());
+        assertEquals(0, dir.list().length);
+    }
+
+    private File changeLog(String name, String remarks) throws IOException {
+        File file = _tmp.newFile(name);
+        Files.write(file.toPath(), ("databaseChangeLog:\n"
+                + "  - changeSet:\n"
+                + "      id: 1\n"
+                + "      author: test\n"
+                + "      changes:\n"
+                + "        - createTable:\n"
+                + "            tableName: A\n"
+                + "            remarks: " + remarks + "\n"
+                + "            columns:\n"
+                + "              - column:\n"
+                + "                  name: ID\n"
+                + "                  type: INT\n"
+                + "  - changeSet:\n"
+                + "      id: 2\n"
+                + "      author: test\n"
+                + "      changes:\n"
+                + "        - sql:\n"
+                + "            sql: UPDATE A SET ID = 1\n").getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static ChangeLogParameters parameters() {
+        return new ChangeLogParameters(new H2Database());
+    }
+
+    private static List<String> checkSums(DatabaseChangeLog changeLog) {
+        List<String> checkSums = new ArrayList<>();
+        for (ChangeSet changeSet : changeLog.getChangeSets()) {
+            checkSums.add(changeSet.getId() + "=" + changeSet.generateCheckSum());
+        }
+        return checkSums;
+    }
+}
@@ -0,0 +1,79 @@
+package db.liquibase;
+
+import db.jdbc.ConnectionPool;
+import db.jdbc.H2Databases;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/* SCRIPT/RUNSCRIPT between two in-memory H2 databases, and when NativeClone offers it */
+
+public class H2ScriptCloneTest {
+    @Rule
+    public TemporaryFolder _tmp = new TemporaryFolder();
+
+    @Rule
+    public H2Databases _h2 = new H2Databases("clone");
+
+    @Before
+    public void createSource() throws SQLException {
+        _h2.execute("src",
+                "CREATE TABLE PARENT (ID INT PRIMARY KEY, NAME VARCHAR(50))",
+                "CREATE TABLE CHILD (ID INT PRIMARY KEY, PARENT_ID INT REFERENCES PARENT (ID))",
+                "CREATE VIEW NAMES AS SELECT NAME FROM PARENT",
+                "INSERT INTO PARENT VALUES (1, 'a'), (2, 'b'), (3, 'c')",
+                "INSERT INTO CHILD VALUES (10, 1), (11, 3)");
+    }
+
+    @Test
+    public void scriptsTablesAndRowsIntoAnotherDatabase() throws Exception {
+        _h2.execute("dst", "CREATE TABLE LEFTOVER (ID INT)"); // restore starts from an emptied target
+        try (NativeClone clone = new H2ScriptClone(_h2::database, _tmp.getRoot(), true)) {
+            clone.snapshot("src");
+            clone.restore("src", "dst");
+        }
+        assertEquals(3, _h2.count("dst", "SELECT COUNT(*) FROM PARENT"));
+        assertEquals(2, _h2.count("dst", "SELECT COUNT(*) FROM CHILD"));
+        assertEquals(3, _h2.count("dst", "SELECT COUNT(*) FROM NAMES"));
+        assertEquals(0, _h2.count("dst", "SELECT COUNT(*) FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_NAME = 'LEFTOVER'"));
+        assertEquals(0, _tmp.getRoot().list().length);
+    }
+
+    @Test
+    public void scriptsTablesWithoutRowsUnlessAsked() throws Exception {
+        try (NativeClone clone = new H2ScriptClone(_h2::database, _tmp.getRoot(), false)) {
+            clone.snapshot("src");
+            clone.restore("src", "dst");
+        }
+        assertEquals(0, _h2.count("dst", "SELECT COUNT(*) FROM PARENT"));
+        assertEquals(1, _h2.count("dst", "SELECT COUNT(*) FROM INFORMATION_SCHEMA.CROSS_REFERENCES WHERE FKTABLE_NAME = 'CHILD'"));
+    }
+
+    @Test(expected = SQLException.class)
+    public void refusesToRestoreOverTheSource() throws Exception {
+        try (NativeClone clone = new H2ScriptClone(_h2::database, _tmp.getRoot(), true)) {
+            clone.snapshot("src");
+            clone.restore("src", "SRC");
+        }
+    }
+
+    @Test
+    public void detectsTheScriptCloneOnlyForAnAdmin() throws SQLException {
+        try (Connection admin = _h2.database("src").getConnection(); Statement stmt = admin.createStatement()) {
+            assertTrue(NativeClone.detect(admin, null, _h2::database, _tmp.getRoot(), null, true) instanceof H2ScriptClone);
+            stmt.execute("CREATE USER READER PASSWORD 'reader'");
+        }
+        try (Connection reader = ConnectionPool.get(_h2.url("src").split(";")[0], "READER", "reader").getConnection()) { // URL settings such as DB_CLOSE_DELAY need admin rights
+            assertNull(NativeClone.detect(reader, null, _h2::database, _tmp.getRoot(), null, true));
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package db.liquibase;
+
+import db.jdbc.ConnectionPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static org.junit.Assert.assertEquals;
+
+/* Whether CloneDb takes the native clone or falls back to the changeLog replay, on H2 file databases in one directory */
+
+public class LiquiBaseCloneDbTest {
+    @Rule
+    public TemporaryFolder _tmp = new TemporaryFolder();
+
+    private String _url;
+
+    @Before
+    public void createSource() throws SQLException {
+        _url = "jdbc:h2:" + _tmp.getRoot().getAbsolutePath() + "/";
+        execute("src",
+                "CREATE TABLE PARENT (ID INT PRIMARY KEY, NAME VARCHAR(50))",
+                "INSERT INTO PARENT VALUES (1, 'a'), (2, 'b')");
+    }
+
+    @After
+    public void closePools() {
+        ConnectionPool.closeAll();
+    }
+
+    @Test
+    public void clonesNativelyWhenAskedAndTheSourceHoldsOnlyItsSchema() throws Exception {
+        cloneDb("-cs", "native");
+
+        assertEquals(2, parentRows("dst"));
+    }
+
+    @Test
+    public void replaysTheChangeLogUnlessAskedForANativeClone() throws Exception {
+        cloneDb();
+
+        assertEquals(-1, parentRows("dst"));
+    }
+
+    @Test
+    public void replaysTheChangeLogWhenTheSourceHoldsAnotherSchema() throws Exception {
+        execute("src", "CREATE SCHEMA OTHER", "CREATE TABLE OTHER.AUDIT (ID INT)");
+
+        cloneDb("-cs", "native");
+
+        assertEquals(-1, parentRows("dst"));
+    }
+
+    @Test
+    public void replaysTheChangeLogWhenTransformRulesAreGiven() throws Exception {
+        cloneDb("-cs", "native", "-tr", "dropRemarks");
+
+        assertEquals(-1, parentRows("dst"));
+    }
+
+    /* The replay drops and re-creates the target with SQL Server statements, so on H2 it leaves no PARENT behind, while the
+     * native clone copies it with its rows */
+    private void cloneDb(String... strategy) {
+        String[] common = {"-sc", _url, "-su", "sa", "-sp", "sa", "-sd", "src", "-ss", "PUBLIC", "-td", "dst", "-tp", _tmp.getRoot().getAbsolutePath(), "-data"};
+        String[] args = new String[common.length + strategy.length];
+        System.arraycopy(common, 0, args, 0, common.length);
+        System.arraycopy(strategy, 0, args, common.length, strategy.length);
+        LiquiBaseCloneDb.main(args);
+    }
+
+    /* The rows in PARENT, or -1 when there is no such table */
+    private long parentRows(String databaseName) throws SQLException {
+        try (Connection connection = pool(databaseName).getConnection(); Statement stmt = connection.createStatement();
+             ResultSet tables = stmt.executeQuery("SELECT COUNT(*) FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_NAME = 'PARENT'")) {
+            tables.next();
+            if (tables.getLong(1) == 0) return -1;
+        }
+        try (Connection connection = pool(databaseName).getConnection(); Statement stmt = connection.createStatement();
+             ResultSet rows = stmt.executeQuery("SELECT COUNT(*) FROM PARENT")) {
+            rows.next();
+            return rows.getLong(1);
+        }
+    }
+
+    private void execute(String databaseName, String... statements) throws SQLException {
+        try (Connection connection = pool(databaseName).getConnection(); Statement stmt = connection.createStatement()) {
+            for (String sql : statements) stmt.execute(sql);
+        }
+    }
+
+    private ConnectionPool pool(String databaseName) {
+        return ConnectionPool.get(_url + databaseName, "sa", "sa");
+    }
+}
@@ -0,0 +1,204 @@
+package db.liquibase;
+
+import db.jdbc.H2Databases;
+import liquibase.Contexts;
+import liquibase.LabelExpression;
+import liquibase.change.Change;
+import liquibase.change.AddColumnConfig;
+import liquibase.change.ColumnConfig;
+import liquibase.change.ConstraintsConfig;
+import liquibase.change.core.AddForeignKeyConstraintChange;
+import liquibase.change.core.AddPrimaryKeyChange;
+import liquibase.change.core.CreateIndexChange;
+import liquibase.change.core.CreateTableChange;
+import liquibase.change.core.CreateViewChange;
+import liquibase.change.core.RawSQLChange;
+import liquibase.changelog.ChangeSet;
+import liquibase.database.Database;
+import liquibase.database.DatabaseFactory;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.exception.LiquibaseException;
+import liquibase.lockservice.LockService;
+import liquibase.lockservice.LockServiceFactory;
+import liquibase.structure.core.Column;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/* ParallelChangeLogUpdater on in-memory H2 databases, with changeSets built the way DiffToChangeLog leaves them */
+
+public class ParallelChangeLogUpdaterTest {
+    @Rule
+    public H2Databases _h2 = new H2Databases("update");
+
+    @Test
+    public void resetsOnlyTheServicesOfItsOwnDatabase() throws Exception {
+        try (Connection connection = _h2.database("other").getConnection()) {
+            Database other = database(connection);
+            LockService otherLock = LockServiceFactory.getInstance().getLockService(other);
+
+            assertTrue(update("dst", 2, changeSet("1", createTable("A"))));
+
+            assertSame(otherLock, LockServiceFactory.getInstance().getLockService(other));
+        }
+        assertEquals(1, _h2.count("dst", "SELECT COUNT(*) FROM DATABASECHANGELOG"));
+    }
+
+    @Test
+    public void recordsAChangedRunOnChangeChangeSetAsRerun() throws Exception {
+        for (int batchSize : new int[]{1, 4}) {
+            String name = "rerun" + batchSize;
+            assertTrue(update(name, 1, batchSize, changeSet("1", createTable("A")), runOnChange(changeSet("2", createView("V", "SELECT ID FROM A")))));
+            assertTrue(update(name, 1, batchSize, changeSet("1", createTable("A")), runOnChange(changeSet("2", createView("V", "SELECT ID AS X FROM A")))));
+
+            assertEquals(1, _h2.count(name, "SELECT COUNT(*) FROM DATABASECHANGELOG WHERE ID = '2' AND EXECTYPE = 'RERAN'"));
+            assertEquals(2, _h2.count(name, "SELECT COUNT(*) FROM DATABASECHANGELOG"));
+            assertEquals(1, _h2.count(name, "SELECT COUNT(*) FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_NAME = 'V' AND COLUMN_NAME = 'X'"));
+        }
+    }
+
+    @Test
+    public void aChangeSetAllowedToFailDoesNotFailTheUpdate() throws Exception {
+        ChangeSet mayFail = changeSet("2", createTable("A"));
+        mayFail.setFailOnError(false);
+
+        assertTrue(update("dst", 2, 4, changeSet("1", createTable("A")), mayFail, changeSet("3", createTable("B"))));
+
+        assertEquals(1, _h2.count("dst", "SELECT COUNT(*) FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_NAME = 'B'"));
+    }
+
+    @Test
+    public void aChangeWithoutSchemaTouchesTheSameObjectAsOneInTheDefaultSchema() throws Exception {
+        try (Connection connection = _h2.database("dst").getConnection()) {
+            ParallelChangeLogUpdater updater = new ParallelChangeLogUpdater(database(connection), _h2.database("dst"), 2);
+            CreateIndexChange index = new CreateIndexChange();
+            index.setSchemaName("PUBLIC");
+            index.setTableName("A");
+            index.setIndexName("A_ID");
+
+            assertEquals(updater.objectsOf(createTable("A")), updater.objectsOf(index));
+        }
+    }
+
+    @Test
+    public void appliesEveryChangeAfterTheObjectsItTouches() throws Exception {
+        List<ChangeSet> changeSets = new ArrayList<>();
+        for (int i = 1; i <= 12; i++) {
+            CreateTableChange table = createTable("T" + i);
+            table.getColumns().get(0).setConstraints(new ConstraintsConfig().setNullable(false));
+            changeSets.add(changeSet("table" + i, table));
+            changeSets.add(changeSet("key" + i, primaryKey("T" + i)));
+        }
+        changeSets.add(changeSet("seed", new RawSQLChange("INSERT INTO T1 VALUES (1)"))); // a barrier
+        for (int i = 2; i <= 12; i++) {
+            changeSets.add(changeSet("fk" + i, foreignKey("T" + i, "T" + (i - 1))));
+            changeSets.add(changeSet("index" + i, index("T" + i)));
+        }
+        changeSets.add(changeSet("view", createView("V", "SELECT T1.ID FROM T1 JOIN T12 ON T12.ID = T1.ID")));
+        changeSets.add(changeSet("copy", new RawSQLChange("INSERT INTO T2 SELECT ID FROM T1")));
+
+        for (int batchSize : new int[]{1, 5}) {
+            String name = "graph" + batchSize;
+            assertTrue(update(name, 4, batchSize, changeSets));
+
+            assertEquals(changeSets.size(), _h2.count(name, "SELECT COUNT(*) FROM DATABASECHANGELOG"));
+            assertEquals(changeSets.size(), _h2.count(name, "SELECT MAX(ORDEREXECUTED) FROM DATABASECHANGELOG"));
+            assertEquals(11, _h2.count(name, "SELECT COUNT(*) FROM INFORMATION_SCHEMA.CONSTRAINTS WHERE CONSTRAINT_TYPE = 'REFERENTIAL'"));
+            assertEquals(1, _h2.count(name, "SELECT COUNT(*) FROM T2"));
+            assertEquals(1, _h2.count(name, "SELECT COUNT(*) FROM INFORMATION_SCHEMA.VIEWS WHERE TABLE_NAME = 'V'"));
+        }
+    }
+
+    @Test
+    public void aSecondUpdateAppliesNothing() throws Exception {
+        ChangeSet[] changeSets = {changeSet("1", createTable("A")), changeSet("2", index("A")), changeSet("3", createView("V", "SELECT ID FROM A"))};
+        assertTrue(update("dst", 2, 2, changeSets));
+        assertTrue(update("dst", 2, 2, changeSets));
+
+        assertEquals(3, _h2.count("dst", "SELECT COUNT(*) FROM DATABASECHANGELOG"));
+        assertEquals(3, _h2.count("dst", "SELECT MAX(ORDEREXECUTED) FROM DATABASECHANGELOG"));
+    }
+
+    private boolean update(String name, int threads, ChangeSet... changeSets) throws SQLException, LiquibaseException {
+        return update(name, threads, 1, changeSets);
+    }
+
+    private boolean update(String name, int threads, int batchSize, ChangeSet... changeSets) throws SQLException, LiquibaseException {
+        return update(name, threads, batchSize, Arrays.asList(changeSets));
+    }
+
+    private boolean update(String name, int threads, int batchSize, List<ChangeSet> changeSets) throws SQLException, LiquibaseException {
+        try (Connection connection = _h2.database(name).getConnection()) {
+            return new ParallelChangeLogUpdater(database(connection), _h2.database(name), threads, batchSize)
+                    .update(ChangeLogs.inMemory("test.xml", changeSets), new Contexts(), new LabelExpression());
+        }
+    }
+
+    private static Database database(Connection connection) throws LiquibaseException {
+        return DatabaseFactory.getInstance().findCorrectDatabaseImplementation(new JdbcConnection(connection));
+    }
+
+    static ChangeSet changeSet(String id, Change... changes) {
+        ChangeSet changeSet = new ChangeSet(id, "test", false, false, null, null, null, null);
+        for (Change change : changes) {
+            changeSet.addChange(change);
+        }
+        return changeSet;
+    }
+
+    static ChangeSet runOnChange(ChangeSet changeSet) {
+        ChangeSet copy = new ChangeSet(changeSet.getId(), changeSet.getAuthor(), false, true, null, null, null, null);
+        changeSet.getChanges().forEach(copy::addChange);
+        return copy;
+    }
+
+    static CreateViewChange createView(String viewName, String query) {
+        CreateViewChange change = new CreateViewChange();
+        change.setViewName(viewName);
+        change.setSelectQuery(query);
+        change.setReplaceIfExists(true);
+        return change;
+    }
+
+    static AddPrimaryKeyChange primaryKey(String tableName) {
+        AddPrimaryKeyChange change = new AddPrimaryKeyChange();
+        change.setTableName(tableName);
+        change.setColumnNames("ID");
+        change.setConstraintName("PK_" + tableName);
+        return change;
+    }
+
+    static AddForeignKeyConstraintChange foreignKey(String tableName, String referencedTableName) {
+        AddForeignKeyConstraintChange change = new AddForeignKeyConstraintChange();
+        change.setBaseTableName(tableName);
+        change.setBaseColumnNames("ID");
+        change.setReferencedTableName(referencedTableName);
+        change.setReferencedColumnNames("ID");
+        change.setConstraintName("FK_" + tableName);
+        return change;
+    }
+
+    static CreateIndexChange index(String tableName) {
+        CreateIndexChange change = new CreateIndexChange();
+        change.setTableName(tableName);
+        change.setIndexName("IX_" + tableName);
+        change.addColumn(new AddColumnConfig(new Column("ID")));
+        return change;
+    }
+
+    static CreateTableChange createTable(String tableName) {
+        CreateTableChange change = new CreateTableChange();
+        change.setTableName(tableName);
+        change.addColumn(new ColumnConfig().setName("ID").setType("INT"));
+        return change;
+    }
+}
@@ -0,0 +1,84 @@
+package db.liquibase;
+
+import db.jdbc.H2Databases;
+import liquibase.CatalogAndSchema;
+import liquibase.changelog.ChangeSet;
+import liquibase.database.Database;
+import liquibase.database.DatabaseFactory;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.diff.output.DiffOutputControl;
+import liquibase.diff.output.changelog.DiffToChangeLog;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/* Lifts through the cache compared with full lifts of the same H2 schema */
+
+public class SnapshotCacheTest {
+    private static final CatalogAndSchema SCHEMA = new CatalogAndSchema(null, "PUBLIC");
+
+    @Rule
+    public TemporaryFolder _tmp = new TemporaryFolder();
+
+    @Rule
+    public H2Databases _h2 = new H2Databases("snapshots");
+
+    @Before
+    public void createSource() throws Exception {
+        _h2.execute("src",
+                "CREATE TABLE PARENT (ID INT PRIMARY KEY, NAME VARCHAR(50))",
+                "CREATE TABLE CHILD (ID INT PRIMARY KEY, PARENT_ID INT REFERENCES PARENT (ID))",
+                "CREATE TABLE OTHER (ID INT PRIMARY KEY)",
+                "CREATE INDEX CHILD_PARENT ON CHILD (PARENT_ID)",
+                "CREATE VIEW NAMES AS SELECT NAME FROM PARENT");
+    }
+
+    @Test
+    public void reliftsOnlyWhatChangedAndMatchesAFullLift() throws Exception {
+        File dir = _tmp.newFolder("cache");
+        List<String> first = checkSums(lift(dir));
+        assertEquals(first, checkSums(lift(dir)));
+
+        _h2.execute("src",
+                "ALTER TABLE PARENT ADD COLUMN CREATED TIMESTAMP",
+                "CREATE TABLE ADDED (ID INT PRIMARY KEY)",
+                "DROP TABLE OTHER");
+        List<String> relifted = checkSums(lift(dir));
+
+        assertNotEquals(first, relifted);
+        assertEquals(checkSums(lift(_tmp.newFolder("full"))), relifted);
+    }
+
+    @Test
+    public void renumbersTheChangeSetsFromTheIdRoot() throws Exception {
+        File dir = _tmp.newFolder("cache");
+        lift(dir);
+        List<ChangeSet> changeSets = lift(dir);
+
+        for (int i = 0; i < changeSets.size(); i++) {
+            assertEquals("PUBLIC-" + (i + 1), changeSets.get(i).getId());
+        }
+    }
+
+    private List<ChangeSet> lift(File dir) throws Exception {
+        try (Connection connection = _h2.database("src").getConnection()) {
+            Database database = DatabaseFactory.getInstance().findCorrectDatabaseImplementation(new JdbcConnection(connection));
+            return new SnapshotCache(dir).generateChangeSets(database, SCHEMA, new DiffToChangeLog(new DiffOutputControl(false, true, false, null)), "PUBLIC");
+        }
+    }
+
+    private static List<String> checkSums(List<ChangeSet> changeSets) {
+        List<String> checkSums = new ArrayList<>();
+        for (ChangeSet changeSet : changeSets) checkSums.add(changeSet.getId() + "=" + changeSet.generateCheckSum());
+        return checkSums;
+    }
+}